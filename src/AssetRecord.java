@@ -0,0 +1,49 @@
+import java.sql.Timestamp;
+
+/**
+ * A single erroneous asset found by quality testing, as written to the erroneous assets table in the EIS quality database
+ * @Author Ross Newby
+ */
+public class AssetRecord {
+
+    private final String ware;
+    private final String logCode;
+    private final String logChan; // null for loggers
+    private final String util; // null if unknown
+    private final Timestamp time;
+
+    /**
+     * @param ware Value for hardware field e.g. 'meter' or 'logger'
+     * @param logCode Value for logger code field
+     * @param logChan Value for logger channel field; may be null
+     * @param util Value for utility type field; may be null
+     * @param time Value for most recent error field
+     */
+    public AssetRecord(String ware, String logCode, String logChan, String util, Timestamp time){
+        this.ware = ware;
+        this.logCode = logCode;
+        this.logChan = logChan;
+        this.util = util;
+        this.time = time;
+    }
+
+    public String getWare(){
+        return ware;
+    }
+
+    public String getLogCode(){
+        return logCode;
+    }
+
+    public String getLogChan(){
+        return logChan;
+    }
+
+    public String getUtil(){
+        return util;
+    }
+
+    public Timestamp getTime(){
+        return time;
+    }
+}
@@ -0,0 +1,198 @@
+import org.json.JSONObject;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes all CKAN fan-out (per file, per meter, per page). Where the JVM supports them, tasks run on virtual threads so blocking
+ * HTTP I/O does not pin a platform thread; otherwise a cached pool of daemon threads is used. Concurrency is limited by a
+ * semaphore on outstanding CKAN requests rather than by the number of threads. The following optional fields may be specified
+ * in config.properties: 'ckanthreads' ('virtual' or 'platform'), 'ckanmaxrequests' and 'ckanmaxmeters'
+ * @Author Ross Newby
+ */
+public class CKANExecutor {
+
+    private static final String PROPERTIES_FILENAME = "config.properties";
+    private static final int DEFAULT_MAX_REQUESTS = 32; // outstanding CKAN requests at any time
+    private static final int DEFAULT_MAX_METERS = 8; // meters analysed at once; each holds its readings in memory
+
+    private ExecutorService executor;
+    private Semaphore requestPermits; // limits outstanding CKAN requests
+    private int maxMeters;
+    private boolean virtual = false; // true if tasks run on virtual threads
+
+    /**
+     * Initialise the executor, reading the thread mode and limits from the configuration file if specified
+     */
+    public CKANExecutor(){
+
+        /*Read configuration file; populate variables*/
+        String mode = "virtual";
+        int maxRequests = DEFAULT_MAX_REQUESTS;
+        maxMeters = DEFAULT_MAX_METERS;
+        try {
+            Properties prop = new Properties();
+            InputStream in = getClass().getClassLoader().getResourceAsStream(PROPERTIES_FILENAME);
+
+            if (in != null) {
+                prop.load(in);
+                in.close();
+            } else {
+                throw new FileNotFoundException("'" + PROPERTIES_FILENAME + "' not found in classpath");
+            }
+
+            mode = prop.getProperty("ckanthreads", mode);
+            maxRequests = Integer.parseInt(prop.getProperty("ckanmaxrequests", Integer.toString(maxRequests)));
+            maxMeters = Integer.parseInt(prop.getProperty("ckanmaxmeters", Integer.toString(maxMeters)));
+        }
+        catch (Exception e){
+            // System.out.println("Error Reading Configuration File: "+ PROPERTIES_FILENAME); // use defaults
+        }
+        requestPermits = new Semaphore(Math.max(1, maxRequests), true);
+
+        /*Use virtual threads if the JVM has them (Java 21+); looked up reflectively so the code still builds for Java 8*/
+        if (mode.equals("virtual")) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                executor = (ExecutorService) factory.invoke(null);
+                virtual = true;
+            }
+            catch (Exception e){
+                executor = null; // virtual threads not supported; use platform threads
+            }
+        }
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ckan-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Submit a CKAN HTTP request once a request permit is available and parse the response to JSON format
+     * @param url The URL address of the CKAN request
+     * @return The CKAN response as a JSONObject
+     * @throws IOException When CKAN connection could not be established
+     * @throws InterruptedException When interrupted waiting for a request permit
+     */
+    public JSONObject requestJSON(String url) throws IOException, InterruptedException{
+
+        requestPermits.acquire();
+        try {
+            return new CKANRequest(url).requestJSON();
+        }
+        finally {
+            requestPermits.release();
+        }
+    }
+
+    /**
+     * @return A new scope for tasks with no limit on how many run at once, other than the request limit
+     */
+    public <T> TaskScope<T> newScope(){
+        return new TaskScope<>(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return A new scope for meter-level tasks; forking blocks once the configured number of meters are in progress
+     */
+    public <T> TaskScope<T> newMeterScope(){
+        return new TaskScope<>(maxMeters);
+    }
+
+    /**
+     * @return True if tasks are executed on virtual threads
+     */
+    public boolean isVirtual(){
+        return virtual;
+    }
+
+    /**
+     * Structured group of tasks; every task forked in a scope has finished (or been cancelled) once join() returns, so tasks never
+     * outlive the method which forked them
+     */
+    public class TaskScope<T> {
+
+        private final List<Future<T>> futures = new ArrayList<>();
+        private final Semaphore running; // limits tasks of this scope in progress at once
+
+        private TaskScope(int maxRunning){
+            running = new Semaphore(maxRunning);
+        }
+
+        /**
+         * Start a task in this scope; blocks while the scope's limit of running tasks is reached
+         * @param task Task to execute
+         * @return Future for the task's result
+         * @throws InterruptedException When interrupted waiting to start the task
+         */
+        public Future<T> fork(final Callable<T> task) throws InterruptedException{
+
+            running.acquire();
+            try {
+                Future<T> future = executor.submit(new Callable<T>() {
+                    public T call() throws Exception {
+                        try {
+                            return task.call();
+                        }
+                        finally {
+                            running.release();
+                        }
+                    }
+                });
+                futures.add(future);
+                return future;
+            }
+            catch (RejectedExecutionException e){
+                running.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Wait for every forked task to finish, then report the first task which failed. If interrupted, every unfinished task is
+         * cancelled
+         * @throws InterruptedException When interrupted waiting for tasks
+         * @throws ExecutionException When a task threw; the first such task's exception is the cause, once every task has finished
+         */
+        public void join() throws InterruptedException, ExecutionException{
+            ExecutionException failure = null;
+            try {
+                for (Future<T> future : futures) {
+                    try {
+                        future.get();
+                    }
+                    catch (ExecutionException e){
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                    catch (CancellationException e){
+                        // cancelled by an earlier interrupted join
+                    }
+                }
+            }
+            catch (InterruptedException e){
+                for (Future<T> future : futures) {
+                    future.cancel(true);
+                }
+                throw e;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@ public class CKANRequest {
     private String apikey = null;
     private String apiuser = null;
     private String apipass = null;
+    private static final ResponseCache cache = new ResponseCache(); // shared by every request
 
     /**
      * Initialise a CKAN request for a specified URL
@@ -91,6 +92,14 @@ public class CKANRequest {
         StringBuffer response;
         try {
             URL newURL = new URL(url);
+
+            /*Serve a cached response while it is fresh*/
+            String key = cache.isEnabled() ? ResponseCache.key(newURL) : null;
+            ResponseCache.Entry cached = (key == null) ? null : cache.get(key);
+            if (cached != null && cache.isFresh(key, cached)) {
+                return cached.getBody();
+            }
+
             HttpsURLConnection con = (HttpsURLConnection) newURL.openConnection();
 
             /*Append headers to HTTP request*/
@@ -99,6 +108,22 @@ public class CKANRequest {
             con.setRequestProperty("Authorization", basicAuth);
             con.setRequestProperty("X-CKAN-API-Key", apikey); // personal API key (config file)
             con.setRequestMethod("GET");
+            if (cached != null && cached.getETag() != null) {
+                con.setRequestProperty("If-None-Match", cached.getETag());
+            }
+            if (cached != null && cached.getLastModified() != null) {
+                con.setRequestProperty("If-Modified-Since", cached.getLastModified());
+            }
+
+            /*Revalidated cached response is unchanged*/
+            int status = con.getResponseCode();
+            String etag = con.getHeaderField("ETag");
+            String lastModified = con.getHeaderField("Last-Modified");
+            if (cached != null && status == HttpsURLConnection.HTTP_NOT_MODIFIED) {
+                con.disconnect();
+                cache.revalidated(key, cached);
+                return cached.getBody();
+            }
 
             /*Read reply from HTTP request as String*/
             BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
@@ -110,6 +135,10 @@ public class CKANRequest {
 
             in.close(); //close connections
             con.disconnect();
+
+            if (key != null && status == HttpsURLConnection.HTTP_OK) {
+                cache.put(key, response.toString(), etag, lastModified);
+            }
         }
         catch (MalformedURLException e){
             System.out.print("Could not read: "+ this.url);
@@ -0,0 +1,239 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A CKAN package of meter readings, such as BMS or EMS. A source describes how its files are named and which of them hold
+ * readings, the classification group of its meters in the Planon metadata, the columns its readings are keyed by, and how many
+ * CKAN requests its meters may have outstanding at once; every source is read and tested by the same fetch and analysis
+ * pipeline. Sources are listed in config.properties by 'sources' (default 'bms,ems'), and each may be given optional fields
+ * prefixed by its name: '&lt;name&gt;.package' (CKAN package; default the name), '&lt;name&gt;.group' (classification group of its
+ * meters), '&lt;name&gt;.prefix' (file name prefix, as in 'bms-sep-2017'; default the name), '&lt;name&gt;.exclude' (resources which
+ * are not readings, e.g. metadata), '&lt;name&gt;.since' (first month with readings in the current format, 'yyyy-MM'),
+ * '&lt;name&gt;.devicecolumn', '&lt;name&gt;.channelcolumn', '&lt;name&gt;.timecolumn', '&lt;name&gt;.valuecolumn' (default 'device_id',
+ * 'module_key', 'timestamp' and 'param_value') and '&lt;name&gt;.maxrequests' (default 0, limited only by 'ckanmaxrequests')
+ * @Author Ross Newby
+ */
+public class DataSource {
+
+    private static final String PROPERTIES_FILENAME = "config.properties";
+    private static final String PACKAGE_URL = "ckan.lancaster.ac.uk/api/3/action/package_show?id=";
+    private static final String DEVICE = "device_id"; // names of the key columns as the pipeline reads them
+    private static final String CHANNEL = "module_key";
+    private static final String TIME = "timestamp";
+    private static final String VALUE = "param_value";
+
+    private final String name;
+    private String packageID;
+    private String classificationGroup = "";
+    private String filePrefix;
+    private Set<String> excluded = new HashSet<>(); // resources in the package which are not readings
+    private String since = null; // first month of readings in the current format, 'yyyy-MM'; null for every month
+    private String deviceColumn = DEVICE;
+    private String channelColumn = CHANNEL;
+    private String timeColumn = TIME;
+    private String valueColumn = VALUE;
+    private Semaphore requestPermits = null; // limits this source's outstanding CKAN requests; null for no limit of its own
+
+    /**
+     * Initialise a source, reading its fields from the configuration file if specified. BMS and EMS have defaults for every field
+     * @param name Name of the source, e.g. 'bms'
+     */
+    public DataSource(String name){
+
+        this.name = name;
+        packageID = name;
+        filePrefix = name;
+        if (name.equals("bms")) {
+            classificationGroup = "Energy sensor";
+            excluded.addAll(Arrays.asList("bmsdevicemeta", "bmsmodulemeta"));
+            since = "2016-12"; // data in CKAN pre Dec-2016 is a different format, or in some cases blank
+        }
+        else if (name.equals("ems")) {
+            classificationGroup = "Energy meter";
+            excluded.add("emsmeta");
+        }
+
+        try {
+            Properties prop = new Properties();
+            InputStream in = getClass().getClassLoader().getResourceAsStream(PROPERTIES_FILENAME);
+
+            if (in != null) {
+                prop.load(in);
+                in.close();
+            } else {
+                throw new FileNotFoundException("'" + PROPERTIES_FILENAME + "' not found in classpath");
+            }
+
+            packageID = prop.getProperty(name + ".package", packageID).trim();
+            classificationGroup = prop.getProperty(name + ".group", classificationGroup).trim();
+            filePrefix = prop.getProperty(name + ".prefix", filePrefix).trim();
+            String exclude = prop.getProperty(name + ".exclude");
+            if (exclude != null) {
+                excluded = new HashSet<>();
+                for (String resource : exclude.split(",")) {
+                    if (!resource.trim().isEmpty()) {
+                        excluded.add(resource.trim());
+                    }
+                }
+            }
+            since = prop.getProperty(name + ".since", (since == null) ? "" : since).trim();
+            since = since.isEmpty() ? null : since;
+            deviceColumn = prop.getProperty(name + ".devicecolumn", deviceColumn).trim();
+            channelColumn = prop.getProperty(name + ".channelcolumn", channelColumn).trim();
+            timeColumn = prop.getProperty(name + ".timecolumn", timeColumn).trim();
+            valueColumn = prop.getProperty(name + ".valuecolumn", valueColumn).trim();
+            int maxRequests = Integer.parseInt(prop.getProperty(name + ".maxrequests", "0").trim());
+            requestPermits = (maxRequests > 0) ? new Semaphore(maxRequests, true) : null;
+        }
+        catch (Exception e){
+            // System.out.println("Error Reading Configuration File: "+ PROPERTIES_FILENAME); // use defaults
+        }
+    }
+
+    /**
+     * @return Every source listed in the configuration file, or BMS and EMS if none are
+     */
+    public static List<DataSource> load(){
+
+        String names = "bms,ems";
+        try (InputStream in = DataSource.class.getClassLoader().getResourceAsStream(PROPERTIES_FILENAME)) {
+            if (in != null) {
+                Properties prop = new Properties();
+                prop.load(in);
+                names = prop.getProperty("sources", names);
+            }
+        }
+        catch (IOException e){
+            // use defaults
+        }
+        List<DataSource> sources = new ArrayList<>();
+        for (String name : names.split(",")) {
+            if (!name.trim().isEmpty()) {
+                sources.add(new DataSource(name.trim().toLowerCase()));
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * @return URL of the package listing of the source's files
+     */
+    public String packageURL(){
+        return PACKAGE_URL + packageID;
+    }
+
+    /**
+     * @param fileNameEnding Ending of a month's file e.g. '-sep-2017'
+     * @return Name of the source's file for the month e.g. 'bms-sep-2017'
+     */
+    public String fileName(String fileNameEnding){
+        return filePrefix + fileNameEnding;
+    }
+
+    /**
+     * List the files of the source which hold readings
+     * @param packageJSON Package listing, as returned by packageURL()
+     * @param file Only list the file with this name; if empty, every file of readings since the source's first month is listed
+     * @return Map of CKAN file IDs to file names
+     */
+    public Map<String, String> listFiles(JSONObject packageJSON, String file){
+
+        JSONArray resources = packageJSON.getJSONObject("result").getJSONArray("resources"); // Array of files in CKAN (JSON Objects)
+        Map<String, String> fileMap = new HashMap<>();
+        for (int i = 0; i < resources.length(); i++) { // for every file name in ckan
+            String fileName = resources.getJSONObject(i).getString("name");
+            if (file.equals("") ? !excluded.contains(fileName) && isSince(fileName) : fileName.equals(file)) {
+                fileMap.put(resources.getJSONObject(i).getString("id"), fileName);
+            }
+        }
+        return fileMap;
+    }
+
+    /**
+     * @return True if the file's month, from its name e.g. 'bms-sep-2017', is no earlier than the source's first month; files not
+     * named by month are only listed if the source has no first month
+     */
+    private boolean isSince(String fileName){
+        if (since == null) {
+            return true;
+        }
+        if (!fileName.startsWith(filePrefix + "-")) {
+            return false;
+        }
+        try {
+            SimpleDateFormat fileFormat = new SimpleDateFormat("MMM-yyyy", Locale.ENGLISH);
+            fileFormat.setLenient(false);
+            String month = new SimpleDateFormat("yyyy-MM").format(fileFormat.parse(fileName.substring(filePrefix.length() + 1)));
+            return month.compareTo(since) >= 0;
+        }
+        catch (ParseException e){
+            return false;
+        }
+    }
+
+    /**
+     * Submit a CKAN request for the source once one of its request permits is available, and then one of the executor's
+     * @param executor Executor CKAN requests are made through
+     * @param url The URL address of the CKAN request
+     * @return The CKAN response as a JSONObject
+     * @throws IOException When CKAN connection could not be established
+     * @throws InterruptedException When interrupted waiting for a request permit
+     */
+    public JSONObject requestJSON(CKANExecutor executor, String url) throws IOException, InterruptedException{
+
+        if (requestPermits == null) {
+            return executor.requestJSON(url);
+        }
+        requestPermits.acquire();
+        try {
+            return executor.requestJSON(url);
+        }
+        finally {
+            requestPermits.release();
+        }
+    }
+
+    /**
+     * @return Columns of a readings query: every column, and each key column under the name the pipeline reads it by, if its name
+     * differs
+     */
+    public String readingColumns(){
+        return "*" + alias(deviceColumn, DEVICE) + alias(channelColumn, CHANNEL) + alias(timeColumn, TIME) + alias(valueColumn, VALUE);
+    }
+
+    private static String alias(String column, String standard){
+        return column.equals(standard) ? "" : ", " + column + " AS " + standard;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public String getClassificationGroup(){
+        return classificationGroup;
+    }
+
+    public String getDeviceColumn(){
+        return deviceColumn;
+    }
+
+    public String getChannelColumn(){
+        return channelColumn;
+    }
+
+    public String getTimeColumn(){
+        return timeColumn;
+    }
+
+    public String getValueColumn(){
+        return valueColumn;
+    }
+}
@@ -1,14 +1,18 @@
 import java.io.*;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.regex.Pattern;
 
 /**
  * Class used for adding records to the EIS quality assurance database in MySQL
  * @Author Ross Newby
  */
-public class Database {
+public class Database implements QualityStore {
 
-    private static String URL = "not set"; // mysql authentication
+    private String URL = "not set"; // mysql authentication; per instance, as staging stores use another schema
     private static String USER = "not set";
     private static String PASSWORD = "not set";
 
@@ -16,14 +20,44 @@ public class Database {
     public static String ERROR_DB_NAME = "errors";
     public static String QUALITY_LOG_DB_NAME = "qualitylog";
     public static String ERROR_LOOKUP_DB_NAME = "errortypelookup";
+    public static String DAILY_ROLLUP_DB_NAME = "errorsdaily";
+    public static String MONTHLY_ROLLUP_DB_NAME = "errorsmonthly";
+    public static String NODE_DB_NAME = "qanodes";
+    public static String LEASE_DB_NAME = "meterleases";
+    public static String FINGERPRINT_DB_NAME = "meterfiles";
+    public static String METER_DAY_DB_NAME = "meterdays";
+    public static String ERROR_BATCH_DB_NAME = "errorbatch"; // temporary; per connection
+
+    static private final String STAGING_SUFFIX = "_staging"; // schemas of the staging and previously published tables
+    static private final String PREVIOUS_SUFFIX = "_previous";
+    static private final String[] PUBLISHED_TABLES = {ASSET_DB_NAME, ERROR_DB_NAME, QUALITY_LOG_DB_NAME, ERROR_LOOKUP_DB_NAME,
+            DAILY_ROLLUP_DB_NAME, MONTHLY_ROLLUP_DB_NAME}; // tables read by dashboards; only these are staged and published
+    static private final Pattern SCHEMA_STATEMENT = Pattern.compile("^\\s*(?:(?:DROP|CREATE)\\s+(?:DATABASE|SCHEMA)|USE)\\b",
+            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE); // statements which act on another schema
+    static private final String[][] DEFERRED_INDEXES = { // secondary indexes of the errors table built after a bulk load, as in eisqualityinit.sql
+            {"asset_errors", "logger_code, logger_channel, timeVal, error_type"},
+            {"type_errors", "error_type, timeVal"},
+            {"time_errors", "timeVal, error_type"}};
 
     static private final int PAD_SIZE = 30; // for printing DB
+    static private final String SPACES = String.format("%"+ PAD_SIZE +"s", "");
+    static private final String BORDER = SPACES.replace(' ', '-');
 
     private Connection con; // mysql DB connection
     private Statement st;
     private ResultSet rs;
+    private volatile boolean bulkLoad = false; // errors are loaded with LOAD DATA; see beginBulkLoad()
+    private String stateSchema = null; // schema of the lease and fingerprint tables, if not this one; the published schema of a staging store
 
     public Database(String hostURL){
+        this(hostURL, false);
+    }
+
+    /**
+     * @param hostURL MySQL URL of the schema
+     * @param localInfile True to allow LOAD DATA LOCAL INFILE on the connection; only for bulk loading a staging schema
+     */
+    private Database(String hostURL, boolean localInfile){
 
         /*Read configuration file; populate variables*/
         this.URL = hostURL;
@@ -49,9 +83,7 @@ public class Database {
         /*Connect to MySQL database*/
         try {
             Class.forName("com.mysql.jdbc.Driver");
-
-            con = DriverManager.getConnection(URL+"?autoReconnect=true&useSSL=false", USER, PASSWORD);
-            st = con.createStatement();
+            connect(localInfile);
         }
         catch (Exception e){
             System.out.println("MySQL Error:");
@@ -59,6 +91,21 @@ public class Database {
         }
     }
 
+    /**
+     * Opens the connection, replacing any open one
+     * @param localInfile True to allow LOAD DATA LOCAL INFILE, by which the server may read any file of the client
+     * @throws SQLException When the connection could not be opened
+     */
+    private void connect(boolean localInfile) throws SQLException{
+        Connection old = con;
+        con = DriverManager.getConnection(URL+"?autoReconnect=true&useSSL=false&rewriteBatchedStatements=true&createDatabaseIfNotExist=true"
+                + (localInfile ? "&allowLoadLocalInfile=true" : ""), USER, PASSWORD);
+        st = con.createStatement();
+        if (old != null) {
+            old.close();
+        }
+    }
+
     /**
      * Adds a record to the erroneous asset table in the EIS quality database
      * @param ware Value to insert into hardware field
@@ -172,6 +219,207 @@ public class Database {
         }
     }
 
+    /**
+     * Adds a batch of records to the errors table in the EIS quality database and adds them to the daily and monthly rollup tables,
+     * in a single transaction. The batch is staged in a temporary table, from which errors already in the errors table are removed;
+     * only the rest are inserted and counted in the rollups, so a batch written twice, e.g. when retried, is only counted once
+     * @param errors Errors to insert
+     * @param metadata Metadata the building code and utility type of each error are looked up in, to group the rollups; may be null
+     * @return The errors inserted, as read back from the staged batch
+     * @throws SQLException When the batch could not be written; nothing is written
+     */
+    public synchronized List<ErrorRecord> addErrors(List<ErrorRecord> errors, MetadataStore metadata) throws SQLException{
+
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        List<ErrorRecord> inserted = new ArrayList<>(); // errors not yet in the table
+        try {
+            /*Stage the batch, less the errors already in the table*/
+            Statement sqlStmt = con.createStatement();
+            sqlStmt.execute("CREATE TEMPORARY TABLE IF NOT EXISTS "+ERROR_BATCH_DB_NAME+" (error_type int NOT NULL, logger_code varchar(100) NOT NULL, " +
+                    "logger_channel varchar(10), timeVal timestamp NOT NULL DEFAULT '1970-01-01 00:00:01', UNIQUE KEY error_info (error_type, logger_code, logger_channel, timeVal))");
+            sqlStmt.executeUpdate("DELETE FROM "+ERROR_BATCH_DB_NAME);
+            if (bulkLoad) {
+                loadErrors(errors, ERROR_BATCH_DB_NAME);
+            }
+            else {
+                PreparedStatement stmt = con.prepareStatement("INSERT IGNORE INTO "+ERROR_BATCH_DB_NAME+" (error_type, logger_code, logger_channel, timeVal) VALUES (?, ?, ?, ?)");
+                for (ErrorRecord err : errors) {
+                    stmt.setInt(1, err.getErrType()); // specify each parameter ('?') in the query
+                    stmt.setString(2, err.getLogCode());
+                    stmt.setString(3, err.getLogChan());
+                    stmt.setTimestamp(4, err.getTime());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                stmt.close();
+            }
+            sqlStmt.executeUpdate("DELETE b FROM "+ERROR_BATCH_DB_NAME+" b JOIN "+ERROR_DB_NAME+" e ON e.error_type = b.error_type AND e.logger_code = b.logger_code " +
+                    "AND e.logger_channel <=> b.logger_channel AND e.timeVal = b.timeVal"); // locks the existing rows, so they are not counted twice
+            ResultSet rSet = sqlStmt.executeQuery("SELECT error_type, logger_code, logger_channel, timeVal FROM "+ERROR_BATCH_DB_NAME);
+            while (rSet.next()) {
+                inserted.add(new ErrorRecord(rSet.getInt(1), rSet.getString(2), rSet.getString(3), rSet.getTimestamp(4)));
+            }
+            rSet.close();
+            sqlStmt.executeUpdate("INSERT INTO "+ERROR_DB_NAME+" (error_type, logger_code, logger_channel, timeVal) " +
+                    "SELECT error_type, logger_code, logger_channel, timeVal FROM "+ERROR_BATCH_DB_NAME);
+            sqlStmt.close();
+            Map<String, Integer> daily = ErrorRecord.countDaily(inserted, metadata); // count new errors for each rollup row
+
+            /*Increment rollups; monthly rows are keyed on the first day of the month*/
+            PreparedStatement dayStmt = con.prepareStatement("INSERT INTO "+DAILY_ROLLUP_DB_NAME+" (day, error_type, building_code, utility_type, error_count) VALUES (?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE error_count = error_count + VALUES(error_count)");
+            PreparedStatement monthStmt = con.prepareStatement("INSERT INTO "+MONTHLY_ROLLUP_DB_NAME+" (month, error_type, building_code, utility_type, error_count) VALUES (?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE error_count = error_count + VALUES(error_count)");
+            for (Map.Entry<String, Integer> entry : daily.entrySet()) {
+                String[] key = entry.getKey().split("\\|", -1);
+                java.sql.Date day = java.sql.Date.valueOf(key[0]);
+                java.sql.Date month = java.sql.Date.valueOf(key[0].substring(0, 8) + "01");
+                for (PreparedStatement rollup : new PreparedStatement[]{dayStmt, monthStmt}) {
+                    rollup.setDate(1, (rollup == dayStmt) ? day : month);
+                    rollup.setInt(2, Integer.parseInt(key[1]));
+                    rollup.setString(3, key[2]);
+                    rollup.setString(4, key[3]);
+                    rollup.setInt(5, entry.getValue());
+                    rollup.addBatch();
+                }
+            }
+            dayStmt.executeBatch();
+            monthStmt.executeBatch();
+            dayStmt.close();
+            monthStmt.close();
+
+            con.commit();
+        }
+        catch (SQLException e){
+            con.rollback();
+            throw e;
+        }
+        finally {
+            con.setAutoCommit(autoCommit);
+        }
+        System.out.println(inserted.size() +" record(s) added to "+ ERROR_DB_NAME);
+        return inserted;
+    }
+
+    /**
+     * Streams errors into a table with LOAD DATA LOCAL INFILE, in MySQL's default text format: tab separated, backslash escaped
+     * and '\N' for NULL. The rows are generated in memory and handed to the driver in place of a file, so nothing is written to
+     * disk. Errors already in the table are ignored
+     * @param errors Errors to load
+     * @param table Table with the error columns of the errors table, e.g. the batch staged by addErrors()
+     * @throws SQLException When the errors could not be loaded
+     */
+    private void loadErrors(List<ErrorRecord> errors, String table) throws SQLException{
+
+        StringBuilder rows = new StringBuilder(errors.size() * 64);
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); // session time zone, as setTimestamp()
+        for (ErrorRecord err : errors) {
+            rows.append(err.getErrType()).append('\t');
+            appendLoadField(rows, err.getLogCode()).append('\t');
+            appendLoadField(rows, err.getLogChan()).append('\t');
+            rows.append(timeFormat.format(err.getTime())).append('\n');
+        }
+        Statement load = con.createStatement();
+        try {
+            load.unwrap(com.mysql.jdbc.Statement.class).setLocalInfileInputStream(new ByteArrayInputStream(rows.toString().getBytes(StandardCharsets.UTF_8)));
+            load.executeUpdate("LOAD DATA LOCAL INFILE 'errors.tsv' IGNORE INTO TABLE "+table+" CHARACTER SET utf8 (error_type, logger_code, logger_channel, timeVal)");
+        }
+        finally {
+            load.close();
+        }
+    }
+
+    /**
+     * Appends a value to a LOAD DATA row, escaping tabs, line breaks and backslashes; NULL is '\N'
+     */
+    private static StringBuilder appendLoadField(StringBuilder row, String value){
+        if (value == null) {
+            return row.append("\\N");
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\t': row.append("\\t"); break;
+                case '\n': row.append("\\n"); break;
+                case '\r': row.append("\\r"); break;
+                case '\\': row.append("\\\\"); break;
+                default: row.append(c);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Makes sure the errors table has a monthly partition for every month up to and including the month after the given date, by
+     * splitting the catch-all 'pmax' partition. Partitions are named 'pYYYYMM'
+     * @param upTo Date which must be covered by a monthly partition
+     */
+    public void addMonthlyPartitions(java.util.Date upTo){
+        try {
+            /*Find the most recent monthly partition*/
+            Statement sqlStmt = con.createStatement();
+            ResultSet rSet = sqlStmt.executeQuery("SELECT PARTITION_NAME FROM INFORMATION_SCHEMA.PARTITIONS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = '"+ERROR_DB_NAME+"'");
+            String latest = null;
+            while (rSet.next()) {
+                String name = rSet.getString(1);
+                if (name != null && name.matches("p\\d{6}") && (latest == null || name.compareTo(latest) > 0)) {
+                    latest = name;
+                }
+            }
+            rSet.close();
+            if (latest == null) {
+                sqlStmt.close();
+                return; // table is not partitioned by month
+            }
+
+            /*Partitions for every missing month*/
+            Calendar cal = Calendar.getInstance();
+            cal.clear();
+            cal.set(Integer.parseInt(latest.substring(1, 5)), Integer.parseInt(latest.substring(5, 7)) - 1, 1);
+            Calendar last = Calendar.getInstance();
+            last.setTime(upTo);
+            last.add(Calendar.MONTH, 1);
+            SimpleDateFormat nameFormat = new SimpleDateFormat("yyyyMM");
+            SimpleDateFormat boundFormat = new SimpleDateFormat("yyyy-MM-dd 00:00:00");
+            StringBuilder partitions = new StringBuilder();
+            cal.add(Calendar.MONTH, 1);
+            while (cal.get(Calendar.YEAR) * 12 + cal.get(Calendar.MONTH) <= last.get(Calendar.YEAR) * 12 + last.get(Calendar.MONTH)) {
+                String name = "p" + nameFormat.format(cal.getTime());
+                cal.add(Calendar.MONTH, 1);
+                partitions.append("PARTITION ").append(name).append(" VALUES LESS THAN (UNIX_TIMESTAMP('").append(boundFormat.format(cal.getTime())).append("')), ");
+            }
+            if (partitions.length() > 0) {
+                sqlStmt.executeUpdate("ALTER TABLE "+ERROR_DB_NAME+" REORGANIZE PARTITION pmax INTO ("+ partitions +"PARTITION pmax VALUES LESS THAN MAXVALUE)");
+                System.out.println("Added monthly partitions to "+ ERROR_DB_NAME); // debug
+            }
+            sqlStmt.close();
+        }
+        catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds a batch of records to the erroneous asset table in the EIS quality database; assets already in the table have their
+     * most recent error time updated
+     * @param assets Assets to insert
+     * @throws SQLException When the batch could not be written
+     */
+    public synchronized void addAssets(List<AssetRecord> assets) throws SQLException{
+
+        PreparedStatement stmt = con.prepareStatement("INSERT INTO "+ASSET_DB_NAME+" (hardware, logger_code, logger_channel, utility_type, most_recent_error) VALUES(?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE most_recent_error = GREATEST(most_recent_error, VALUES(most_recent_error))"); // order independent, for parallel runs
+        for (AssetRecord asset : assets) {
+            stmt.setString(1, asset.getWare()); // specify each parameter ('?') in the query
+            stmt.setString(2, asset.getLogCode());
+            stmt.setString(3, asset.getLogChan());
+            stmt.setString(4, asset.getUtil());
+            stmt.setTimestamp(5, asset.getTime());
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+        stmt.close();
+        System.out.println(assets.size() +" record(s) added to "+ ASSET_DB_NAME);
+    }
+
     /**
      * Adds a record to the quality log table in the EIS quality database
      * @param assets Total number of hardware devices on the system
@@ -179,7 +427,7 @@ public class Database {
      * @param errors Total number of individual errors
      * @param time Time at which this quality test occurred
      */
-    public void addLog(int assets, int erroneousAssets, int errors, Timestamp time){
+    public synchronized void addLog(int assets, int erroneousAssets, int errors, Timestamp time){
         try {
             PreparedStatement stmt = con.prepareStatement("INSERT INTO "+QUALITY_LOG_DB_NAME+" (total_assets, erroneous_assets, error_count, timeVal) VALUES(?, ?, ?, ?)");
             stmt.setInt(1, assets); // specify each parameter ('?') in the query
@@ -211,6 +459,530 @@ public class Database {
         System.out.println(i +" record(s) added to "+ ERROR_LOOKUP_DB_NAME);
     }
 
+    /**
+     * Reads the key of every error in the errors table into a filter of known errors; rows are streamed rather than held in memory,
+     * on a separate connection, as a streaming result blocks every other statement on its connection until it is read
+     * @param filter Filter to add the error keys to
+     * @return Number of errors read, or -1 if the method fails
+     */
+    public int loadKnownErrors(KnownErrorFilter filter){
+        try (Connection readCon = openReader("")) {
+            Statement sqlStmt = readCon.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            sqlStmt.setFetchSize(Integer.MIN_VALUE); // stream rows one at a time (MySQL Connector/J)
+            ResultSet rSet = sqlStmt.executeQuery("SELECT error_type, logger_code, logger_channel, timeVal FROM "+ERROR_DB_NAME);
+            int n = 0;
+            while (rSet.next()) {
+                filter.add(rSet.getInt(1), rSet.getString(2), rSet.getString(3), rSet.getTimestamp(4));
+                n++;
+            }
+            rSet.close();
+            sqlStmt.close();
+            return n;
+        }
+        catch (Exception e){
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the fingerprint of every meter and file last analysed; streamed on a separate connection, as loadKnownErrors()
+     * @param into Map to add fingerprints to, by FileFingerprint.getKey()
+     * @return Number of fingerprints read, or -1 if the method fails
+     */
+    public int loadFingerprints(Map<String, FileFingerprint> into){
+        try (Connection readCon = openReader("")) {
+            Statement sqlStmt = readCon.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            sqlStmt.setFetchSize(Integer.MIN_VALUE); // stream rows one at a time (MySQL Connector/J)
+            ResultSet rSet = sqlStmt.executeQuery("SELECT logger_code, logger_channel, file_id, row_count, latest, content_hash FROM "+state(FINGERPRINT_DB_NAME));
+            int n = 0;
+            while (rSet.next()) {
+                FileFingerprint fp = new FileFingerprint(rSet.getString(1), rSet.getString(2), rSet.getString(3), rSet.getInt(4), rSet.getString(5), rSet.getLong(6));
+                into.put(fp.getKey(), fp);
+                n++;
+            }
+            rSet.close();
+            sqlStmt.close();
+            return n;
+        }
+        catch (Exception e){
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Adds or replaces the fingerprints of meters and files which have been analysed
+     * @param fingerprints Fingerprints to write
+     * @throws SQLException When the batch could not be written
+     */
+    public synchronized void addFingerprints(List<FileFingerprint> fingerprints) throws SQLException{
+
+        PreparedStatement stmt = con.prepareStatement("INSERT INTO "+state(FINGERPRINT_DB_NAME)+" (logger_code, logger_channel, file_id, row_count, latest, content_hash, checked) VALUES(?, ?, ?, ?, ?, ?, NOW()) " +
+                "ON DUPLICATE KEY UPDATE row_count = VALUES(row_count), latest = VALUES(latest), content_hash = VALUES(content_hash), checked = VALUES(checked)");
+        for (FileFingerprint fp : fingerprints) {
+            stmt.setString(1, fp.getLogCode()); // specify each parameter ('?') in the query
+            stmt.setString(2, fp.getLogChan());
+            stmt.setString(3, fp.getFileID());
+            stmt.setInt(4, fp.getRows());
+            stmt.setString(5, fp.getLatest());
+            stmt.setLong(6, fp.getHash());
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+        stmt.close();
+    }
+
+    /**
+     * Reads the daily rollups of a meter's readings
+     * @param logCode Meter's logger code
+     * @param logChan Meter's logger channel
+     * @return Rollup of every day the meter has readings for, oldest first
+     * @throws SQLException When the table could not be read
+     */
+    public synchronized List<MeterDay> getMeterDays(String logCode, String logChan) throws SQLException{
+
+        List<MeterDay> days = new ArrayList<>();
+        PreparedStatement stmt = con.prepareStatement("SELECT day, readings, min_value, max_value, sum_value, negatives, first_reading, last_reading FROM "+METER_DAY_DB_NAME+
+                " WHERE logger_code = ? AND logger_channel = ? ORDER BY day");
+        stmt.setString(1, logCode);
+        stmt.setString(2, logChan);
+        ResultSet rSet = stmt.executeQuery();
+        while (rSet.next()) {
+            double min = rSet.getDouble(3);
+            min = rSet.wasNull() ? Double.NaN : min;
+            double max = rSet.getDouble(4);
+            max = rSet.wasNull() ? Double.NaN : max;
+            days.add(new MeterDay(rSet.getDate(1).toString(), rSet.getInt(2), min, max, rSet.getDouble(5), rSet.getInt(6), rSet.getString(7), rSet.getString(8)));
+        }
+        rSet.close();
+        stmt.close();
+        return days;
+    }
+
+    /**
+     * Adds or replaces the daily rollups of a meter's readings
+     * @param logCode Meter's logger code
+     * @param logChan Meter's logger channel
+     * @param days Rollups to write; each replaces any stored rollup of the same day
+     * @throws SQLException When the batch could not be written
+     */
+    public synchronized void addMeterDays(String logCode, String logChan, Collection<MeterDay> days) throws SQLException{
+
+        PreparedStatement stmt = con.prepareStatement("INSERT INTO "+state(METER_DAY_DB_NAME)+" (logger_code, logger_channel, day, readings, min_value, max_value, sum_value, negatives, first_reading, last_reading) " +
+                "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE readings = VALUES(readings), min_value = VALUES(min_value), max_value = VALUES(max_value), " +
+                "sum_value = VALUES(sum_value), negatives = VALUES(negatives), first_reading = VALUES(first_reading), last_reading = VALUES(last_reading)");
+        for (MeterDay day : days) {
+            stmt.setString(1, logCode); // specify each parameter ('?') in the query
+            stmt.setString(2, logChan);
+            stmt.setDate(3, java.sql.Date.valueOf(day.getDay()));
+            stmt.setInt(4, day.getReadings());
+            stmt.setObject(5, Double.isNaN(day.getMin()) ? null : day.getMin(), Types.DOUBLE);
+            stmt.setObject(6, Double.isNaN(day.getMax()) ? null : day.getMax(), Types.DOUBLE);
+            stmt.setDouble(7, day.getSum());
+            stmt.setInt(8, day.getNegatives());
+            stmt.setString(9, day.getFirst());
+            stmt.setString(10, day.getLast());
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+        stmt.close();
+    }
+
+    /**
+     * Reads the most recent records from the quality log table, most recent first
+     * @param limit Maximum number of records to read
+     * @return Rows as maps of column name to value
+     * @throws SQLException When the table could not be read
+     */
+    public List<Map<String, Object>> getQualityLogs(int limit) throws SQLException{
+        return readRows("SELECT total_assets, erroneous_assets, error_count, timeVal FROM "+QUALITY_LOG_DB_NAME+" ORDER BY timeVal DESC, id DESC LIMIT "+ limit);
+    }
+
+    /**
+     * Reads every record from the erroneous asset table
+     * @return Rows as maps of column name to value
+     * @throws SQLException When the table could not be read
+     */
+    public List<Map<String, Object>> getAssets() throws SQLException{
+        return readRows("SELECT hardware, logger_code, logger_channel, utility_type, most_recent_error FROM "+ASSET_DB_NAME);
+    }
+
+    /**
+     * Counts errors of each type for every asset; answered from the errors table's asset index
+     * @return Rows of logger_code, logger_channel, error_type, error_count and latest
+     * @throws SQLException When the table could not be read
+     */
+    public List<Map<String, Object>> getAssetErrorCounts() throws SQLException{
+        return readRows("SELECT logger_code, logger_channel, error_type, COUNT(*) AS error_count, MAX(timeVal) AS latest FROM "+ERROR_DB_NAME+" GROUP BY logger_code, logger_channel, error_type");
+    }
+
+    /**
+     * Reads every record from the error type lookup table
+     * @return Rows of id and description
+     * @throws SQLException When the table could not be read
+     */
+    public List<Map<String, Object>> getLookups() throws SQLException{
+        return readRows("SELECT id, description FROM "+ERROR_LOOKUP_DB_NAME+" ORDER BY id");
+    }
+
+    /**
+     * Reads every record from the daily error rollup table, oldest first
+     * @return Rows of day, error_type, building_code, utility_type and error_count
+     * @throws SQLException When the table could not be read
+     */
+    public List<Map<String, Object>> getDailyRollups() throws SQLException{
+        return readRows("SELECT day, error_type, building_code, utility_type, error_count FROM "+DAILY_ROLLUP_DB_NAME+" ORDER BY day");
+    }
+
+    /**
+     * Reads when each meter was last analysed, from the fingerprints of its files
+     * @return Rows of logger_code, logger_channel and checked
+     * @throws SQLException When the table could not be read
+     */
+    public List<Map<String, Object>> getMeterChecks() throws SQLException{
+        return readRows("SELECT logger_code, logger_channel, MAX(checked) AS checked FROM "+state(FINGERPRINT_DB_NAME)+" GROUP BY logger_code, logger_channel");
+    }
+
+    /**
+     * Registers a node as live, or keeps it live, and extends every uncompleted lease it holds. Expiry times use the MySQL
+     * server clock, so nodes need not agree on the time
+     * @param node ID of the node
+     * @param ttlSeconds Seconds the node and its leases live without another heartbeat
+     * @throws SQLException When the node could not be registered
+     */
+    public synchronized void heartbeat(String node, int ttlSeconds) throws SQLException{
+        PreparedStatement stmt = con.prepareStatement("INSERT INTO "+state(NODE_DB_NAME)+" (node_id, expires) VALUES(?, NOW() + INTERVAL ? SECOND) ON DUPLICATE KEY UPDATE expires = VALUES(expires)");
+        stmt.setString(1, node);
+        stmt.setInt(2, ttlSeconds);
+        stmt.executeUpdate();
+        stmt.close();
+
+        stmt = con.prepareStatement("UPDATE "+state(LEASE_DB_NAME)+" SET expires = NOW() + INTERVAL ? SECOND WHERE node_id = ? AND completed = FALSE");
+        stmt.setInt(1, ttlSeconds);
+        stmt.setString(2, node);
+        stmt.executeUpdate();
+        stmt.close();
+    }
+
+    /**
+     * @return IDs of every node whose heartbeat has not expired, in order
+     * @throws SQLException When the nodes could not be read
+     */
+    public synchronized List<String> getLiveNodes() throws SQLException{
+        List<String> nodes = new ArrayList<>();
+        for (Map<String, Object> row : readRows("SELECT node_id FROM "+state(NODE_DB_NAME)+" WHERE expires > NOW() ORDER BY node_id")) {
+            nodes.add((String) row.get("node_id"));
+        }
+        return nodes;
+    }
+
+    /**
+     * Takes the lease on a meter for a run if it is free, expired or already held by the node. The upsert is a single atomic
+     * statement; node_id is assigned before expires, so the second assignment sees whether this node won the lease
+     * @param run Key of the run
+     * @param logCode Logger code of the meter
+     * @param logChan Logger channel of the meter
+     * @param node ID of the node
+     * @param ttlSeconds Seconds the lease lives without a heartbeat
+     * @return State of the lease
+     * @throws SQLException When the lease could not be read or written
+     */
+    public synchronized LeaseState acquireLease(String run, String logCode, String logChan, String node, int ttlSeconds) throws SQLException{
+        PreparedStatement stmt = con.prepareStatement("INSERT INTO "+state(LEASE_DB_NAME)+" (run_key, logger_code, logger_channel, node_id, expires) VALUES(?, ?, ?, ?, NOW() + INTERVAL ? SECOND) " +
+                "ON DUPLICATE KEY UPDATE node_id = IF(completed = FALSE AND expires < NOW(), VALUES(node_id), node_id), " +
+                "expires = IF(completed = FALSE AND node_id = VALUES(node_id), VALUES(expires), expires)");
+        stmt.setString(1, run);
+        stmt.setString(2, logCode);
+        stmt.setString(3, (logChan == null) ? "" : logChan);
+        stmt.setString(4, node);
+        stmt.setInt(5, ttlSeconds);
+        stmt.executeUpdate();
+        stmt.close();
+
+        stmt = con.prepareStatement("SELECT node_id, completed FROM "+state(LEASE_DB_NAME)+" WHERE run_key = ? AND logger_code = ? AND logger_channel = ?");
+        stmt.setString(1, run);
+        stmt.setString(2, logCode);
+        stmt.setString(3, (logChan == null) ? "" : logChan);
+        ResultSet rSet = stmt.executeQuery();
+        LeaseState state = LeaseState.HELD;
+        if (rSet.next()) {
+            state = rSet.getBoolean("completed") ? LeaseState.COMPLETED : node.equals(rSet.getString("node_id")) ? LeaseState.ACQUIRED : LeaseState.HELD;
+        }
+        rSet.close();
+        stmt.close();
+        return state;
+    }
+
+    /**
+     * Marks a meter as tested in a run, if the node still holds its lease; a lease which has expired, or been taken over by
+     * another node, is not completed
+     * @param run Key of the run
+     * @param logCode Logger code of the meter
+     * @param logChan Logger channel of the meter
+     * @param node ID of the node
+     * @return True if the lease was completed
+     * @throws SQLException When the lease could not be written
+     */
+    public synchronized boolean completeLease(String run, String logCode, String logChan, String node) throws SQLException{
+        PreparedStatement stmt = con.prepareStatement("UPDATE "+state(LEASE_DB_NAME)+" SET completed = TRUE WHERE run_key = ? AND logger_code = ? AND logger_channel = ? AND node_id = ? " +
+                "AND (completed = TRUE OR expires > NOW())"); // matched rows are counted, so completing twice still succeeds
+        stmt.setString(1, run);
+        stmt.setString(2, logCode);
+        stmt.setString(3, (logChan == null) ? "" : logChan);
+        stmt.setString(4, node);
+        int rows = stmt.executeUpdate();
+        stmt.close();
+        return rows > 0;
+    }
+
+    /**
+     * Removes a node and expires its uncompleted leases, so other nodes can take them immediately
+     * @param node ID of the node
+     * @throws SQLException When the node could not be removed
+     */
+    public synchronized void releaseNode(String node) throws SQLException{
+        PreparedStatement stmt = con.prepareStatement("DELETE FROM "+state(NODE_DB_NAME)+" WHERE node_id = ?");
+        stmt.setString(1, node);
+        stmt.executeUpdate();
+        stmt.close();
+
+        stmt = con.prepareStatement("UPDATE "+state(LEASE_DB_NAME)+" SET expires = NOW() - INTERVAL 1 SECOND WHERE node_id = ? AND completed = FALSE");
+        stmt.setString(1, node);
+        stmt.executeUpdate();
+        stmt.close();
+    }
+
+    /**
+     * Deletes leases which expired more than the given number of days ago
+     * @param days Age in days
+     * @throws SQLException When the leases could not be deleted
+     */
+    public synchronized void purgeLeases(int days) throws SQLException{
+        PreparedStatement stmt = con.prepareStatement("DELETE FROM "+state(LEASE_DB_NAME)+" WHERE expires < NOW() - INTERVAL ? DAY");
+        stmt.setInt(1, days);
+        stmt.executeUpdate();
+        stmt.close();
+    }
+
+    /**
+     * Counts the leases of a run which have not been completed, e.g. of meters still being tested or whose test failed
+     * @param run Key of the run
+     * @return Number of uncompleted leases
+     * @throws SQLException When the leases could not be read
+     */
+    public synchronized int getOpenLeaseCount(String run) throws SQLException{
+        PreparedStatement stmt = con.prepareStatement("SELECT COUNT(*) FROM "+state(LEASE_DB_NAME)+" WHERE run_key = ? AND completed = FALSE");
+        stmt.setString(1, run);
+        ResultSet rSet = stmt.executeQuery();
+        int count = rSet.next() ? rSet.getInt(1) : 0;
+        rSet.close();
+        stmt.close();
+        return count;
+    }
+
+    /**
+     * Deletes every lease of a run, so it starts again from the first meter
+     * @param run Key of the run
+     * @throws SQLException When the leases could not be deleted
+     */
+    public synchronized void clearLeases(String run) throws SQLException{
+        PreparedStatement stmt = con.prepareStatement("DELETE FROM "+state(LEASE_DB_NAME)+" WHERE run_key = ?");
+        stmt.setString(1, run);
+        stmt.executeUpdate();
+        stmt.close();
+    }
+
+    /**
+     * Runs a query and reads every row of the result
+     * @param sql Query to run
+     * @return Rows as maps of column label to value, in column order
+     * @throws SQLException When the query failed
+     */
+    private synchronized List<Map<String, Object>> readRows(String sql) throws SQLException{
+        List<Map<String, Object>> rows = new ArrayList<>();
+        Statement sqlStmt = con.createStatement();
+        ResultSet rSet = sqlStmt.executeQuery(sql);
+        ResultSetMetaData mData = rSet.getMetaData();
+        while (rSet.next()) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int j = 1; j <= mData.getColumnCount(); j++) {
+                row.put(mData.getColumnLabel(j), rSet.getObject(j));
+            }
+            rows.add(row);
+        }
+        rSet.close();
+        sqlStmt.close();
+        return rows;
+    }
+
+    /**
+     * Create the quality database schema by executing the schema script in this connection's own schema; statements which would
+     * drop, create or switch schemas are skipped, so creating a staging schema never touches the published one
+     * @param scriptPath File path to SQL scripts
+     * @throws SQLException SQL syntax error in specified filepath
+     * @throws FileNotFoundException Could not find file for specified filepath
+     */
+    public void createSchema(String scriptPath) throws SQLException, FileNotFoundException {
+        executeSQLScript(scriptPath, true);
+    }
+
+    /**
+     * @return A new connection to the same database, for a writer thread
+     */
+    public QualityStore openWriter(){
+        Database writer = new Database(URL, bulkLoad);
+        writer.bulkLoad = bulkLoad;
+        writer.stateSchema = stateSchema;
+        return writer;
+    }
+
+    /**
+     * Drops the secondary indexes of the errors table, which only serve reads, and loads errors with LOAD DATA until
+     * endBulkLoad(). Its unique key is kept, so errors are still written once. Indexes already dropped, e.g. by an initialisation
+     * being resumed, are skipped. Only a staging schema is bulk loaded; its connection is reopened to allow LOAD DATA LOCAL INFILE,
+     * as are writers opened from it until the load ends
+     */
+    public synchronized void beginBulkLoad() throws SQLException{
+
+        if (!con.getCatalog().endsWith(STAGING_SUFFIX)) {
+            throw new SQLException("Only a staging schema is bulk loaded, not '"+ con.getCatalog() +"'");
+        }
+        connect(true);
+
+        List<String> existing = tableIndexes(ERROR_DB_NAME);
+        StringBuilder drop = new StringBuilder();
+        for (String[] index : DEFERRED_INDEXES) {
+            if (existing.contains(index[0])) {
+                drop.append((drop.length() == 0) ? "" : ", ").append("DROP KEY `"+ index[0] +"`");
+            }
+        }
+        if (drop.length() > 0) {
+            st.executeUpdate("ALTER TABLE "+ERROR_DB_NAME+" "+ drop);
+        }
+        bulkLoad = true;
+    }
+
+    /**
+     * Builds every missing secondary index of the errors table with a single ALTER TABLE, so InnoDB sorts the loaded rows once per
+     * index rather than maintaining the indexes row by row
+     */
+    public synchronized void endBulkLoad() throws SQLException{
+
+        List<String> existing = tableIndexes(ERROR_DB_NAME);
+        StringBuilder add = new StringBuilder();
+        for (String[] index : DEFERRED_INDEXES) {
+            if (!existing.contains(index[0])) {
+                add.append((add.length() == 0) ? "" : ", ").append("ADD KEY `"+ index[0] +"` ("+ index[1] +")");
+            }
+        }
+        if (add.length() > 0) {
+            st.executeUpdate("ALTER TABLE "+ERROR_DB_NAME+" "+ add);
+        }
+        bulkLoad = false;
+        connect(false);
+    }
+
+    /**
+     * @return Name of every index of a table in this schema
+     */
+    private List<String> tableIndexes(String table) throws SQLException{
+        List<String> indexes = new ArrayList<>();
+        PreparedStatement stmt = con.prepareStatement("SELECT DISTINCT index_name FROM information_schema.statistics WHERE table_schema = DATABASE() AND table_name = ?");
+        stmt.setString(1, table);
+        ResultSet rSet = stmt.executeQuery();
+        while (rSet.next()) {
+            indexes.add(rSet.getString(1));
+        }
+        rSet.close();
+        stmt.close();
+        return indexes;
+    }
+
+    /**
+     * Opens the staging schema alongside this one, e.g. 'eisquality_staging', creating it if it does not exist; existing staging
+     * tables are kept, so an interrupted rebuild can be resumed. The staging store reads and writes leases, nodes, fingerprints
+     * and meter days in this schema, so nodes coordinate through the same tables before and after the staging tables are published
+     * @return Store of the staging schema
+     * @throws SQLException When the schema could not be created
+     */
+    public QualityStore openStaging() throws SQLException{
+        st.executeUpdate("CREATE DATABASE IF NOT EXISTS `"+ con.getCatalog() + STAGING_SUFFIX +"`");
+        Database staging = new Database(URL.substring(0, URL.lastIndexOf('/') + 1) + con.getCatalog() + STAGING_SUFFIX);
+        staging.stateSchema = con.getCatalog();
+        return staging;
+    }
+
+    /**
+     * @param table Name of a lease or fingerprint table
+     * @return The table's name, qualified by the schema which holds it if that is not this one
+     */
+    private String state(String table){
+        return (stateSchema == null) ? table : "`"+ stateSchema +"`."+ table;
+    }
+
+    /**
+     * @return True if the staging schema holds tables which have not been published
+     * @throws SQLException When the schema could not be read
+     */
+    public boolean hasStaging() throws SQLException{
+        List<String> tables = schemaTables(con.getCatalog() + STAGING_SUFFIX);
+        tables.retainAll(Arrays.asList(PUBLISHED_TABLES));
+        return !tables.isEmpty();
+    }
+
+    /**
+     * Publishes the staging tables with a single RENAME TABLE, which MySQL applies atomically: readers see either every old table
+     * or every new one. The replaced tables are kept in the previous schema, e.g. 'eisquality_previous', until the next publish.
+     * Only the tables read by dashboards are swapped; leases, nodes, fingerprints and meter days stay where they are
+     * @param staging Store returned by openStaging(); no longer usable once published
+     * @throws SQLException When the tables could not be renamed; the published tables are then unchanged
+     */
+    public synchronized void publish(QualityStore staging) throws SQLException{
+
+        String live = con.getCatalog();
+        String stage = live + STAGING_SUFFIX;
+        String previous = live + PREVIOUS_SUFFIX;
+        List<String> tables = schemaTables(stage);
+        tables.retainAll(Arrays.asList(PUBLISHED_TABLES)); // e.g. not the lease tables of a staging schema created before they were kept here
+        if (tables.isEmpty()) {
+            throw new SQLException("No staging tables in '"+ stage +"'; already published?");
+        }
+
+        /*Drop the tables replaced by the last publish*/
+        st.executeUpdate("CREATE DATABASE IF NOT EXISTS `"+ previous +"`");
+        for (String table : schemaTables(previous)) {
+            st.executeUpdate("DROP TABLE `"+ previous +"`.`"+ table +"`");
+        }
+
+        /*Swap every dashboard table at once*/
+        List<String> current = schemaTables(live);
+        StringBuilder rename = new StringBuilder();
+        for (String table : tables) {
+            if (current.contains(table)) {
+                rename.append((rename.length() == 0) ? "" : ", ").append("`"+ live +"`.`"+ table +"` TO `"+ previous +"`.`"+ table +"`");
+            }
+            rename.append((rename.length() == 0) ? "" : ", ").append("`"+ stage +"`.`"+ table +"` TO `"+ live +"`.`"+ table +"`");
+        }
+        st.executeUpdate("RENAME TABLE " + rename);
+    }
+
+    /**
+     * @return Name of every table in a schema on this server
+     */
+    private List<String> schemaTables(String schema) throws SQLException{
+        List<String> tables = new ArrayList<>();
+        PreparedStatement stmt = con.prepareStatement("SELECT table_name FROM information_schema.tables WHERE table_schema = ? AND table_type = 'BASE TABLE'");
+        stmt.setString(1, schema);
+        ResultSet rSet = stmt.executeQuery();
+        while (rSet.next()) {
+            tables.add(rSet.getString(1));
+        }
+        rSet.close();
+        stmt.close();
+        return tables;
+    }
+
     /**
      * Retrieves the number of records found in a table
      * @param tableName Name of the table you wish to query
@@ -236,6 +1008,15 @@ public class Database {
      * @throws FileNotFoundException Could not find file for specified filepath
      */
     public int executeSQLScript(String path) throws SQLException, FileNotFoundException {
+        return executeSQLScript(path, false);
+    }
+
+    /**
+     * Executes a set of SQL statements from file, as above
+     * @param path File path to SQL scripts
+     * @param thisSchema True to skip statements which drop, create or switch schemas, so the script only runs in this schema
+     */
+    private int executeSQLScript(String path, boolean thisSchema) throws SQLException, FileNotFoundException {
 
         try {
             FileReader fr = new FileReader(new File(path));
@@ -245,7 +1026,7 @@ public class Database {
 
             while((s = br.readLine()) != null)
             {
-                sb.append(s);
+                sb.append(s).append("\n");
             }
             br.close();
 
@@ -257,7 +1038,7 @@ public class Database {
             {
                 // we ensure that there is no spaces before or after the request string
                 // in order to not execute empty statements
-                if(!inst[i].trim().equals(""))
+                if(!inst[i].trim().equals("") && !(thisSchema && SCHEMA_STATEMENT.matcher(inst[i]).find()))
                 {
                     st.executeUpdate(inst[i]);
                     // System.out.println(">>"+inst[i]); // print commands as they execute
@@ -280,31 +1061,109 @@ public class Database {
     }
 
     /**
-     * Prints all tables in database; used for debugging and referencing
+     * Streams every row of a table to a channel as CSV (with a header row) or JSON Lines. Rows are read through a server-side cursor
+     * on a separate connection, a fetch size at a time, and written through a fixed size buffer; memory use does not depend on
+     * the size of the table
+     * @param tableName Name of the table to export; must be a table in the database
+     * @param format 'csv' or 'jsonl'
+     * @param out Channel to write to; not closed by this method
+     * @param fetchSize Number of rows fetched from MySQL at a time
+     * @return Number of rows written
+     * @throws SQLException When the table could not be read
+     * @throws IOException When the channel could not be written
      */
-    public void printDatabase() {
-        //find out what all the table names in the database are
-        ArrayList<String> tables = new ArrayList<>();
-        try {
-            DatabaseMetaData md = con.getMetaData();
+    public long exportTable(String tableName, String format, WritableByteChannel out, int fetchSize) throws SQLException, IOException{
+
+        if (!getTableNames().contains(tableName)) {
+            throw new SQLException("No table '"+ tableName +"' in database");
+        }
 
-            String[] types = {"TABLE"};
-            ResultSet rs = md.getTables(null, null, null, types);
+        try (Connection cursorCon = openReader("&useCursorFetch=true");
+             Statement sqlStmt = cursorCon.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
 
-            while (rs.next()) { //read in all tables in the database
-                tables.add(rs.getString(3));
+            sqlStmt.setFetchSize(Math.max(1, fetchSize)); // server-side cursor; only this many rows held in the client
+            ResultSet rSet = sqlStmt.executeQuery("SELECT * FROM "+ tableName);
+            ResultSetMetaData mData = rSet.getMetaData();
+            int nCols = mData.getColumnCount();
+            String[] names = new String[nCols];
+            boolean[] numeric = new boolean[nCols];
+            for (int j = 0; j < nCols; j++) {
+                names[j] = mData.getColumnLabel(j + 1);
+                switch (mData.getColumnType(j + 1)) {
+                    case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+                    case Types.FLOAT: case Types.REAL: case Types.DOUBLE: case Types.DECIMAL: case Types.NUMERIC:
+                        numeric[j] = true;
+                        break;
+                    default:
+                        numeric[j] = false;
+                }
             }
 
-            rs.close();
+            RowWriter writer = new RowWriter(out, format, names, numeric);
+            String[] values = new String[nCols]; // reused for every row
+            while (rSet.next()) {
+                for (int j = 0; j < nCols; j++) {
+                    values[j] = rSet.getString(j + 1);
+                }
+                writer.write(values);
+            }
+            rSet.close();
+            return writer.flush(); // channel is left open for the caller
+        }
+    }
+
+    /**
+     * Opens a connection of its own for reading a whole table, so a streaming result does not block the statements of the shared
+     * connection, e.g. leases and meter days
+     * @param options Further connection options, e.g. '&amp;useCursorFetch=true'
+     * @return The connection; to be closed by the caller
+     * @throws SQLException When the connection could not be opened
+     */
+    private Connection openReader(String options) throws SQLException{
+        return DriverManager.getConnection(URL+"?useSSL=false"+ options, USER, PASSWORD);
+    }
+
+    /**
+     * @return Names of every table in the database
+     * @throws SQLException When the database metadata could not be read
+     */
+    public List<String> getTableNames() throws SQLException{
+        ArrayList<String> tables = new ArrayList<>();
+        DatabaseMetaData md = con.getMetaData();
+        ResultSet rs = md.getTables(null, null, null, new String[]{"TABLE"});
+        while (rs.next()) { //read in all tables in the database
+            tables.add(rs.getString(3));
+        }
+        rs.close();
+        return tables;
+    }
+
+    /**
+     * Prints all tables in database; used for debugging and referencing
+     */
+    public void printDatabase() {
+        //find out what all the table names in the database are
+        List<String> tables = new ArrayList<>();
+        try {
+            tables = getTableNames();
         } catch (Exception e) {
             e.printStackTrace();
         }
 
+        Connection printCon; // rows are streamed, which blocks every other statement on the connection; not the writers' connection
+        try {
+            printCon = openReader("");
+        }
+        catch (SQLException e){
+            e.printStackTrace();
+            return;
+        }
         for (int i = 0; i < tables.size(); i++) {
             ArrayList<String> cols = new ArrayList<>();
 
             try {
-                Statement sqlStmt = con.createStatement();
+                Statement sqlStmt = printCon.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                sqlStmt.setFetchSize(Integer.MIN_VALUE); // stream rows rather than hold the table in memory
 
                 String sqlCmdStr = ("select * from " + tables.get(i));
                 ResultSet rSet = sqlStmt.executeQuery(sqlCmdStr);
@@ -340,7 +1199,7 @@ public class Database {
                 //read and print every row in the table
                 while (rSet.next()) {
                     for (int j = 0; j < cols.size(); j++) {
-                        String item = rSet.getString(cols.get(j));
+                        String item = rSet.getString(j + 1);
                         System.out.print(" | " + pad(item));
                     }
                     System.out.println(" | ");
@@ -360,36 +1219,28 @@ public class Database {
             }
             System.out.println("");
         }
+        try {
+            printCon.close();
+        }
+        catch (SQLException e){
+            // already closed
+        }
     }
 
     /**
-     * This method takes a String, converts it into an array of bytes; copies those bytes
-     * into a bigger byte array (STR_SIZE worth), and pads any remaining bytes with spaces.
-     * Finally, it converts the bigger byte array back into a String.
+     * This method takes a String and extends it with spaces, or crops it, to the length of PAD_SIZE. Empty strings are filled
+     * with '-' characters, used for borders
      * @param in String to pad
-     * @return Input string extended or cropped to the length of STR_SIZE
+     * @return Input string extended or cropped to the length of PAD_SIZE
      */
     private String pad(String in) {
 
-        if (in == null){
-            in = "";
-        }
-
-        byte[] org_bytes = in.getBytes();
-        byte[] new_bytes = new byte[PAD_SIZE];
-        int upb = in.length();
-
-        if (upb > PAD_SIZE)
-            upb = PAD_SIZE;
-
-        for (int i = 0; i < upb; i++) {
-            new_bytes[i] = org_bytes[i];
+        if (in == null || in.equals("")){
+            return BORDER;
         }
-
-        for (int i = upb; i < PAD_SIZE; i++) {
-            new_bytes[i] = (byte) ((in.equals("")) ? '-' : ' ');
+        if (in.length() >= PAD_SIZE) {
+            return in.substring(0, PAD_SIZE);
         }
-
-        return new String(new_bytes);
+        return in + SPACES.substring(in.length());
     }
 }
@@ -0,0 +1,169 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Batches the daily rollup and filter queries of meters on the same logger device. Loggers often have many channels, so rather than
+ * searching a file for the same device once per channel, the first meter of a device to need a file queries it for a group of
+ * the device's channels with 'module_key IN (...)'; the results are split by channel, and the device's other meters take their
+ * share without querying CKAN. Meters waiting on a query in progress block until it completes. A fetcher lasts for one run, so
+ * results for meters which are never tested, e.g. those tested by another node, are freed with it
+ * @Author Ross Newby
+ */
+public class DeviceBatchFetcher {
+
+    private static final String DAILY = "daily";
+    private static final String NEGATIVE = "negative";
+
+    private final CKANExecutor executor;
+    private final ReadingQueryPlanner planner;
+    private final Map<String, List<String>> channelsByDevice; // logger code -> channels of meters in the run, in test order
+    private final ConcurrentHashMap<String, List<List<String>>> groups = new ConcurrentHashMap<>(); // file and device -> channel groups
+    private final ConcurrentHashMap<String, FutureTask<Map<String, JSONArray>>> results = new ConcurrentHashMap<>(); // query -> rows by channel
+
+    /**
+     * @param executor Executor CKAN requests are made through
+     * @param planner Planner of the queries
+     * @param channelsByDevice Logger code of each device with the channels of its meters in the run; meters not listed are
+     *                         queried alone
+     */
+    public DeviceBatchFetcher(CKANExecutor executor, ReadingQueryPlanner planner, Map<String, List<String>> channelsByDevice){
+        this.executor = executor;
+        this.planner = planner;
+        this.channelsByDevice = channelsByDevice;
+    }
+
+    /**
+     * @param source Source of the file
+     * @param fileID CKAN resource ID of the file
+     * @param loggerCode Meter's logger code
+     * @param moduleKey Meter's module key aka logger channel
+     * @return Rollup of each day the meter has readings in the file
+     * @throws IOException When the query could not be made
+     * @throws InterruptedException When interrupted waiting for the query
+     */
+    public List<MeterDay> days(DataSource source, String fileID, String loggerCode, String moduleKey) throws IOException, InterruptedException{
+        JSONArray rows = take(DAILY, source, fileID, loggerCode, moduleKey);
+        List<MeterDay> days = new ArrayList<>(rows.length());
+        for (int i = 0; i < rows.length(); i++) {
+            days.add(MeterDay.fromCKAN(rows.getJSONObject(i)));
+        }
+        return days;
+    }
+
+    /**
+     * @param source Source of the file
+     * @param fileID CKAN resource ID of the file
+     * @param loggerCode Meter's logger code
+     * @param moduleKey Meter's module key aka logger channel
+     * @return Every reading for the meter in the file selected by the negative value filter
+     * @throws IOException When the query could not be made
+     * @throws InterruptedException When interrupted waiting for the query
+     */
+    public JSONArray negatives(DataSource source, String fileID, String loggerCode, String moduleKey) throws IOException, InterruptedException{
+        return take(NEGATIVE, source, fileID, loggerCode, moduleKey);
+    }
+
+    /**
+     * Take a meter's share of a batched query, making the query if no other meter of the device has. Each share is taken once;
+     * a meter asking again is queried alone
+     */
+    private JSONArray take(String kind, DataSource source, String fileID, String loggerCode, String moduleKey) throws IOException, InterruptedException{
+
+        List<String> group = Collections.singletonList(moduleKey);
+        String key = kind + "|" + fileID + "|" + loggerCode + "|" + moduleKey; // unbatched
+        List<String> channels = channelsByDevice.get(loggerCode);
+        if (channels != null && channels.contains(moduleKey)) {
+            List<List<String>> packed = groups.get(fileID + "|" + loggerCode);
+            if (packed == null) {
+                packed = planner.packChannels(source, fileID, loggerCode, channels);
+                List<List<String>> raced = groups.putIfAbsent(fileID + "|" + loggerCode, packed);
+                packed = (raced == null) ? packed : raced;
+            }
+            for (int i = 0; i < packed.size(); i++) {
+                if (packed.get(i).contains(moduleKey)) {
+                    group = packed.get(i);
+                    key = kind + "|" + fileID + "|" + loggerCode + "|#" + i;
+                    break;
+                }
+            }
+        }
+
+        /*Make the query, or wait for the meter of the device which is making it*/
+        FutureTask<Map<String, JSONArray>> query = newQuery(kind, source, fileID, loggerCode, group);
+        FutureTask<Map<String, JSONArray>> existing = results.putIfAbsent(key, query);
+        if (existing == null) {
+            query.run();
+        }
+        else {
+            query = existing;
+        }
+        Map<String, JSONArray> byChannel;
+        try {
+            byChannel = query.get();
+        }
+        catch (ExecutionException e){
+            results.remove(key, query); // later meters of the device try again
+            throw failure(e);
+        }
+
+        JSONArray rows = byChannel.remove(moduleKey);
+        if (byChannel.isEmpty()) {
+            results.remove(key, query); // every share taken
+        }
+        if (rows == null) { // share already taken; query the meter alone
+            query = newQuery(kind, source, fileID, loggerCode, Collections.singletonList(moduleKey));
+            query.run();
+            try {
+                rows = query.get().get(moduleKey);
+            }
+            catch (ExecutionException e){
+                throw failure(e);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return Failure of a query, as thrown to every meter waiting on it
+     * @throws InterruptedException If the query was interrupted
+     */
+    private static IOException failure(ExecutionException e) throws InterruptedException{
+        if (e.getCause() instanceof InterruptedException) {
+            throw new InterruptedException();
+        }
+        return (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+    }
+
+    /**
+     * @return Task which queries a file for a group of a device's channels and splits the rows by channel; every channel has an
+     * entry, empty if it has no rows
+     */
+    private FutureTask<Map<String, JSONArray>> newQuery(final String kind, final DataSource source, final String fileID, final String loggerCode, final List<String> channels){
+        return new FutureTask<>(new Callable<Map<String, JSONArray>>() {
+            public Map<String, JSONArray> call() throws Exception {
+                String url = kind.equals(DAILY) ? planner.dailyURL(source, fileID, loggerCode, channels) : planner.negativeURL(source, fileID, loggerCode, channels);
+                JSONArray records = source.requestJSON(executor, url).getJSONObject("result").getJSONArray("records");
+
+                Map<String, JSONArray> byChannel = new ConcurrentHashMap<>();
+                for (String channel : channels) {
+                    byChannel.put(channel, new JSONArray());
+                }
+                for (int i = 0; i < records.length(); i++) {
+                    JSONObject record = records.getJSONObject(i);
+                    JSONArray rows = byChannel.get(String.valueOf(record.get("module_key")));
+                    if (rows != null) {
+                        rows.put(record);
+                    }
+                }
+                return byChannel;
+            }
+        });
+    }
+}
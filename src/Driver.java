@@ -1,15 +1,21 @@
 import java.io.*;
 import org.json.*;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Main Class quality assurance processing
@@ -18,22 +24,40 @@ import java.util.concurrent.TimeUnit;
  */
 public class Driver extends TimerTask {
 
-    /*Variables used for metadata and other JSONs*/
-    private JSONObject packageJSON = null; // JSON objects for all metadata
-    private JSONObject meterJSON = null;
-    private JSONObject loggerJSON = null;
-    private Thread meterThread, loggerThread; // threads for initial metadata reading
-    private JSONObject readingJSON = null; // Global JSON object for reading multiple requests in threads
+    /*Planon metadata; replaced whole each time it is read, and shared read-only by analysis threads*/
+    private volatile MetadataStore metadata = null;
 
     /*Used to access CKAN and other files, if paths / names change; amend them here*/
     private static final String DB_INIT_FILEPATH = "src/eisqualityinit.sql"; // mysql database initialisation file
+    private static final String DB_STATE_FILEPATH = "src/eisqualitystate.sql"; // lease and fingerprint tables; never staged
     private static final String DB_HOST = "jdbc:mysql://localhost:3306/eisquality";
     private static final String METER_METADATA_NAME = "Planon metadata - Meters Sensors"; // names of metadata files in CKAN
     private static final String LOGGER_METADATA_NAME = "Planon metadata - Loggers Controllers";
-    private static final String BMS_CLASSIFICATION_GROUP = "Energy sensor"; // identifier for EMS records in the metadata
-    private static final String EMS_CLASSIFICATION_GROUP = "Energy meter"; // identifier for BMS records
-
-    private Database database = null; // mysql database
+    private static final int EXPORT_FETCH_SIZE = 5000; // rows fetched from MySQL at a time when exporting
+    private static final String METADATA_SNAPSHOT_FILEPATH = "metadata.snapshot"; // fingerprints of metadata from the last run
+    private static final String PROPERTIES_FILENAME = "config.properties";
+    private static final String CHECKPOINT_DIRPATH = "init.checkpoint"; // readings fetched by an initialisation in progress
+    private static final long FINGERPRINT_LIVE_MILLIS = 1000L * 60 * 60 * 24; // files with readings this recent are assumed changed
+    private static final String INIT_RUN_KEY = "init"; // lease run key of the initialisation; checkpoints tested meters
+    private static final String METADATA_TASK = "#metadata"; // lease keys of tasks done by one node in a sharded run
+    private static final String LOG_TASK = "#log";
+
+    private QualityStore database = null; // quality database; MySQL or embedded, see openStore(). The staging copy while initialising
+    private QualityStore liveDatabase = null; // published database while an initialisation writes to its staging copy; otherwise null
+    private ErrorSink errorSink = null; // writes errors and assets to the database behind analysis threads
+    private KnownErrorFilter knownErrors = null; // errors already in the database
+    private CKANExecutor ckanExecutor = new CKANExecutor(); // runs all CKAN fan-out
+    private QualityCache qualityCache = new QualityCache(); // current quality state; served by the read API
+    private EventStream qualityEvents = new EventStream(); // pushes quality changes to dashboard subscribers
+    private QualityAPI readAPI = new QualityAPI(qualityCache, qualityEvents);
+    private Map<String, FileFingerprint> fingerprints = new ConcurrentHashMap<>(); // meter and file -> fingerprint when last analysed
+    private MemoryBudget readingBudget = new MemoryBudget(); // heap allowed for meter readings; the rest spill to disk
+    private volatile ReadingCheckpoints readingCheckpoints = null; // per-file checkpoints of the initialisation in progress
+    private ShardCoordinator shards = new ShardCoordinator(); // shares meters with other nodes, if enabled
+    private ReadingQueryPlanner queryPlanner = new ReadingQueryPlanner(); // pushes checks down into CKAN datastore queries
+    private List<DataSource> sources = DataSource.load(); // CKAN packages of meter readings, e.g. BMS and EMS
+    private MeterScheduler scheduler = new MeterScheduler(); // orders meters by priority; sets each run's deadline
+    private MetadataDiff metadataDiff = new MetadataDiff(METADATA_SNAPSHOT_FILEPATH); // finds metadata changed since last run
     private Scanner scanner = new Scanner(System.in); // used for basic console line input
     private String input = null;
     int totalErrors = 0; // number of errors found in system; must be global to access in threads
@@ -44,70 +68,101 @@ public class Driver extends TimerTask {
      * metadata and returns once JSON objects have been read completely. EIS Quality database in MySQL is initialised.
      */
     public Driver() {
+        this(true);
+    }
+
+    /**
+     * Initialises a server, reading all CKAN metadata
+     * @param interactive True to start the read API and the menu for manual input; false when run from the command line
+     */
+    private Driver(boolean interactive) {
+
+        System.out.println("CKAN requests run on "+ (ckanExecutor.isVirtual() ? "virtual" : "platform") +" threads"); // see 'ckanthreads'
 
         /*Get CKAN metadata*/
+        if (!readMetadata()) {
+            return;
+        }
+        if (interactive) {
+            database = openStore(); // the read API serves the quality state already in the database until a run refreshes it
+            openErrorSink();
+            qualityCache.refresh(database);
+            readAPI.start();
+            serverMenu();
+            System.out.println("Setup Complete!"); // confirmation message
+        }
+    }
+
+    /**
+     * Queries CKAN datastore for all Planon metadata and returns once JSON objects have been read completely
+     * @return True if the metadata was read, false otherwise
+     */
+    private boolean readMetadata() {
+
+        JSONObject meterJSON = null, loggerJSON = null; // JSON objects for all metadata; dropped once the store is built
         try {
-            CKANRequest ckanReq = new CKANRequest("ckan.lancaster.ac.uk/api/3/action/package_show?id=planonmetadata");
-            packageJSON = ckanReq.requestJSON();
+            JSONObject packageJSON = ckanExecutor.requestJSON("ckan.lancaster.ac.uk/api/3/action/package_show?id=planonmetadata");
             JSONArray packageList = packageJSON.getJSONObject("result").getJSONArray("resources"); // Array of resource names available in CKAN
 
-            String lookingFor = METER_METADATA_NAME; // search for meter / sensor metadata
+            CKANExecutor.TaskScope<JSONObject> scope = ckanExecutor.newScope();
+            Future<JSONObject> meterFuture = null, loggerFuture = null; // tasks for metadata reading
             for (int i = 0; i < packageList.length(); i++) { // for every package name in CKAN
-                if (packageList.getJSONObject(i).getString("name").equals(lookingFor)){ // if package is meter / sensor data
-                    // Get package ID number and use this in another CKAN request for meter / sensor metadata
+                String name = packageList.getJSONObject(i).getString("name");
+                if (name.equals(METER_METADATA_NAME) || name.equals(LOGGER_METADATA_NAME)){ // if package is meter / sensor or logger / controller data
+                    // Get package ID number and use this in another CKAN request for the metadata
                     String id = packageList.getJSONObject(i).getString("id");
-                    meterThread = new Thread() {
-                        public void run() {
-                            try {
-                                CKANRequest ckanReq = new CKANRequest("ckan.lancaster.ac.uk/api/3/action/datastore_search_sql?sql=SELECT%20*%20FROM%20\"" + id + "\"");
-                                meterJSON = ckanReq.requestJSON();
-                            }
-                            catch (Exception e){
-                                System.out.print("Setup Failed: Could not read Meter metadata from CKAN");
-                                return;
-                            }
+                    Future<JSONObject> future = scope.fork(new Callable<JSONObject>() {
+                        public JSONObject call() throws Exception {
+                            return ckanExecutor.requestJSON("ckan.lancaster.ac.uk/api/3/action/datastore_search_sql?sql=SELECT%20*%20FROM%20\"" + id + "\"");
                         }
-                    };
-                    meterThread.start();
+                    });
+                    if (name.equals(METER_METADATA_NAME)) {
+                        meterFuture = future;
+                    }
+                    else {
+                        loggerFuture = future;
+                    }
                 }
             }
-            lookingFor = LOGGER_METADATA_NAME; // Search for logger / controller metadata
-            for (int i = 0; i < packageList.length(); i++) { // for every package name in CKAN
-                if (packageList.getJSONObject(i).getString("name").equals(lookingFor)){ // if package is loggers / controllers
-                    // Get package ID number and use this in another CKAN request for logger / controller metadata
-                    String id = packageList.getJSONObject(i).getString("id");
-                    loggerThread = new Thread() {
-                        public void run() {
-                            try {
-                                CKANRequest ckanReq = new CKANRequest("ckan.lancaster.ac.uk/api/3/action/datastore_search_sql?sql=SELECT%20*%20FROM%20\"" + id + "\"");
-                                loggerJSON = ckanReq.requestJSON();
-                            }
-                            catch (Exception e){
-                                System.out.print("Setup Failed: Could not read Logger metadata from CKAN");
-                                return;
-                            }
-                        }
-                    };
-                    loggerThread.start();
-                }
+
+            /*Join tasks; metadata must be read completely when method ends*/
+            try {
+                scope.join();
+            }
+            catch (ExecutionException e){
+                // each file's failure is reported from its future below
+            }
+            try {
+                meterJSON = meterFuture.get();
+            }
+            catch (Exception e){
+                System.out.print("Setup Failed: Could not read Meter metadata from CKAN");
+            }
+            try {
+                loggerJSON = loggerFuture.get();
+            }
+            catch (Exception e){
+                System.out.print("Setup Failed: Could not read Logger metadata from CKAN");
             }
         }
         catch (Exception e){
             System.out.print("Setup Failed: Could not read Planon data from CKAN");
-            return;
+            return false;
         }
 
-        /*Join threads; threads must be complete when constructor ends*/
-        try {
-            meterThread.join();
-            loggerThread.join();
+        /*Encode the metadata; if either file could not be read, the metadata last read is kept*/
+        if (meterJSON != null && loggerJSON != null) {
+            try {
+                metadata = new MetadataStore(loggerJSON.getJSONObject("result").getJSONArray("records"), meterJSON.getJSONObject("result").getJSONArray("records"));
+            }
+            catch (Exception e){
+                System.out.println("Setup Failed: Could not read Planon records");
+            }
         }
-        catch (Exception e){
-            System.out.println("Metadata Threads Interrupted:");
-            e.printStackTrace();
+        if (errorSink != null) {
+            errorSink.setRollupLookup(metadata); // groups errors in the rollup tables
         }
-        serverMenu();
-        System.out.println("Setup Complete!"); // confirmation message
+        return true;
     }
 
     /**
@@ -130,7 +185,9 @@ public class Driver extends TimerTask {
                 System.out.println("Select an Action:\n" + // Menu Options
                                     //"  1) Print Database\n" +
                                     "  2) Fresh Database Initialisation\n" + // Initialise the DB and all its data, reading every available record from CKAN
-                                    "  3) Update Database\n" );
+                                    "  3) Update Database\n" +
+                                    "  4) Export Table\n" + // Stream a table to a CSV or JSON Lines file
+                                    "  5) Resume Database Initialisation\n" ); // Continue an interrupted initialisation, skipping meters already tested
                 input = scanner.nextLine();
 
                 if ("1".equals(input)){ // Print Database; debug and testing tool
@@ -160,6 +217,21 @@ public class Driver extends TimerTask {
                         System.out.println("No DB Initialised");
                     }
                 }
+                else if ("4".equals(input)){
+                    if (database != null) {
+                        System.out.println("Table name:");
+                        String table = scanner.nextLine();
+                        System.out.println("Format (csv / jsonl):");
+                        String format = scanner.nextLine().trim().toLowerCase();
+                        exportTable(table, format, table + "." + format);
+                    }
+                    else {
+                        System.out.println("No DB Initialised");
+                    }
+                }
+                else if ("5".equals(input)){ // Continue an interrupted initialisation without erasing the DB
+                    resumeDB();
+                }
                 else if ("e".equals(input)) { // Close application
                     exit();
                 }
@@ -172,7 +244,9 @@ public class Driver extends TimerTask {
 
     /**
      * Perform a full initialisation of the EIS quality database; creating the database schema itself, before analysing every data
-     * record in CKAN and populating the database with found errors
+     * record in CKAN and populating the database with found errors. The new database is written to a staging copy, and replaces
+     * the published one at once when complete; until then, readers see the database as it was. If another node is part-way through
+     * an initialisation, this node joins it instead, keeping the staging copy
      * @return Returns 1 if successful, 0 if error occurred
      */
     public int initDB() {
@@ -180,371 +254,870 @@ public class Driver extends TimerTask {
         System.out.println("Initialising Database...");
 
         /*Initialise Database Schema*/
-        database = new Database(DB_HOST);
+        closeErrorSink();
+        QualityStore live = (liveDatabase != null) ? liveDatabase : (database != null) ? database : openStore();
+        QualityStore staging;
+        boolean joined; // another node is part-way through the initialisation; its staging tables and leases are kept
         try {
-            database.executeSQLScript(DB_INIT_FILEPATH);
+            live.createSchema(DB_STATE_FILEPATH); // only if missing; other nodes may be using them
+            joined = initialisationRunning(live);
+            staging = live.openStaging();
+            if (!joined) {
+                staging.createSchema(DB_INIT_FILEPATH);
+                live.clearLeases(INIT_RUN_KEY); // completed by the last initialisation
+            }
         }
         catch (Exception e) {
             System.out.println("Initialising Failed: Could not start DB; check "+ DB_INIT_FILEPATH);
+            database = live;
+            openErrorSink();
             return 0;
         }
+        liveDatabase = live;
+        database = staging;
+        database.addMonthlyPartitions(new Date());
+        beginBulkLoad();
+        openErrorSink();
+        if (joined) {
+            System.out.println("Joining the initialisation in progress on another node");
+        }
+        else {
+            new ReadingCheckpoints(CHECKPOINT_DIRPATH).clear(); // left by an earlier initialisation
+        }
 
-        /*Test metadata and meter data on separate threads*/
-        totalErrors = 0;
-        ExecutorService es = Executors.newCachedThreadPool();
-        es.execute(new Thread() { // execute code on new thread
-            public void run() {
-                //System.out.println("Meter Errors: "+ testAllMeters());
-                totalErrors =+ testAllMeters();
+        return runInitialisation();
+    }
+
+    /**
+     * Check whether another node is part-way through an initialisation: the staging tables exist, the initialisation has
+     * leases which are not completed, and some node is live
+     * @param live Published database
+     * @return True if the staging tables must be joined rather than recreated
+     * @throws SQLException When the staging schema or leases could not be read
+     */
+    private boolean initialisationRunning(QualityStore live) throws SQLException{
+        return live.hasStaging() && live.getOpenLeaseCount(INIT_RUN_KEY) > 0 && !live.getLiveNodes().isEmpty();
+    }
+
+    /**
+     * Resume an initialisation which was interrupted, without recreating the database schema. Meters tested before the
+     * interruption are skipped; files already fetched for meters which were part-way through are read from their checkpoints
+     * @return Returns 1 if successful, 0 if error occurred
+     */
+    public int resumeDB() {
+
+        System.out.println("Resuming Database Initialisation...");
+
+        if (database == null) { // e.g. after a restart; use the existing database
+            database = openStore();
+            openErrorSink(); // errors found before the interruption are known, so are not counted again
+            qualityCache.refresh(database);
+        }
+        if (liveDatabase == null) { // continue in the staging copy, if the interrupted initialisation left one
+            try {
+                if (database.hasStaging()) {
+                    closeErrorSink();
+                    liveDatabase = database;
+                    database = liveDatabase.openStaging();
+                    beginBulkLoad();
+                    openErrorSink();
+                }
             }
-        });
-        es.execute(new Thread() { // execute code on new thread
-            public void run() {
-                //System.out.println("Metadata Errors: "+ testMetadata());
-                totalErrors =+ testMetadata();
+            catch (SQLException e){
+                System.out.println("Could not open the staging database; resuming in the published database");
             }
-        });
+        }
+        database.addMonthlyPartitions(new Date());
+
+        return runInitialisation();
+    }
+
+    /**
+     * Analyse every data record in CKAN as the initialisation run, populating the database with found errors
+     * @return Returns 1 if successful, 0 if error occurred
+     */
+    private int runInitialisation() {
+
+        readingCheckpoints = new ReadingCheckpoints(CHECKPOINT_DIRPATH);
+        fingerprints.clear(); // those saved by updates describe errors in the published tables; every file is analysed again
+        final MeterRun meters = new MeterRun("", INIT_RUN_KEY, true, scheduler.deadline()); // meters not started by then are left for a resumed run
 
-        /*Wait for both threads to end; meaning all metadata and meter readings have been tested*/
-        es.shutdown();
+        /*The metadata is tested, and the initialisation published and logged, by one node; leases on the tasks decide which*/
+        ShardCoordinator.Run run = null;
         try {
-            es.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            run = shards.join(database, INIT_RUN_KEY, errorSink);
         }
-        catch (InterruptedException e) {
-            System.out.println("Initialising Failed: Data analysis was interrupted");
-            return 0;
+        catch (SQLException e){
+            System.out.println("Leasing Failed: Could not join run '"+ INIT_RUN_KEY +"'; the metadata is tested on this node");
         }
+        final ShardCoordinator.Run tasks = run;
 
-        /*Log an overview of quality to the DB*/
-        int nAssets = meterJSON.length() + loggerJSON.length();
-        Date now = new Date();
-        Timestamp timestamp = new Timestamp(now.getTime()); // use DB time value as current time
-        database.addLog(nAssets, database.getTableLength("erroneousassets"), database.getTableLength("errors"), timestamp);
+        try {
+            /*Test metadata and meter data on separate threads*/
+            totalErrors = 0;
+            CKANExecutor.TaskScope<Integer> scope = ckanExecutor.newScope();
+            try {
+                Future<Integer> meterErrors = scope.fork(new Callable<Integer>() { // execute code on new thread
+                    public Integer call() {
+                        return testAllMeters(meters);
+                    }
+                });
+                Future<Integer> metadataErrors = scope.fork(new Callable<Integer>() { // execute code on new thread
+                    public Integer call() {
+                        if (tasks != null && !claimTask(tasks, METADATA_TASK)) { // tested by another node
+                            metadataDiff.reset();
+                            metadataDiff.diff(metadata);
+                            metadataDiff.save();
+                            return 0;
+                        }
+                        int errors = testMetadata(true); // database is empty; every record must be tested
+                        if (tasks != null) {
+                            tasks.complete(METADATA_TASK, ""); // once its errors are written
+                        }
+                        return errors;
+                    }
+                });
+
+                /*Wait for both threads to end; meaning all metadata and meter readings have been tested*/
+                scope.join();
+                totalErrors = meterErrors.get() + metadataErrors.get();
+            }
+            catch (InterruptedException e) {
+                System.out.println("Initialising Failed: Data analysis was interrupted");
+                if (liveDatabase != null) {
+                    publishStaging(false); // only switches back to the published database; the run is incomplete
+                }
+                return 0;
+            }
+            catch (ExecutionException e) {
+                System.out.println("Initialising Failed: Data analysis failed");
+                e.getCause().printStackTrace();
+                if (liveDatabase != null) {
+                    publishStaging(false);
+                }
+                return 0;
+            }
+            finally {
+                readingCheckpoints = null;
+            }
+
+            /*Publish the staging copy once every finding has been written; by the node which sees every lease of the run completed*/
+            try {
+                errorSink.flush();
+            }
+            catch (InterruptedException e) {
+                System.out.println("Initialising Failed: Writing errors was interrupted");
+                if (liveDatabase != null) {
+                    publishStaging(false);
+                }
+                return 0;
+            }
+            boolean publisher = meters.complete && (tasks == null || (runCompleted(tasks) && claimTask(tasks, LOG_TASK)));
+            if (liveDatabase != null && !publishStaging(publisher)) {
+                return 0;
+            }
+            if (!publisher) { // resumed in the published database; logged by the node which completes the run
+                System.out.println("Initialisation incomplete on this node; the run is logged once every meter is tested");
+                return 0;
+            }
+
+            /*Log an overview of quality to the DB*/
+            int nAssets = metadata.getMeterCount() + metadata.getLoggerCount();
+            Date now = new Date();
+            Timestamp timestamp = new Timestamp(now.getTime()); // use DB time value as current time
+            logRun(nAssets, timestamp);
+            if (tasks != null) {
+                tasks.complete(LOG_TASK, "");
+            }
+        }
+        finally {
+            if (tasks != null) {
+                tasks.leave();
+            }
+        }
 
         System.out.println("Database Initialised!"); // confirmation message
         return 1;
     }
 
+    /**
+     * Check that every lease of a run has been completed, by this node or another, e.g. every meter and the metadata of an
+     * initialisation before it is published. Meters this node has tested are completed first
+     * @param run Run to check
+     * @return True if no lease of the run is held, expired or failed
+     */
+    private boolean runCompleted(ShardCoordinator.Run run){
+        run.commit();
+        try {
+            return run.countOpen() == 0;
+        }
+        catch (SQLException e){
+            System.out.println("Leasing Failed: Could not count the open leases of the run; it is completed by another node or a resumed run");
+            return false;
+        }
+    }
+
+    /**
+     * Switch back to the published database, first replacing it with the staging copy written by the initialisation if this node
+     * completes the run; otherwise the staging copy is kept, for other nodes to finish or the initialisation to be resumed
+     * @param publish True if every meter was tested and this node holds the lease to publish the run
+     * @return True if the staging copy was published
+     */
+    private boolean publishStaging(boolean publish){
+
+        QualityStore staging = database;
+        closeErrorSink();
+        database = liveDatabase;
+        liveDatabase = null;
+        boolean published = false;
+        if (!publish) {
+            System.out.println("Initialisation incomplete on this node; the staging database is kept until every meter is tested, by another node or a resumed initialisation");
+        }
+        else {
+            try {
+                staging.endBulkLoad(); // indexes must be built before dashboards read the tables
+                database.publish(staging);
+                published = true;
+            }
+            catch (SQLException e){
+                System.out.println("Initialising Failed: Could not publish the staging database; it is kept until the initialisation is resumed");
+            }
+        }
+        openErrorSink(); // errors and fingerprints of the database now published
+        return published;
+    }
+
+    /**
+     * Switches the staging database to bulk loading, which it is filled by much faster than by upserts. Writers of the error sink
+     * must be opened afterwards to load in bulk too
+     */
+    private void beginBulkLoad(){
+        try {
+            database.beginBulkLoad();
+        }
+        catch (SQLException e){
+            System.out.println("Could not start bulk loading; errors are written in batches");
+        }
+    }
+
     /**
      * Update the EIS quality database by only analysing records from ckan which are currently unaccounted for
      * @return Number of errors found
      */
     public int updateDB(){
 
+        if (database == null) { // e.g. when invoked on a timer; use the existing database
+            database = openStore();
+            openErrorSink();
+            qualityCache.refresh(database); // serve the existing state while this update runs
+        }
+        database.addMonthlyPartitions(new Date()); // errors table must have a partition for this month
+        long deadline = scheduler.deadline(); // no meters are started after this time
+
         String month = new SimpleDateFormat("MMM").format(Calendar.getInstance().getTime()).toLowerCase();
         int year = Calendar.getInstance().get(Calendar.YEAR);
         String fileNameEnding = "-"+month+"-"+year; // file ending used in ckan file e.g. '-sep-2017'
 
-        JSONArray meterList = meterJSON.getJSONObject("result").getJSONArray("records"); //list of meters
+        /*When sharded, the metadata is tested and the run logged by one node; leases on the tasks decide which*/
+        String runKey = shards.isEnabled() ? "update-" + new SimpleDateFormat("yyyy-MM-dd").format(new Date()) : null; // same on every node updating today
+        ShardCoordinator.Run run = null;
+        if (runKey != null) {
+            try {
+                run = shards.join(database, runKey, errorSink);
+            }
+            catch (SQLException e){
+                System.out.println("Leasing Failed: Could not join run '"+ runKey +"'; metadata is not tested and the run is not logged");
+            }
+        }
+
         int errors = 0; // total number of errors
-        int untested = 0; // number of untested meters
+        try {
+            /*Re-read metadata and test only the records which changed since the last run*/
+            if (readMetadata()) {
+                if (runKey == null || claimTask(run, METADATA_TASK)) {
+                    errors += testMetadata(false);
+                    if (run != null) {
+                        run.complete(METADATA_TASK, ""); // once its errors are written
+                    }
+                }
+                else { // tested by another node; this node's snapshot moves on, so the changes are not reported again from it
+                    metadataDiff.diff(metadata);
+                    metadataDiff.save();
+                }
+            }
 
-        // TODO Each process uses a very large qty of heap space for CKAN requests, therefore multithreading would be better here, but it needs testing with thread limits
-        for (int i = 0; i < meterList.length(); i++) { // for every meter
+            MeterRun meters = new MeterRun(fileNameEnding, runKey, true, deadline); // only this month's files; shared with other nodes if sharded
+            errors += testAllMeters(meters);
+            System.out.println("Finished Update!"); // debug
 
-            String code = meterList.getJSONObject(i).getString("Logger Asset Code"); // logger code
-            String chan = meterList.getJSONObject(i).getString("Logger Channel"); // logger channel
-            String util = meterList.getJSONObject(i).getString("Utility Type"); // utility type
+            /*Log an overview of quality to the DB, once every finding has been written; by the first node to see every meter tested*/
+            try {
+                errorSink.flush();
+            }
+            catch (InterruptedException e) {
+                System.out.println("Update Failed: Writing errors was interrupted");
+                return errors;
+            }
+            if (runKey == null || (meters.complete && claimTask(run, LOG_TASK))) {
+                int nAssets = metadata.getMeterCount() + metadata.getLoggerCount();
+                Date now = new Date();
+                Timestamp timestamp = new Timestamp(now.getTime()); // use DB time value as current time
+                logRun(nAssets, timestamp);
+                if (run != null) {
+                    run.complete(LOG_TASK, "");
+                }
+            }
+        }
+        finally {
+            if (run != null) {
+                run.leave();
+            }
+        }
 
-            if (!code.equals("") && !chan.equals("")) { // can only test meter if it has a logger code and channel
+        return errors; // successfully updated DB
+    }
 
-                String type = meterList.getJSONObject(i).getString("Classification Group"); // finds out whether the file is from EMS or BMS
+    /**
+     * Take the lease on a task which exactly one node does in a run, e.g. testing the metadata
+     * @param run Run the task belongs to, or null if the run could not be joined
+     * @param task Key of the task; never a logger code
+     * @return True if this node holds the task and should do it, then complete it in the run
+     */
+    private boolean claimTask(ShardCoordinator.Run run, String task){
+        if (run == null) {
+            return false;
+        }
+        try {
+            return run.acquire(task, "") == QualityStore.LeaseState.ACQUIRED;
+        }
+        catch (SQLException e){
+            System.out.println("Leasing Failed: Could not lease task '"+ task +"'; it is left to other nodes");
+            return false;
+        }
+    }
 
-                if (type.equals(BMS_CLASSIFICATION_GROUP)) { // if the meter is from BMS
-                    try {
-                        List<JSONObject> json = getBMSMeterJSON(code, chan, "bms"+fileNameEnding); // List of JSON objects, representing every meter reading
+    /**
+     * Log an overview of quality to the DB, refresh the read API's cache and notify subscribers that the run is complete
+     * @param nAssets Total number of hardware devices on the system
+     * @param timestamp Time of this quality test
+     */
+    private void logRun(int nAssets, Timestamp timestamp){
+        int erroneousAssets = database.getTableLength(Database.ASSET_DB_NAME);
+        int errorCount = database.getTableLength(Database.ERROR_DB_NAME);
+        database.addLog(nAssets, erroneousAssets, errorCount, timestamp);
+        qualityCache.refresh(database);
+        qualityEvents.publish(EventStream.RUN_COMPLETED, new JSONObject().put("total_assets", nAssets).put("erroneous_assets", erroneousAssets)
+                .put("error_count", errorCount).put("timeVal", timestamp.toString()));
+    }
 
-                        /*If no readings for this meter were found in CKAN; this is the first (and only) error*/
-                        if (json.size() == 0){
+    /**
+     * Re-analyse every source's files for a range of months, without recreating the database schema. Every month is an independent
+     * partition, tested in parallel under its own lease run, so a backfill interrupted today resumes where it stopped. Errors
+     * already in the database are not written again, so the results merge into the quality tables idempotently
+     * @param fromMonth First month to analyse, 'yyyy-MM'
+     * @param toMonth Last month to analyse, 'yyyy-MM'
+     * @return Returns 1 if successful, 0 if error occurred
+     */
+    public int backfillDB(String fromMonth, String toMonth) {
 
-                            errors++;
-                            Date now = new Date(); // use DB time value as current time
-                            Timestamp timestamp = new Timestamp(now.getTime());
-                            database.addError(20, code, chan, timestamp); // Write error to DB
-                            database.addAsset("meter", code, chan, util, timestamp);
-                        }
-                        else {
-                            errors =+ testMeter(json, util); // test every meter
-                        }
-                    }
-                    catch (Exception e){
-                        untested++;
-                        // Nothing more; continue processing next meter
-                    }
-                }
-                else if (type.equals(EMS_CLASSIFICATION_GROUP)){ // if the meter is from EMS
-                    try {
-                        //TODO Uncomment once JSON values can be read effectively from ckan; refer to TODO in getEMSMeterJSON method
-//                        List<JSONObject> json = getEMSMeterJSON(code, chan, "ems"+fileNameEnding); // List of JSON objects, representing every meter reading
-//
-//                        /*If no readings for this meter were found in CKAN; this is the first (and only) error*/
-//
-//                        if (json.size() == 0){
-//
-//                            errors+=
-//                            Date now = new Date(); // use DB time value as current time
-//                            Timestamp timestamp = new Timestamp(now.getTime());
-//                            database.addError(20, code, chan, timestamp); // Write error to DB
-//                            database.addAsset("meter", code, chan, util, timestamp);
-//                        }
-//                        else {
-//                             errors =+ testMeter(json, util); // test every meter
-//                        }
-                    }
-                    catch (Exception e){
-                        untested++;
-                        // Nothing more; continue processing next meter
+        if (metadata == null) {
+            System.out.println("Backfill Failed: Could not read metadata");
+            return 0;
+        }
+        SimpleDateFormat monthFormat = new SimpleDateFormat("yyyy-MM");
+        monthFormat.setLenient(false);
+        Calendar month = Calendar.getInstance();
+        Date last;
+        try {
+            month.setTime(monthFormat.parse(fromMonth));
+            last = monthFormat.parse(toMonth);
+        }
+        catch (ParseException e) {
+            System.out.println("Backfill Failed: Months must be given as 'yyyy-MM'");
+            return 0;
+        }
+        System.out.println("Backfilling " + fromMonth + " to " + toMonth + "...");
+
+        if (database == null) { // e.g. when run from the command line; use the existing database
+            database = openStore();
+            openErrorSink();
+            qualityCache.refresh(database);
+        }
+        database.addMonthlyPartitions(new Date());
+
+        final long deadline = scheduler.deadline(); // shared by every month
+        /*Test every month on its own thread; each month's meters are limited separately, CKAN requests overall*/
+        String thisMonth = monthFormat.format(new Date());
+        String today = new SimpleDateFormat("yyyy-MM-dd").format(new Date()); // a backfill run today resumes today's progress
+        Map<String, Future<Integer>> months = new LinkedHashMap<>();
+        CKANExecutor.TaskScope<Integer> scope = ckanExecutor.newScope();
+        try {
+            for (; !month.getTime().after(last); month.add(Calendar.MONTH, 1)) {
+                final String key = monthFormat.format(month.getTime());
+                final String fileNameEnding = "-" + new SimpleDateFormat("MMM", Locale.ENGLISH).format(month.getTime()).toLowerCase()
+                        + "-" + month.get(Calendar.YEAR); // file ending used in ckan file e.g. '-sep-2017'
+                months.put(key, scope.fork(new Callable<Integer>() { // execute code on new thread
+                    public Integer call() {
+                        long start = System.currentTimeMillis();
+                        int errors = testAllMeters(new MeterRun(fileNameEnding, "backfill-" + key + "@" + today, key.equals(thisMonth), deadline));
+                        System.out.println("Backfilled " + key + ": " + errors + " errors in " + (System.currentTimeMillis() - start) / 1000 + "s");
+                        return errors;
                     }
-                }
+                }));
             }
-            else { // meter doesn't have a code and channel
-                untested++;
-                // Nothing more; continue processing next meter
+            scope.join();
+
+            int errors = 0;
+            for (Future<Integer> result : months.values()) {
+                errors += result.get();
             }
+            System.out.println("Backfilled " + months.size() + " month(s): " + errors + " errors");
+            errorSink.flush();
+        }
+        catch (InterruptedException e) {
+            System.out.println("Backfill Failed: Data analysis was interrupted");
+            return 0;
+        }
+        catch (ExecutionException e) {
+            System.out.println("Backfill Failed: Data analysis failed");
+            e.getCause().printStackTrace();
+            return 0;
         }
-        System.out.println("Finished Update! Debug: Could Not Test "+untested+" meters"); // debug
-
-        /*Log an overview of quality to the DB*/
-        int nAssets = meterJSON.length() + loggerJSON.length();
-        Date now = new Date();
-        Timestamp timestamp = new Timestamp(now.getTime()); // use DB time value as current time
-        database.addLog(nAssets, database.getTableLength("erroneousassets"), database.getTableLength("errors"), timestamp);
 
-        return errors; // successfully updated DB
+        /*Log an overview of quality to the DB, once every finding has been written*/
+        int nAssets = metadata.getMeterCount() + metadata.getLoggerCount();
+        logRun(nAssets, new Timestamp(new Date().getTime()));
+        return 1;
     }
 
     /**
-     * Tests the CKAN metadata for errors and adds any detected errors to the SQL database
+     * Tests the CKAN metadata for errors and adds any detected errors to the SQL database. Only records which were added or changed
+     * since the last run (or which cross-reference such records) are tested, unless a full check is requested
+     * @param fullCheck True to test every record regardless of the previous metadata snapshot
      * @returns The number of errors found
      */
-    private int testMetadata() {
+    private int testMetadata(boolean fullCheck) {
         System.out.println("Processing Metadata..."); //debug
-        String[] loggerCodes, meterCodes;
 
-        /*First; must get all logger codes from both meter and logger metadata. This is used later to test whether loggers have meters
-        * associated with them in the metadata and visa-versa*/
+        MetadataStore store = metadata; // loggers and meters, indexed by logger code
 
-        /*All logger codes in logger metadata*/
-        ArrayList<String> loggerCodeArray = new ArrayList<>();
-        JSONArray loggerList = loggerJSON.getJSONObject("result").getJSONArray("records"); //list of loggers
-        for (int i = 0; i < loggerList.length(); i++) { // every logger
-            String code = loggerList.getJSONObject(i).getString("Logger Serial Number"); //store logger code
-            loggerCodeArray.add(code);
+        /*Find which records have changed since the last run*/
+        if (fullCheck) {
+            metadataDiff.reset();
         }
-        loggerCodes = convertToArray(loggerCodeArray); // convert to regular String arrays
-
-        /*All logger codes in meter metadata*/
-        ArrayList<String> meterArray = new ArrayList<>();
-        JSONArray meterList = meterJSON.getJSONObject("result").getJSONArray("records"); //list of meters
-        for (int i = 0; i < meterList.length(); i++) { // every meter
-            String code = meterList.getJSONObject(i).getString("Logger Asset Code"); // store logger code
-            meterArray.add(code);
+        metadataDiff.diff(store);
+        if (!fullCheck) {
+            System.out.println("Metadata changed since the last run: "+ metadataDiff.getAddedCount() +" added, "+ metadataDiff.getChangedCount()
+                    +" changed, "+ metadataDiff.getRemovedCount() +" removed");
         }
-        meterCodes = convertToArray(meterArray); // convert to regular String arrays
+        long sinkMark = errorSink.mark(); // the snapshot is only saved if every error since was written
 
-        /*Test every logger in metadata*/
+        /*Test every new or changed logger in metadata*/
         int errors = 0; // number of errors found; to return
         Date now = new Date();
         Timestamp timestamp = new Timestamp(now.getTime()); // all errors logged with current time
 
-        for (int i = 0; i < loggerCodes.length; i++){ // for every logger
+        for (int i : metadataDiff.getLoggersToTest()){ // for every affected logger
             boolean errorDetected = false;
+            String code = store.getLoggerCode(i);
 
             /*Test for loggers without meters associated with it in the metadata*/
-            boolean found = false;
-            for (int j = 0; j < meterCodes.length; j++){ // look at every meter
-                if (loggerCodes[i].equals(meterCodes[j])) {
-                    found = true;
-                    break; // break if meter matching logger is found
-                }
-            }
-            if (!found){
+            if (!store.hasMeters(code)){
                 errorDetected = true;
                 errors++;
-                database.addError(1, loggerCodes[i], "", timestamp);
+                errorSink.addError(1, code, "", timestamp);
             }
 
             /*Test for loggers with missing data fields (asset code, logger channel, description etc...*/
-            if (loggerList.getJSONObject(i).getString("Building Code").equals("")){ // no building code
+            if (store.getBuildingCode(i).equals("")){ // no building code
                 errorDetected = true;
                 errors++;
-                database.addError(2, loggerCodes[i], "", timestamp);
+                errorSink.addError(2, code, "", timestamp);
             }
-            if (loggerList.getJSONObject(i).getString("Description").equals("")){ // no description
+            if (store.getLoggerDescription(i).equals("")){ // no description
                 errorDetected = true;
                 errors++;
-                database.addError(3, loggerCodes[i], "", timestamp);
+                errorSink.addError(3, code, "", timestamp);
             }
 
             /*If an error was found for the logger, add this logger to quality database*/
             if (errorDetected){
                 errors++;
-                database.addAsset("logger", loggerCodes[i], timestamp);
+                errorSink.addAsset("logger", code, timestamp);
             }
         }
 
-        /*Test every meter in metadata*/
-        for (int i = 0; i < meterCodes.length; i++){ // for every meter
+        /*Test every new or changed meter in metadata*/
+        for (int i : metadataDiff.getMetersToTest()){ // for every affected meter
             boolean errorDetected = false;
-            String chan = meterList.getJSONObject(i).getString("Logger Channel");
+            String code = store.getMeterCode(i);
+            String chan = store.getMeterChannel(i);
 
             /*Test for meters without loggers associated with it in the metadata*/
-            boolean found = false;
-            for (int j = 0; j < loggerCodes.length; j++){ // look at every logger
-                if (meterCodes[i].equals(loggerCodes[j])) {
-                    found = true;
-                    break; // break if logger matching meter is found
-                }
-            }
-            if (!found){ // if no logger matching the meter was found
+            if (!store.hasLogger(code)){ // if no logger matching the meter was found
                 errorDetected = true;
                 errors++;
-                database.addError(10, meterCodes[i], chan, timestamp); // log an error
+                errorSink.addError(10, code, chan, timestamp); // log an error
             }
 
             /*Test for meters with missing data fields (asset code, logger channel, description etc...*/
-            if (meterList.getJSONObject(i).getString("Asset Code").equals("")){
+            if (store.getMeterAssetCode(i).equals("")){
                 errorDetected = true;
                 errors++;
-                database.addError(11, meterCodes[i], chan, timestamp);
+                errorSink.addError(11, code, chan, timestamp);
             }
-            if (meterList.getJSONObject(i).getString("Description").equals("")){
+            if (store.getMeterDescription(i).equals("")){
                 errorDetected = true;
                 errors++;
-                database.addError(12, meterCodes[i], chan, timestamp);
+                errorSink.addError(12, code, chan, timestamp);
             }
 
             /*If an error was found for the meter, add this meter to database*/
             if (errorDetected){
-                database.addAsset("meter", meterCodes[i], chan, meterList.getJSONObject(i).getString("Utility Type"), timestamp);
+                errorSink.addAsset("meter", code, chan, store.getUtilityType(i), timestamp);
             }
         }
+
+        /*Once errors have been written, this run's metadata becomes the new snapshot*/
+        try {
+            errorSink.flush();
+            if (errorSink.writtenSince(sinkMark)) {
+                metadataDiff.save();
+            }
+            else {
+                System.out.println("Metadata snapshot not saved: some errors could not be written; the changes are tested again");
+            }
+        }
+        catch (InterruptedException e) {
+            System.out.println("Metadata snapshot not saved: Writing errors was interrupted");
+        }
         return errors;
     }
 
     /**
-     * Test every meter for EMS and BMS for errors
+     * Test every meter of every source for errors, e.g. BMS and EMS. Meters are analysed concurrently, up to the executor's meter
+     * limit, in order of priority; no more are started once the run's deadline passes. If a run key is given, each meter is tested
+     * under a lease for the run: meters completed earlier in the run are skipped, and if sharding is enabled meters are shared with
+     * the other nodes in the run, each tested by exactly one node. Every run has its own state, so runs may test at once, e.g. the
+     * months of a backfill
+     * @param meters The run; its files, run key and deadline. Whether every meter was tested is set on it once it finishes
      * @return The number of errors found
      */
-    private int testAllMeters(){
-
-        JSONArray meterList = meterJSON.getJSONObject("result").getJSONArray("records"); //list of meters
-        int errors = 0; // to return
-        int untested = 0; // number of meters that were not tested
-
-        // TODO Each process uses a very large qty of heap space for CKAN requests, therefore multithreading would be better here, but it needs testing with thread limits
-        for (int i = 0; i < meterList.length(); i++) { // for every meter
-
-            String code = meterList.getJSONObject(i).getString("Logger Asset Code"); // logger code
-            String chan = meterList.getJSONObject(i).getString("Logger Channel"); // logger channel
-            String util = meterList.getJSONObject(i).getString("Utility Type"); // utility type
-
-            if (!code.equals("") && !chan.equals("")) { // can only test meter if it has a logger code and channel
-
-                String type = meterList.getJSONObject(i).getString("Classification Group");
-
-                if (type.equals(BMS_CLASSIFICATION_GROUP)) { // if the meter is from BMS
-                    try {
-                        List<JSONObject> json = getBMSMeterJSON(code, chan); // List of JSON objects, representing every meter reading
+    private int testAllMeters(MeterRun meters){
+
+        MetadataStore store = metadata; // meters; the same for the whole run
+        String runKey = meters.runKey;
+        int deferred = 0; // number of meters not started before the deadline
+        boolean started = false; // every meter was started, by this node or another
+
+        /*Order meters by priority, keeping the meters of each logger device together so they share batched queries*/
+        List<String> keys = new ArrayList<>();
+        List<String> devices = new ArrayList<>();
+        List<String> utilities = new ArrayList<>();
+        for (int i = 0; i < store.getMeterCount(); i++) {
+            devices.add(store.getMeterCode(i));
+            keys.add(devices.get(i) +"/"+ store.getMeterChannel(i));
+            utilities.add(store.getUtilityType(i));
+        }
+        scheduler.load(database);
+        List<Integer> byPriority = scheduler.order(keys, utilities, devices);
+        List<Integer> order = byPriority;
+
+        /*Then so this node starts on its own share, if leased; devices are shared whole, and each share stays in priority order*/
+        ShardCoordinator.Run run = null;
+        if (runKey != null) {
+            try {
+                run = shards.join(database, runKey, errorSink);
+                List<String> prioritised = new ArrayList<>();
+                for (int i : byPriority) {
+                    prioritised.add(devices.get(i));
+                }
+                order = new ArrayList<>();
+                for (int j : run.order(prioritised)) {
+                    order.add(byPriority.get(j));
+                }
+            }
+            catch (SQLException e){
+                System.out.println("Leasing Failed: Could not join run '"+ runKey +"'; testing every meter on this node");
+                if (run != null) {
+                    run.leave();
+                    run = null;
+                }
+                order = byPriority;
+            }
+        }
 
-                        /*If no readings for this meter were found in CKAN; this is the first (and only) error*/
-                        if (json.size() == 0){
+        /*Channels of each device, in the order they are tested; queried together*/
+        Map<String, List<String>> channelsByDevice = new HashMap<>();
+        for (int i : order) {
+            String code = devices.get(i);
+            String chan = store.getMeterChannel(i);
+            if (sourceOf(store.getClassificationGroup(i)) == null || code.equals("") || chan.equals("")) {
+                continue; // not fetched
+            }
+            List<String> channels = channelsByDevice.get(code);
+            if (channels == null) {
+                channels = new ArrayList<>();
+                channelsByDevice.put(code, channels);
+            }
+            if (!channels.contains(chan)) {
+                channels.add(chan);
+            }
+        }
+        meters.batch = new DeviceBatchFetcher(ckanExecutor, queryPlanner, channelsByDevice);
+        meters.lease = run;
 
-                            errors++;
-                            Date now = new Date(); // use DB time value as current time
-                            Timestamp timestamp = new Timestamp(now.getTime());
-                            database.addError(20, code, chan, timestamp); // Write error to DB
-                            database.addAsset("meter", code, chan, util, timestamp);
-                        }
-                        else {
-                            errors =+ testMeter(json, util); // test every meter
-                        }
+        CKANExecutor.TaskScope<Integer> scope = ckanExecutor.newMeterScope();
+        try {
+            List<Integer> held = new ArrayList<>(); // meters leased by other nodes
+            try {
+                for (int n = 0; n < order.size(); n++) { // for every meter
+                    if (System.currentTimeMillis() >= meters.deadline) {
+                        deferred = order.size() - n;
+                        break;
                     }
-                    catch (Exception e){
-                        untested++;
-                        // Nothing more; continue processing next meter
+                    int i = order.get(n);
+                    if (!forkMeter(scope, store, i, meters)) {
+                        held.add(i);
                     }
                 }
-                else if (type.equals(EMS_CLASSIFICATION_GROUP)){ // if the meter is from EMS
-                    try {
-                        // TODO Uncomment once JSON values can be read effectively from ckan for EMS; refer to TODO in getEMSMeterJSON method
-//                        List<JSONObject> json = getEMSMeterJSON(code, chan); // List of JSON objects, representing every meter reading
-//
-//                        /*If no readings for this meter were found in CKAN; this is the first (and only) error*/
-//
-//                        if (json.size() == 0){
-//
-//                            errors++;
-//                            Date now = new Date(); // use DB time value as current time
-//                            Timestamp timestamp = new Timestamp(now.getTime());
-//                            database.addError(20, code, chan, timestamp); // Write error to DB
-//                            database.addAsset("meter", code, chan, util, timestamp);
-//                        }
-//                        else {
-//                            errors =+ testMeter(json, util); // test every meter
-//                        }
+
+                /*Take over meters whose node stops heartbeating, until every meter in the run has been tested by some node*/
+                while (!held.isEmpty()) {
+                    long remaining = meters.deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        deferred += held.size();
+                        break;
                     }
-                    catch (Exception e){
-                        untested++;
-                        // Nothing more; continue processing next meter
+                    Thread.sleep(Math.min(remaining, shards.getLeaseTTL() * 1000L / 3));
+                    List<Integer> retry = held;
+                    held = new ArrayList<>();
+                    for (int i : retry) {
+                        if (!forkMeter(scope, store, i, meters)) {
+                            held.add(i);
+                        }
                     }
                 }
+                started = (deferred == 0);
             }
-            else { // meter doesn't have a code and channel
-                untested++;
-                // Ignore
+            catch (SQLException e){
+                System.out.println("Leasing Failed: Could not read meter leases; remaining meters are left to other nodes or a resumed run");
             }
+
+            /*Wait for every meter to be tested*/
+            scope.join();
+            saveFingerprints(meters);
+            meters.complete = started;
         }
-        System.out.println("Finished! Debug: Could Not Test "+untested+" meters"); // debug
-        return errors; // number of meters which were not tested
+        catch (InterruptedException e){
+            System.out.println("Meter analysis was interrupted");
+        }
+        catch (ExecutionException e){
+            System.out.println("Meter analysis failed; the run is incomplete");
+            e.getCause().printStackTrace();
+        }
+        finally {
+            if (run != null) {
+                run.leave();
+            }
+        }
+        if (deferred > 0) {
+            System.out.println("Run budget reached: "+ deferred +" lower priority meter(s) left for the next run");
+        }
+        System.out.println("Finished! Debug: Could Not Test "+meters.untested.get()+" meters"); // debug
+        return meters.errors.get();
     }
 
     /**
-     * Tests a specified meter / sensor for errors and adds any detected errors to the sql database
-     * @param jsonValues List of JSON objects representing every meter reading
-     * @param utilityType The utility type of the meter
+     * Forks a task to test a single meter. In a leased run the meter's lease is taken first and completed once it is tested
+     * @param scope Scope to fork the task in; blocks while the meter limit is reached
+     * @param store Metadata of the run
+     * @param meter Index of the meter's record
+     * @param meters The run; its files, lease and fetcher, and the counts of errors found and meters not tested
+     * @return False if another node holds the meter's lease and it should be tried again later, true otherwise
+     * @throws InterruptedException When interrupted waiting to start the task
+     * @throws SQLException When the meter's lease could not be read or written
      */
-    private int testMeter(List<JSONObject> jsonValues, String utilityType){
+    private boolean forkMeter(CKANExecutor.TaskScope<Integer> scope, MetadataStore store, int meter, final MeterRun meters) throws InterruptedException, SQLException{
 
-        /*Sort the meter readings by their timestamp*/
-        Collections.sort( jsonValues, new Comparator<JSONObject>() {
+        String code = store.getMeterCode(meter); // logger code
+        String chan = store.getMeterChannel(meter); // logger channel
+        String util = store.getUtilityType(meter); // utility type
 
-            private static final String KEY_NAME = "timestamp"; // key to sort JSONArray by
+        if (code.equals("") || chan.equals("")) { // can only test meter if it has a logger code and channel
+            meters.untested.incrementAndGet();
+            return true;
+        }
 
-            @Override
-            public int compare(JSONObject a, JSONObject b) {
-                String valA = new String();
-                String valB = new String();
+        DataSource source = sourceOf(store.getClassificationGroup(meter)); // finds out which package the meter's files are in, e.g. BMS or EMS
+        if (source == null) { // meter has no readings in CKAN
+            return true;
+        }
 
+        final ShardCoordinator.Run run = meters.lease;
+        if (run != null) {
+            QualityStore.LeaseState lease = run.acquire(code, chan);
+            if (lease != QualityStore.LeaseState.ACQUIRED) {
+                return lease == QualityStore.LeaseState.COMPLETED; // tested by another node, or still being tested
+            }
+        }
+        String file = meters.fileNameEnding.equals("") ? "" : source.fileName(meters.fileNameEnding);
+        scope.fork(new Callable<Integer>() { // blocks while the meter limit is reached
+            public Integer call() {
                 try {
-                    valA = a.getString(KEY_NAME);
-                    valB = b.getString(KEY_NAME);
+                    ReadingCollector json = getMeterJSON(source, code, chan, file, meters.batch); // every meter reading; on the heap or spilled to disk
+                    if (run != null && !run.renew(code, chan)) { // lease lost while fetching; another node tests the meter
+                        json.release();
+                        return 0;
+                    }
+                    meters.errors.addAndGet(testMeterReadings(json, code, chan, util, meters));
+                    scheduler.checked(code +"/"+ chan);
                 }
-                catch (JSONException e) {
-                    System.out.println("Error: No value for key '"+KEY_NAME+"' in JSONObject");
+                catch (Exception e){
+                    meters.untested.incrementAndGet();
+                    return 0; // lease and checkpoints are kept; the lease expires once this node leaves the run, so the meter is tested again
                 }
-
-                return -valA.compareTo(valB); // -ve to sort in descending order; most recent dates first
+                ReadingCheckpoints checkpoints = readingCheckpoints;
+                if (checkpoints != null) {
+                    checkpoints.clearMeter(code, chan); // meter is complete once its lease is
+                }
+                if (run != null) {
+                    run.complete(code, chan);
+                }
+                return 0;
             }
         });
+        return true;
+    }
 
-        /*Error Tests for Meter:*/
-        String loggerCode;
-        String moduleKey;
+    /**
+     * Tests the readings of a single meter; if no readings were found in CKAN this is the first (and only) error. The readings
+     * are released once tested
+     * @param json Every meter reading
+     * @param code Meter's logger code
+     * @param chan Meter's logger channel
+     * @param util Meter's utility type
+     * @param meters The run; its files' fingerprints are saved once its errors are written. Readings of a run which is not current
+     *               are historical months, where missing or old readings are expected
+     * @return The number of errors found
+     */
+    private int testMeterReadings(ReadingCollector json, String code, String chan, String util, MeterRun meters){
+
+        boolean current = meters.current;
         try {
-            loggerCode = jsonValues.get(0).getString("Logger Asset Code");
-            moduleKey = jsonValues.get(0).getString("Logger Channel");
+            if (json.getFailures() == 0) {
+                meters.analysedFiles.addAll(json.getFingerprints()); // saved once this meter's errors are written; records when it was checked
+            }
+            if (json.isUnchanged()){
+                return testUnchangedMeter(code, chan, util, json.getSummaryRows(), json.getSummaryLatest(), current);
+            }
+            int errors;
+            if (json.isSummarised()){
+                errors = testSummarisedMeter(json, code, chan, util, current);
+            }
+            else if (json.size() == 0){
+                if (!current) {
+                    return 0; // meter may not have been installed yet
+                }
+                return reportNoReadings(code, chan, util);
+            }
+            else {
+                if (json.isSpilled()) {
+                    System.out.println("Meter " + code + "-" + chan + ": " + json.size() + " readings exceed memory budget; merging from disk"); // debug
+                }
+                errors = testMeter(json.mostRecentFirst(), code, chan, util, current); // test every meter
+            }
+            if (json.getFailures() == 0) { // days in a file which could not be read would look missing
+                errors += testMissingDays(json.getDays(), code, chan, util, current);
+            }
+            return errors;
         }
-        catch (Exception e){
-            return 0; // method fails; jsonValues was likely empty
+        catch (IOException | UncheckedIOException e){
+            System.out.println("Could not read spilled readings for meter " + code + "-" + chan);
+            return 0;
+        }
+        finally {
+            json.release();
+        }
+    }
+
+    /**
+     * Tests a meter whose readings are unchanged since they were last analysed. Errors in the readings themselves are already
+     * known, so only the tests which depend on the current time are repeated
+     * @param code Meter's logger code
+     * @param chan Meter's logger channel
+     * @param util Meter's utility type
+     * @param rows Number of readings
+     * @param latest Most recent reading timestamp, or null if there are none
+     * @param current True if the readings include the meter's latest data
+     * @return The number of errors found
+     */
+    private int testUnchangedMeter(String code, String chan, String util, int rows, String latest, boolean current){
+
+        if (!current) {
+            return 0;
+        }
+        if (rows == 0) {
+            return reportNoReadings(code, chan, util);
         }
+        if (testRecentReading(latest, code, chan)) {
+            errorSink.addAsset("meter", code, chan, util, new Timestamp(new Date().getTime()));
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Tests a meter whose readings were summarised by the datastore; the collector holds only the readings selected by the checks
+     * pushed down to it
+     * @param json Summary of the meter's readings, and the selected readings
+     * @param code Meter's logger code
+     * @param chan Meter's logger channel
+     * @param util Meter's utility type
+     * @param current True if the readings include the meter's latest data
+     * @return The number of errors found
+     * @throws IOException When spilled readings could not be read
+     */
+    private int testSummarisedMeter(ReadingCollector json, String code, String chan, String util, boolean current) throws IOException{
 
+        if (json.getSummaryRows() == 0) {
+            return current ? reportNoReadings(code, chan, util) : 0;
+        }
         int errors = 0;
-        boolean errorDetected = false;
-        Date mostRecentError = new Date();
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
+        if (current && testRecentReading(json.getSummaryLatest(), code, chan)) {
+            errors++;
+        }
+        errors += testReadingValues(null, json.mostRecentFirst(), code, chan, util);
+        System.out.println("Meter " + code +"-" + chan + " Errors: " + errors); // debug
 
-        /*Check whether meter has recent data*/
+        if (errors > 0) {
+            errorSink.addAsset("meter", code, chan, util, new Timestamp(new Date().getTime()));
+        }
+        return errors;
+    }
+
+    /**
+     * Adds the error for a meter with no readings at all
+     * @return The number of errors found
+     */
+    private int reportNoReadings(String code, String chan, String util){
+        Date now = new Date(); // use DB time value as current time
+        Timestamp timestamp = new Timestamp(now.getTime());
+        errorSink.addError(20, code, chan, timestamp); // Write error to DB
+        errorSink.addAsset("meter", code, chan, util, timestamp);
+        return 1;
+    }
+
+    /**
+     * Check whether meter has recent data; adds an error if its most recent reading is more than 2 days old
+     * @param timestamp Most recent reading timestamp, as returned by CKAN
+     * @param loggerCode Meter's logger code
+     * @param moduleKey Meter's logger channel
+     * @return True if an error was found
+     */
+    private boolean testRecentReading(String timestamp, String loggerCode, String moduleKey){
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
         Date now = new Date(); // time now
         Calendar cal = Calendar.getInstance();
         cal.setTime(now); // initiate calendar instance with current time
@@ -552,34 +1125,92 @@ public class Driver extends TimerTask {
         Date dateBefore2Days = cal.getTime(); // new date object representing 2 days ago
         try {
 
-            Date mostRecentMeterReading = dateFormat.parse(jsonValues.get(0).getString("timestamp").replace("T", " ")); // Must remove the 'T' from CKAN response for string to be parsable
+            Date mostRecentMeterReading = dateFormat.parse(timestamp.replace("T", " ")); // Must remove the 'T' from CKAN response for string to be parsable
 
             if (mostRecentMeterReading.compareTo(dateBefore2Days) < 0){ // if most recent meter reading is more than 2 days old
-                errors++;
-                errorDetected = true;
-                Timestamp timestamp = new java.sql.Timestamp(mostRecentMeterReading.getTime());
-                database.addError(21, loggerCode, moduleKey, timestamp);
+                Timestamp errorTime = new java.sql.Timestamp(mostRecentMeterReading.getTime());
+                errorSink.addError(21, loggerCode, moduleKey, errorTime);
+                return true;
             }
         }
         catch (Exception e){
             //System.out.println("Failed to parse meter's timestamp to Date format");
             e.printStackTrace();
         }
+        return false;
+    }
 
-        /*Check Quality of reading: -ve data, no data etc.*/
-        for (int i = 0; i < jsonValues.size(); i++){ // for every CKAN record
-            String readS = jsonValues.get(i).getString("param_value");
+    /**
+     * Check for missing days; adds an error for each run of days with no readings between days with readings. The meter's daily
+     * rollups are saved, and for current readings are merged with those saved by earlier runs, so a gap is found across files
+     * and runs without reading them again. Historical months are only checked within the months read, as months backfilled out
+     * of order would leave gaps
+     * @param days Rollups of the readings just read, by day
+     * @param code Meter's logger code
+     * @param chan Meter's logger channel
+     * @param util Meter's utility type
+     * @param current True if the readings include the meter's latest data
+     * @return The number of errors found
+     */
+    private int testMissingDays(SortedMap<String, MeterDay> days, String code, String chan, String util, boolean current){
+
+        if (days.isEmpty()) {
+            return 0;
+        }
+        SortedMap<String, MeterDay> history = new TreeMap<>();
+        try {
+            if (current) {
+                for (MeterDay day : database.getMeterDays(code, chan)) {
+                    history.put(day.getDay(), day);
+                }
+            }
+            database.addMeterDays(code, chan, days.values());
+        }
+        catch (SQLException e){
+            System.out.println("Could not read or save daily rollups for meter " + code + "-" + chan);
+        }
+        history.putAll(days); // replace saved rollups of the days read again
+
+        int errors = 0;
+        for (String day : MeterDay.missingDays(history)) {
+            errorSink.addError(24, code, chan, new Timestamp(java.sql.Date.valueOf(day).getTime())); // start of the gap
+            errors++;
+        }
+        if (errors > 0) {
+            System.out.println("Meter " + code +"-" + chan + " Missing days: " + errors); // debug
+            errorSink.addAsset("meter", code, chan, util, new Timestamp(new Date().getTime()));
+        }
+        return errors;
+    }
+
+    /**
+     * Tests the value of every reading
+     * @param first Reading already taken from the iterator, or null
+     * @param jsonValues Remaining readings
+     * @param loggerCode Meter's logger code
+     * @param moduleKey Meter's logger channel
+     * @param utilityType The utility type of the meter
+     * @return The number of errors found
+     */
+    private int testReadingValues(JSONObject first, Iterator<JSONObject> jsonValues, String loggerCode, String moduleKey, String utilityType){
+
+        int errors = 0;
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
+        if (first == null && jsonValues.hasNext()) {
+            first = jsonValues.next();
+        }
+        for (JSONObject record = first; record != null; record = jsonValues.hasNext() ? jsonValues.next() : null){ // for every CKAN record
+            String readS = record.getString("param_value");
             double reading = Double.parseDouble(readS); // meter reading from every CKAN record
 
             /*Test for negative data readings*/
             if (reading < 0){ // no readings should be -ve
                 errors++;
-                errorDetected = true;
                 try {
-                    String timeS = jsonValues.get(i).getString("timestamp").replace("T", " "); // Must remove the 'T' from CKAN response for string to be parsable
+                    String timeS = record.getString("timestamp").replace("T", " "); // Must remove the 'T' from CKAN response for string to be parsable
                     Date date = dateFormat.parse(timeS);
                     Timestamp timestamp = new Timestamp(date.getTime());
-                    database.addError(22, loggerCode, moduleKey, timestamp);
+                    errorSink.addError(22, loggerCode, moduleKey, timestamp);
                 }
                 catch (ParseException e){
                     e.printStackTrace();
@@ -588,10 +1219,81 @@ public class Driver extends TimerTask {
 
             /*Test for strange data readings, based on utility type*/
             if (utilityType.equals("insert utility type")){ // if utility type is specified
-                // TODO test for different utility types
+                // TODO test for different utility types; needs every reading, see ReadingQueryPlanner.needsReadings()
                 // error_type for non-normal data reading = 23
             }
         }
+        return errors;
+    }
+
+    /**
+     * Save the fingerprints of files analysed, once every error found in them has been written; a file is only skipped by later
+     * runs if its errors are in the database
+     * @param meters The run the files were analysed in; if any error since it started could not be written, no fingerprint is
+     *               saved, so the files are analysed again
+     * @throws InterruptedException When interrupted waiting for errors to be written
+     */
+    private void saveFingerprints(MeterRun meters) throws InterruptedException{
+
+        List<FileFingerprint> analysed = new ArrayList<>();
+        for (FileFingerprint fp = meters.analysedFiles.poll(); fp != null; fp = meters.analysedFiles.poll()) {
+            analysed.add(fp);
+        }
+        if (analysed.isEmpty()) {
+            return;
+        }
+        errorSink.flush();
+        if (!errorSink.writtenSince(meters.sinkMark)) {
+            System.out.println("Not saving "+ analysed.size() +" file fingerprint(s): some errors could not be written; they will be analysed again");
+            return;
+        }
+        try {
+            database.addFingerprints(analysed);
+            for (FileFingerprint fp : analysed) {
+                fingerprints.put(fp.getKey(), fp);
+            }
+        }
+        catch (SQLException e){
+            System.out.println("Could not save "+ analysed.size() +" file fingerprint(s); they will be analysed again");
+        }
+    }
+
+    /**
+     * Tests a specified meter / sensor for errors and adds any detected errors to the sql database. Readings are read once, in
+     * order, so they may be streamed from disk
+     * @param jsonValues Every meter reading, most recent first
+     * @param loggerCode Meter's logger code
+     * @param moduleKey Meter's logger channel
+     * @param utilityType The utility type of the meter
+     * @param current True if the readings include the meter's latest data, so it is tested for recent readings
+     */
+    private int testMeter(Iterator<JSONObject> jsonValues, String loggerCode, String moduleKey, String utilityType, boolean current){
+
+        /*Error Tests for Meter:*/
+        JSONObject mostRecent;
+        try {
+            mostRecent = jsonValues.next();
+        }
+        catch (Exception e){
+            return 0; // method fails; jsonValues was likely empty
+        }
+
+        int errors = 0;
+        boolean errorDetected = false;
+        Date mostRecentError = new Date();
+
+        /*Check whether meter has recent data*/
+        if (current && testRecentReading(mostRecent.optString("timestamp", null), loggerCode, moduleKey)){
+            errors++;
+            errorDetected = true;
+        }
+
+        /*Check Quality of reading: -ve data, no data etc.*/
+        int found = testReadingValues(mostRecent, jsonValues, loggerCode, moduleKey, utilityType);
+        if (found > 0){
+            errors += found;
+            errorDetected = true;
+        }
 
         /*Check time interval of readings are correct*/
         // TODO test time intervals
@@ -602,199 +1304,412 @@ public class Driver extends TimerTask {
         /*If an error was found for the meter, add this meter to database assets*/
         if (errorDetected){
             Timestamp timestamp = new Timestamp(mostRecentError.getTime());
-            database.addAsset("meter", loggerCode, moduleKey, utilityType, timestamp);
+            errorSink.addAsset("meter", loggerCode, moduleKey, utilityType, timestamp);
         }
         return 1; // successfully tested meter
     }
 
     /**
-     * Convert all data for a single BMS meter to a single list of JSON objects.
+     * Collect all data for a single meter, from the files of its source.
      * Both the logger code and module key make a unique identifier for the Meter
+     * @param source Source of the meter's readings, e.g. BMS or EMS
      * @param loggerCode Meters / sensor's logger code
      * @param moduleKey Meter / sensor's module key aka logger channel
-     * @return List of all data for the specified BMS meter
+     * @param file File name to read from, if unspecified, all of the source's files will be read
+     * @param batch Fetcher shared with other meters of the same device
+     * @return All data for the specified meter; must be released once used
      */
-    private List<JSONObject> getBMSMeterJSON(String loggerCode, String moduleKey){
-        return getBMSMeterJSON(loggerCode, moduleKey, "");
+    private ReadingCollector getMeterJSON(DataSource source, String loggerCode, String moduleKey, String file, DeviceBatchFetcher batch){
+
+        ReadingCollector jsonValues = new ReadingCollector(readingBudget); // to return
+
+        try {
+            /*List of the source's files in CKAN*/
+            Map<String, String> fileMap = source.listFiles(source.requestJSON(ckanExecutor, source.packageURL()), file);
+            jsonValues = fetchMeterReadings(source, fileMap, loggerCode, moduleKey, batch);
+        }
+        catch (Exception e){
+            e.printStackTrace();
+        }
+        return jsonValues; // Returns every meter reading; release once used
     }
 
     /**
-     * Convert all data for a single BMS meter to a single list of JSON objects.
-     * Both the logger code and module key make a unique identifier for the Meter
+     * @param classificationGroup Classification group of a meter in the metadata
+     * @return Source of the meter's readings, or null if no source holds meters of the group
+     */
+    private DataSource sourceOf(String classificationGroup){
+        for (DataSource source : sources) {
+            if (source.getClassificationGroup().equals(classificationGroup)) {
+                return source;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the data for a single meter from every listed CKAN file, one task per file. Results are gathered in a collector which
+     * is local to this call, so meters can be fetched concurrently. Where the planner pushes checks down to the datastore, each
+     * file is rolled up by day and only the readings selected by those checks are read; every reading is read otherwise, or if
+     * any file could not be rolled up. Either way the collector holds the meter's daily rollups
+     * @param source Source of the files
+     * @param fileMap Map of CKAN file IDs to file names to read from
      * @param loggerCode Meters / sensor's logger code
      * @param moduleKey Meter / sensor's module key aka logger channel
-     * @param file BMS file name to read from, if unspecified, all BMS files will be read
-     * @return List of all data for the specified BMS meter
+     * @param batch Fetcher of rollup and filter queries, shared with other meters of the same device
+     * @return All data for the specified meter, held on the heap within the reading budget and spilled to disk beyond it
+     * @throws InterruptedException When waiting for the file tasks was interrupted
      */
-    private List<JSONObject> getBMSMeterJSON(String loggerCode, String moduleKey, String file){
+    private ReadingCollector fetchMeterReadings(DataSource source, Map<String, String> fileMap, String loggerCode, String moduleKey, DeviceBatchFetcher batch) throws InterruptedException{
 
-        readingJSON = null; // reset JSONObject for reading; precaution
-        List<JSONObject> jsonValues = new ArrayList<>(); // to return
+        ReadingCollector collector = new ReadingCollector(readingBudget); // confined to this call; shared only by its file tasks
+        final ReadingCheckpoints checkpoints = readingCheckpoints; // null unless initialising
 
-        try {
-            /*List of BMS files in CKAN*/
-            CKANRequest ckanReq = new CKANRequest("ckan.lancaster.ac.uk/api/3/action/package_show?id=bms");
-            JSONObject bmsJSON = ckanReq.requestJSON();
-            JSONArray bmsList = bmsJSON.getJSONObject("result").getJSONArray("resources"); // Array of bms files in CKAN (JSON Objects)
-            Map<String, String> fileMap = new HashMap<>();
-            for (int i = 0; i < bmsList.length(); i++){ // for every BMS file name in ckan
+        /*Roll up every file in the datastore, unless every reading is needed and the files are unlikely to be unchanged*/
+        if (queryPlanner.isPushdown() || fingerprintsWorthChecking(fileMap, loggerCode, moduleKey)) {
+            Map<String, List<MeterDay>> rollups = rollupFiles(source, fileMap, loggerCode, moduleKey, batch);
+            Map<String, FileFingerprint> shapes = (rollups == null) ? null : shapes(loggerCode, moduleKey, rollups);
 
-                String fileName = bmsList.getJSONObject(i).getString("name"); // next BMS filename
-
-                if (file.equals("")) { // if no file is specified as parameter, list all BMS filenames
-
-                    if (!fileName.equals("bmsdevicemeta") && !fileName.equals("bmsmodulemeta")) { // don't include bms metadata in list
-
-                        //TODO Data in CKAN pre Dec-2016 is a different format (or in some cases blank), this 'if' can be removed if ckan is changed
-                        if (fileName.contains("2017") || fileName.equals("bms-dec-2016")) {
-                            fileMap.put(bmsList.getJSONObject(i).getString("id"), fileName); // add file name to list
-                        }
-                    }
-                }
-                else if (fileName.equals(file)){ // if a file is specified as parameter, only list this filename
+            /*Skip fetching if every file has the same number of readings and latest reading as when last analysed*/
+            if (shapes != null && shapesUnchanged(shapes, rollups, loggerCode, moduleKey, collector)) {
+                return collector;
+            }
 
-                    fileMap.put(bmsList.getJSONObject(i).getString("id"), fileName); //add file name to list
+            /*Read only the readings selected by checks pushed down to the datastore*/
+            if (shapes != null && !queryPlanner.needsReadings()) {
+                if (fetchFilteredReadings(source, shapes, rollups, fileMap, loggerCode, moduleKey, batch, collector)) {
+                    return collector;
                 }
+                collector.release();
+                collector = new ReadingCollector(readingBudget); // read every reading instead
             }
+        }
+        final ReadingCollector readings = collector;
 
-            readingJSON = new JSONObject(); // empty JSON to repeatedly update with meter data
+        /*Get data for the specified meter from every file name listed*/
+        CKANExecutor.TaskScope<Void> scope = ckanExecutor.newScope();
+        for (String fileID: fileMap.keySet()) { // for every file
+            scope.fork(new Callable<Void>() { // execute code on new thread
+                public Void call() {
+                    try {
+                        /*Read meter data saved before an interruption, if any*/
+                        JSONArray saved = (checkpoints == null) ? null : checkpoints.load(loggerCode, moduleKey, fileID);
+                        if (saved != null) {
+                            readings.addFingerprint(FileFingerprint.of(loggerCode, moduleKey, fileID, saved));
+                            readings.addDays(MeterDay.rollup(saved));
+                            readings.add(saved);
+                            return null;
+                        }
 
-            /*Get data for the specified meter from every bms file name listed*/
-            ExecutorService es = Executors.newCachedThreadPool();
-            for (String fileID: fileMap.keySet()) { // for every bms file
-                es.execute(new Thread() { // execute code on new thread
-                    public void run() {
-                        try {
-                            /*Get meter data from bms file*/
-                            CKANRequest ckanReq = new CKANRequest("ckan.lancaster.ac.uk/api/3/action/datastore_search_sql?sql=SELECT%20*%20FROM%20\""
-                                                                    + fileID + "\"%20WHERE%20device_id='"+loggerCode+"'%20AND%20module_key='"+moduleKey+"'");
-                            JSONObject newJSON = ckanReq.requestJSON(); // JSON object of meter data from this file
+                        /*Get meter data from file*/
+                        JSONObject newJSON = source.requestJSON(ckanExecutor, queryPlanner.readingsURL(source, fileID, loggerCode, moduleKey)); // JSON object of meter data from this file
 
-                            /*Append meter data to JSON*/
-                            JSONArray toAccumulate = newJSON.getJSONObject("result").getJSONArray("records"); // records from JSON object to append
-                            readingJSON.accumulate("records", toAccumulate); // append meter data to the new JSON object
-                        }
-                        catch (Exception e) {
-                            System.out.println("Could not read " + fileMap.get(fileID));
-                            //e.printStackTrace();
+                        /*Append meter data to collector*/
+                        JSONArray records = newJSON.getJSONObject("result").getJSONArray("records");
+                        if (checkpoints != null) {
+                            checkpoints.save(loggerCode, moduleKey, fileID, records);
                         }
+                        readings.addFingerprint(FileFingerprint.of(loggerCode, moduleKey, fileID, records));
+                        readings.addDays(MeterDay.rollup(records));
+                        readings.add(records);
                     }
-                });
-            }
-            readingJSON.accumulate("files", fileMap); // append list of files read to JSON
-
-            /*Wait for all thread to end*/
-            es.shutdown();
-            es.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-            // System.out.println("All records read: " + loggerCode + "-" + moduleKey); // debug
-
-            /*Add each JSONObject from meter into a list (which will later be returned)*/
-            JSONArray meterArray = readingJSON.getJSONArray("records");
-            for (int i = 1; i < meterArray.length(); i++) { // for every record, which is a JSON array of JSON arrays
-                JSONArray jsonArray = meterArray.getJSONArray(i); // get the JSON array at position i
-                for (int j = 0; j < jsonArray.length(); j++) {
-                    jsonValues.add(jsonArray.getJSONObject(j)); // add every JSON object in the array to the return list
+                    catch (Exception e) {
+                        readings.addFailure();
+                        System.out.println("Could not read " + fileMap.get(fileID));
+                        //e.printStackTrace();
+                    }
+                    return null;
                 }
-            }
+            });
         }
-        catch (Exception e){
-            e.printStackTrace();
+
+        /*Wait for all tasks to end*/
+        try {
+            scope.join();
+        }
+        catch (InterruptedException e){
+            readings.release(); // readings will not be tested
+            throw e;
+        }
+        catch (ExecutionException e){
+            readings.addFailure(); // a file task failed outside its own handling
         }
-        return jsonValues; // Returns list of JSON objects for all meter readings
+        // System.out.println("All records read: " + loggerCode + "-" + moduleKey); // debug
+
+        /*Readings need not be tested again if every file has the same content as when last analysed*/
+        List<FileFingerprint> read = readings.getFingerprints();
+        boolean unchanged = (readings.getFailures() == 0 && read.size() == fileMap.size());
+        int rows = 0;
+        String latest = null;
+        for (FileFingerprint fp : read) {
+            unchanged &= fp.sameContent(fingerprints.get(fp.getKey()));
+            rows += fp.getRows();
+            latest = later(latest, fp.getLatest());
+        }
+        if (unchanged && !read.isEmpty()) {
+            readings.setSummary(rows, latest);
+            readings.markUnchanged();
+        }
+
+        return readings; // Returns every meter reading; release once used
     }
 
     /**
-     * Convert all data for a single EMS meter to a single list of JSON objects.
-     * Both the logger code and module key make a unique identifier for the Meter
+     * When every reading is downloaded anyway, summarising the files first only saves time if they are likely to be unchanged
+     * @param fileMap Map of CKAN file IDs to file names
      * @param loggerCode Meters / sensor's logger code
      * @param moduleKey Meter / sensor's module key aka logger channel
-     * @return List of all data for the specified BMS meter
+     * @return False if any file has never been analysed, or its last reading was recent enough that more are likely to have arrived
      */
-    private List<JSONObject> getEMSMeterJSON(String loggerCode, String moduleKey){
-        return getBMSMeterJSON(loggerCode, moduleKey, "");
+    private boolean fingerprintsWorthChecking(Map<String, String> fileMap, String loggerCode, String moduleKey){
+
+        if (fileMap.isEmpty()) {
+            return false;
+        }
+        SimpleDateFormat ckanFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+        long live = new Date().getTime() - FINGERPRINT_LIVE_MILLIS;
+        for (String fileID : fileMap.keySet()) {
+            FileFingerprint last = fingerprints.get(FileFingerprint.key(loggerCode, moduleKey, fileID));
+            if (last == null) {
+                return false; // never analysed
+            }
+            try {
+                if (last.getLatest() != null && ckanFormat.parse(last.getLatest()).getTime() > live) {
+                    return false; // still receiving readings
+                }
+            }
+            catch (ParseException e){
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Convert all data for a single EMS meter to a single list of JSON objects.
+     * Ask the datastore for the daily rollups of a meter in every file, with one aggregate query per file rather than fetching the
+     * readings
+     * @param source Source of the files
+     * @param fileMap Map of CKAN file IDs to file names
      * @param loggerCode Meters / sensor's logger code
      * @param moduleKey Meter / sensor's module key aka logger channel
-     * @param file EMS file name to read from, if unspecified, all EMS files will be read
-     * @return List of all data for the specified EMS meter
+     * @param batch Fetcher of the queries, shared with other meters of the same device
+     * @return Rollups of the readings in each file, by file ID; or null if any file could not be rolled up
+     * @throws InterruptedException When waiting for the queries was interrupted
      */
-    public List<JSONObject> getEMSMeterJSON(String loggerCode, String moduleKey, String file){
-
-        readingJSON = null; // reset JSONObject for reading; precaution
-        List<JSONObject> jsonValues = new ArrayList<>(); // to return
+    private Map<String, List<MeterDay>> rollupFiles(DataSource source, Map<String, String> fileMap, String loggerCode, String moduleKey, DeviceBatchFetcher batch) throws InterruptedException{
 
-        /*TODO New EMS metadata does not relate to EMS records, the same logic as getBMSMeterJSON can be used here, but with different filenames and maybe different field names, depending on whether the old metadata is used*/
+        final Map<String, List<MeterDay>> rollups = new ConcurrentHashMap<>();
+        CKANExecutor.TaskScope<Void> scope = ckanExecutor.newScope();
+        for (String fileID : fileMap.keySet()) { // for every file
+            scope.fork(new Callable<Void>() { // execute code on new thread
+                public Void call() {
+                    try {
+                        rollups.put(fileID, batch.days(source, fileID, loggerCode, moduleKey));
+                    }
+                    catch (Exception e) {
+                        // fetch the readings instead
+                    }
+                    return null;
+                }
+            });
+        }
         try {
-            /*List of EMS files in CKAN*/
-            CKANRequest ckanReq = new CKANRequest("ckan.lancaster.ac.uk/api/3/action/package_show?id=bms");
-            JSONObject bmsJSON = ckanReq.requestJSON();
-            JSONArray emsList = bmsJSON.getJSONObject("result").getJSONArray("resources"); // Array of EMS files in CKAN (JSON Objects)
-            Map<String, String> fileMap = new HashMap<>();
-            for (int i = 0; i < emsList.length(); i++){ // for every EMS file name in ckan
+            scope.join();
+        }
+        catch (ExecutionException e){
+            return null; // fetch the readings instead
+        }
+        return (rollups.size() == fileMap.size()) ? rollups : null;
+    }
 
-                String fileName = emsList.getJSONObject(i).getString("name"); // next EMS filename
+    /**
+     * @param loggerCode Meters / sensor's logger code
+     * @param moduleKey Meter / sensor's module key aka logger channel
+     * @param rollups Rollups of the readings in each file, by file ID
+     * @return Number of readings and latest reading in each file, by file ID, without a content hash
+     */
+    private static Map<String, FileFingerprint> shapes(String loggerCode, String moduleKey, Map<String, List<MeterDay>> rollups){
+
+        Map<String, FileFingerprint> shapes = new HashMap<>();
+        for (Map.Entry<String, List<MeterDay>> file : rollups.entrySet()) {
+            int rows = 0;
+            String latest = null;
+            for (MeterDay day : file.getValue()) {
+                rows += day.getReadings();
+                latest = later(latest, day.getLast());
+            }
+            shapes.put(file.getKey(), new FileFingerprint(loggerCode, moduleKey, file.getKey(), rows, latest, 0));
+        }
+        return shapes;
+    }
 
-                if (file.equals("")) { // if no file is specified as parameter, list all EMS filenames
-                    if (!fileName.equals("emsmeta")) { // don't include EMS metadata in list
+    /**
+     * Compare the shape of every file with its fingerprint from the last analysis. The rollups carry no content hash, so a file
+     * whose shape matches is only taken as unchanged if its daily rollups also match those saved when the meter was last analysed;
+     * a reading changed in place alters its day's sum, minimum or maximum
+     * @param shapes Shape of the readings in each file, by file ID
+     * @param rollups Rollups of the readings in each file, by file ID
+     * @param loggerCode Meter's logger code
+     * @param moduleKey Meter's logger channel
+     * @param collector Summarised and marked unchanged if every file is unchanged
+     * @return True if every file is unchanged, so the readings need not be fetched
+     */
+    private boolean shapesUnchanged(Map<String, FileFingerprint> shapes, Map<String, List<MeterDay>> rollups, String loggerCode, String moduleKey,
+                                    ReadingCollector collector){
 
-                        fileMap.put(emsList.getJSONObject(i).getString("id"), fileName); // add file name to list
-                    }
-                }
-                else if (fileName.equals(file)){ // if a file is specified as parameter, only list this filename
+        if (shapes.isEmpty()) {
+            return false;
+        }
+        int rows = 0;
+        String latest = null;
+        List<FileFingerprint> last = new ArrayList<>();
+        for (FileFingerprint shape : shapes.values()) {
+            FileFingerprint fp = fingerprints.get(shape.getKey());
+            if (!shape.sameShape(fp)) {
+                return false;
+            }
+            last.add(fp);
+            rows += shape.getRows();
+            latest = later(latest, shape.getLatest());
+        }
+        if (!daysUnchanged(rollups, loggerCode, moduleKey)) {
+            return false;
+        }
+        for (FileFingerprint fp : last) {
+            collector.addFingerprint(fp); // saved again, as checked now
+        }
+        collector.setSummary(rows, latest);
+        collector.markUnchanged();
+        return true;
+    }
 
-                    fileMap.put(emsList.getJSONObject(i).getString("id"), fileName); //add file name to list
+    /**
+     * Compare the daily rollups of a meter's files with those saved when it was last analysed
+     * @param rollups Rollups of the readings in each file, by file ID
+     * @param loggerCode Meter's logger code
+     * @param moduleKey Meter's logger channel
+     * @return True if every day read has the same readings as saved; false if any differs, or the saved rollups could not be read
+     */
+    private boolean daysUnchanged(Map<String, List<MeterDay>> rollups, String loggerCode, String moduleKey){
+
+        Map<String, MeterDay> days = new HashMap<>(); // a day's readings may be split between files
+        for (List<MeterDay> file : rollups.values()) {
+            for (MeterDay day : file) {
+                MeterDay merged = days.get(day.getDay());
+                if (merged == null) {
+                    merged = new MeterDay(day.getDay());
+                    days.put(day.getDay(), merged);
                 }
+                merged.merge(day);
             }
+        }
+        Map<String, MeterDay> saved = new HashMap<>();
+        try {
+            for (MeterDay day : database.getMeterDays(loggerCode, moduleKey)) {
+                saved.put(day.getDay(), day);
+            }
+        }
+        catch (SQLException e){
+            return false;
+        }
+        for (MeterDay day : days.values()) {
+            if (!day.sameValues(saved.get(day.getDay()))) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-            readingJSON = new JSONObject(); // empty JSON to repeatedly update with meter data
-
-            /*Get data for the specified meter from every EMS file name listed*/
-            ExecutorService es = Executors.newCachedThreadPool();
-            for (String fileID: fileMap.keySet()) { // for every EMS file
-                es.execute(new Thread() { // execute code on new thread
-                    public void run() {
-                        try {
-                            /*Get meter data from bms file*/
-                            // TODO This is where you need to change the query, EMS doesnt use 'device_id' and 'module_key' in the data, only an 'id', the new metadata should be changing this to make this statement for work, but for now, it doesn't
-                            CKANRequest ckanReq = new CKANRequest("ckan.lancaster.ac.uk/api/3/action/datastore_search_sql?sql=SELECT%20*%20FROM%20\""
-                                    + fileID + "\"%20WHERE%20device_id='"+loggerCode+"'%20AND%20module_key='"+moduleKey+"'");
-                            JSONObject newJSON = ckanReq.requestJSON(); // JSON object of meter data from this file
-
-                            /*Append meter data to JSON*/
-                            JSONArray toAccumulate = newJSON.getJSONObject("result").getJSONArray("records"); // records from JSON object to append
-                            readingJSON.accumulate("records", toAccumulate); // append meter data to the new JSON object
-                        }
-                        catch (Exception e) {
-                            System.out.println("Could not read " + fileMap.get(fileID));
-                            //e.printStackTrace();
-                        }
-                    }
-                });
+    /**
+     * Read the readings selected by checks pushed down to the datastore, from every file whose rollups show it has any
+     * @param source Source of the files
+     * @param shapes Shape of the readings in each file, by file ID
+     * @param rollups Rollups of the readings in each file, by file ID
+     * @param fileMap Map of CKAN file IDs to file names
+     * @param loggerCode Meters / sensor's logger code
+     * @param moduleKey Meter / sensor's module key aka logger channel
+     * @param batch Fetcher of the queries, shared with other meters of the same device
+     * @param collector Summarised, and given the selected readings and the shape and rollups of every file
+     * @return True if every file was read
+     * @throws InterruptedException When waiting for the queries was interrupted
+     */
+    private boolean fetchFilteredReadings(DataSource source, Map<String, FileFingerprint> shapes, Map<String, List<MeterDay>> rollups, Map<String, String> fileMap,
+                                          String loggerCode, String moduleKey, DeviceBatchFetcher batch, ReadingCollector collector) throws InterruptedException{
+
+        CKANExecutor.TaskScope<Void> scope = ckanExecutor.newScope();
+        for (String fileID : shapes.keySet()) { // for every file
+            int negatives = 0;
+            for (MeterDay day : rollups.get(fileID)) {
+                negatives += day.getNegatives();
+            }
+            if (negatives == 0) {
+                continue; // nothing to select
             }
-            readingJSON.accumulate("files", fileMap); // append list of files read to JSON
+            scope.fork(new Callable<Void>() { // execute code on new thread
+                public Void call() {
+                    try {
+                        collector.add(batch.negatives(source, fileID, loggerCode, moduleKey));
+                    }
+                    catch (Exception e) {
+                        collector.addFailure();
+                        System.out.println("Could not query " + fileMap.get(fileID));
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            scope.join();
+        }
+        catch (InterruptedException e){
+            collector.release(); // readings will not be tested
+            throw e;
+        }
+        catch (ExecutionException e){
+            collector.addFailure(); // a file task failed outside its own handling
+        }
+        if (collector.getFailures() > 0) {
+            return false;
+        }
 
-            /*Wait for all thread to end*/
-            es.shutdown();
-            es.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-            // System.out.println("All records read: " + loggerCode + "-" + moduleKey); // debug
+        int rows = 0;
+        String latest = null;
+        for (FileFingerprint shape : shapes.values()) {
+            collector.addFingerprint(shape); // readings were not downloaded, so only their shape is known
+            collector.addDays(rollups.get(shape.getFileID()));
+            rows += shape.getRows();
+            latest = later(latest, shape.getLatest());
+        }
+        collector.setSummary(rows, latest);
+        return true;
+    }
 
-            /*Add each JSONObject from meter into a list (which will later be returned)*/
-            JSONArray meterArray = readingJSON.getJSONArray("records");
-            for (int i = 1; i < meterArray.length(); i++) { // for every record, which is a JSON array of JSON arrays
-                JSONArray jsonArray = meterArray.getJSONArray(i); // get the JSON array at position i
-                for (int j = 0; j < jsonArray.length(); j++) {
-                    jsonValues.add(jsonArray.getJSONObject(j)); // add every JSON object in the array to the return list
-                }
-            }
+    /**
+     * @return The later of two CKAN timestamps, either of which may be null
+     */
+    private static String later(String a, String b){
+        return (a == null || (b != null && b.compareTo(a) > 0)) ? b : a;
+    }
+
+    /**
+     * Streams a table from the quality database to a file
+     * @param table Name of the table to export
+     * @param format 'csv' or 'jsonl'
+     * @param path File to write to; replaced if it exists
+     * @return Number of rows exported, or -1 if the export failed
+     */
+    public long exportTable(String table, String format, String path){
+        long start = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long rows = database.exportTable(table, format, channel, EXPORT_FETCH_SIZE);
+            double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+            System.out.println("Exported "+ rows +" rows to "+ path +" ("+ String.format("%.1f", channel.size() / seconds / 1e6) +" MB/s)");
+            return rows;
         }
         catch (Exception e){
-            e.printStackTrace();
+            System.out.println("Export Failed: "+ e.getMessage());
+            return -1;
         }
-
-        return jsonValues; // Returns list of JSON objects for all meter readings
     }
 
     /**
@@ -833,10 +1748,65 @@ public class Driver extends TimerTask {
         }
     }
 
+    /**
+     * Opens the quality database selected in config.properties; 'storage' is 'mysql' (default) or 'embedded'. The embedded store
+     * is saved to the directory 'embeddedpath' if specified, otherwise it is held in memory only
+     * @return The quality database
+     */
+    private QualityStore openStore(){
+
+        Properties prop = new Properties();
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(PROPERTIES_FILENAME)) {
+            if (in != null) {
+                prop.load(in);
+            }
+        }
+        catch (IOException e){
+            // use defaults
+        }
+        if ("embedded".equalsIgnoreCase(prop.getProperty("storage", "mysql").trim())) {
+            System.out.println("Using embedded quality database");
+            return new EmbeddedStore(prop.getProperty("embeddedpath"));
+        }
+        return new Database(DB_HOST);
+    }
+
+    /**
+     * Starts the error sink for the current database, loading the errors already in the database so that they are not written again
+     */
+    private void openErrorSink(){
+        knownErrors = new KnownErrorFilter(database.getTableLength(Database.ERROR_DB_NAME));
+        int n = database.loadKnownErrors(knownErrors);
+        System.out.println("Known Errors: "+ n); // debug
+        fingerprints.clear();
+        database.loadFingerprints(fingerprints);
+        errorSink = new ErrorSink(database);
+        errorSink.setKnownErrorFilter(knownErrors);
+        errorSink.setRollupLookup(metadata);
+        errorSink.setEventStream(qualityEvents);
+    }
+
+    /**
+     * Writes any outstanding errors and stops the error sink's writer threads
+     */
+    private void closeErrorSink(){
+        if (errorSink != null) {
+            try {
+                errorSink.close();
+            }
+            catch (InterruptedException e) {
+                System.out.println("Error sink interrupted; some errors may not have been written");
+            }
+            errorSink = null;
+        }
+    }
+
     /**
      * Terminates application
      */
     private void exit(){
+        readAPI.stop();
+        closeErrorSink();
         System.out.println("Exiting...");
         System.exit(1);
     }
@@ -846,6 +1816,14 @@ public class Driver extends TimerTask {
         System.out.println("Java Version: " + System.getProperty("java.version"));
         System.out.println("Running...");
 
+        /*Backfill a range of months and exit, without the menu; e.g. 'backfill 2017-01 2017-12'*/
+        if (args.length == 3 && args[0].equals("backfill")) {
+            Driver driver = new Driver(false);
+            int result = driver.backfillDB(args[1], args[2]);
+            driver.closeErrorSink();
+            System.exit(result == 1 ? 0 : 1);
+        }
+
         /*Start the driver menu for manual input*/
 //        (new Thread() {
 //            public void run() {
@@ -864,4 +1842,29 @@ public class Driver extends TimerTask {
         int millisecInADay = 1000 * 60 * 60 * 24;
         timer.schedule(new Driver(), date.getTime(), millisecInADay);
     }
+
+    /**
+     * State of one run of testAllMeters(); kept per run, so several runs can test at once, e.g. the months of a backfill
+     */
+    private class MeterRun {
+
+        final String fileNameEnding; // only CKAN files with this ending are read; if empty, every file is read
+        final String runKey; // key shared by every node in the run, or null to test every meter without leases
+        final boolean current; // the files read hold each meter's latest data; false for historical months
+        final long deadline; // no meters are started after this time
+        final long sinkMark = errorSink.mark(); // fingerprints are only saved if every error since was written
+        final AtomicInteger errors = new AtomicInteger(); // errors found
+        final AtomicInteger untested = new AtomicInteger(); // meters which could not be tested
+        final ConcurrentLinkedQueue<FileFingerprint> analysedFiles = new ConcurrentLinkedQueue<>(); // saved once their errors are written
+        volatile ShardCoordinator.Run lease = null; // run the meters are leased in, if any
+        volatile DeviceBatchFetcher batch = null; // shared by meters of the same device
+        volatile boolean complete = false; // every meter was tested, by this node or another
+
+        MeterRun(String fileNameEnding, String runKey, boolean current, long deadline){
+            this.fileNameEnding = fileNameEnding;
+            this.runKey = runKey;
+            this.current = current;
+            this.deadline = deadline;
+        }
+    }
 }
@@ -0,0 +1,801 @@
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process implementation of the EIS quality database, with the same tables, unique keys and upsert behaviour as the MySQL
+ * schema in eisqualityinit.sql. Used to run the full pipeline without a MySQL server e.g. for small deployments, CI and benchmarks.
+ * If a directory is given, every table is saved there as JSON Lines whenever a quality log record is added, and loaded again
+ * when the store is opened
+ * @Author Ross Newby
+ */
+public class EmbeddedStore implements QualityStore {
+
+    private static final Pattern TABLE_DROP = Pattern.compile("DROP TABLE IF EXISTS (\\w+)");
+    private static final Pattern LOOKUP_INSERT = Pattern.compile("INSERT INTO "+ Database.ERROR_LOOKUP_DB_NAME +" VALUES \\((\\d+), \"([^\"]*)\"\\)");
+
+    private final Map<String, Table> tables = new LinkedHashMap<>(); // table name -> table
+    private final Table assets, errors, logs, lookups, daily, monthly, nodes, leases, fingerprints, meterDays;
+    private final String directory; // where tables are saved; null if not saved
+    private EmbeddedStore staging = null; // staging copy being rebuilt; held in memory only, until published
+    private final EmbeddedStore live; // store whose lease and fingerprint tables this staging copy uses; null if not a staging copy
+
+    /**
+     * Open an embedded store
+     * @param directory Directory to save tables in and load them from, or null to keep tables in memory only
+     */
+    public EmbeddedStore(String directory){
+        this(directory, null);
+    }
+
+    /**
+     * @param directory Directory to save tables in and load them from, or null to keep tables in memory only
+     * @param live Store this is the staging copy of, or null
+     */
+    private EmbeddedStore(String directory, EmbeddedStore live){
+
+        this.directory = directory;
+        this.live = live;
+        assets = addTable(new Table(Database.ASSET_DB_NAME, new String[]{"id", "hardware", "logger_code", "logger_channel", "utility_type", "most_recent_error"},
+                "isssst", new int[]{2, 3}));
+        errors = addTable(new Table(Database.ERROR_DB_NAME, new String[]{"id", "error_type", "logger_code", "logger_channel", "timeVal"},
+                "iisst", new int[]{1, 2, 3, 4}));
+        logs = addTable(new Table(Database.QUALITY_LOG_DB_NAME, new String[]{"id", "total_assets", "erroneous_assets", "error_count", "timeVal"},
+                "iiiit", null));
+        lookups = addTable(new Table(Database.ERROR_LOOKUP_DB_NAME, new String[]{"id", "description"}, "is", new int[]{0}));
+        daily = addTable(new Table(Database.DAILY_ROLLUP_DB_NAME, new String[]{"day", "error_type", "building_code", "utility_type", "error_count"},
+                "dissi", new int[]{0, 1, 2, 3}));
+        monthly = addTable(new Table(Database.MONTHLY_ROLLUP_DB_NAME, new String[]{"month", "error_type", "building_code", "utility_type", "error_count"},
+                "dissi", new int[]{0, 1, 2, 3}));
+        nodes = addTable(new Table(Database.NODE_DB_NAME, new String[]{"node_id", "expires"}, "st", new int[]{0}));
+        leases = addTable(new Table(Database.LEASE_DB_NAME, new String[]{"run_key", "logger_code", "logger_channel", "node_id", "expires", "completed"},
+                "ssssti", new int[]{0, 1, 2}));
+        fingerprints = addTable(new Table(Database.FINGERPRINT_DB_NAME, new String[]{"logger_code", "logger_channel", "file_id", "row_count", "latest", "content_hash", "checked"},
+                "sssislt", new int[]{0, 1, 2}));
+        meterDays = addTable(new Table(Database.METER_DAY_DB_NAME, new String[]{"logger_code", "logger_channel", "day", "readings", "min_value", "max_value", "sum_value",
+                "negatives", "first_reading", "last_reading"}, "ssdifffiss", new int[]{0, 1, 2}));
+
+        if (directory != null) {
+            load();
+        }
+    }
+
+    /**
+     * Erase every table the MySQL schema script drops and read the error type lookups from it
+     * @param scriptPath Path of the MySQL schema script
+     * @throws SQLException When a lookup in the script is duplicated
+     * @throws FileNotFoundException Could not find the script
+     */
+    public synchronized void createSchema(String scriptPath) throws SQLException, FileNotFoundException {
+
+        String script;
+        try {
+            script = new String(Files.readAllBytes(Paths.get(scriptPath)), "UTF-8");
+        }
+        catch (IOException e){
+            System.out.println("DB Error: Could not find file "+ scriptPath);
+            throw new FileNotFoundException(scriptPath);
+        }
+        Matcher drop = TABLE_DROP.matcher(script);
+        while (drop.find()) {
+            Table table = tables.get(drop.group(1));
+            if (table != null) {
+                table.clear();
+            }
+        }
+        Matcher m = LOOKUP_INSERT.matcher(script);
+        while (m.find()) {
+            addLookup(Integer.parseInt(m.group(1)), m.group(2));
+        }
+    }
+
+    /**
+     * @return This store; it is safe to share between threads
+     */
+    public QualityStore openWriter(){
+        return this;
+    }
+
+    /**
+     * The staging copy is held in memory only, so a rebuild can be resumed while the server runs but not after a restart. Its
+     * leases, nodes, fingerprints and meter days are this store's
+     * @return Staging copy of this store; the same copy until it is published
+     */
+    public synchronized QualityStore openStaging(){
+        if (staging == null) {
+            staging = new EmbeddedStore(null, this);
+        }
+        return staging;
+    }
+
+    public synchronized boolean hasStaging(){
+        return staging != null;
+    }
+
+    /**
+     * Replaces the rows of every table read by dashboards with those of the staging copy under this store's lock, then saves the
+     * tables. The copy is locked first, as it is when it reads this store's leases
+     */
+    public void publish(QualityStore stagingStore) throws SQLException{
+        if (!(stagingStore instanceof EmbeddedStore)) {
+            throw new SQLException("Not a staging copy of an embedded store");
+        }
+        EmbeddedStore copy = (EmbeddedStore) stagingStore;
+        synchronized (copy) {
+            synchronized (this) {
+                for (Table table : Arrays.asList(assets, errors, logs, lookups, daily, monthly)) {
+                    table.replaceWith(copy.tables.get(table.name));
+                }
+                if (staging == copy) {
+                    staging = null;
+                }
+                if (directory != null) {
+                    save();
+                }
+            }
+        }
+    }
+
+    /**
+     * Rows are inserted into memory and indexed as they are; there is nothing to defer
+     */
+    public void beginBulkLoad(){
+    }
+
+    public void endBulkLoad(){
+    }
+
+    public void addAsset(String ware, String logCode, String logChan, String util, Timestamp time){
+        try {
+            addAssets(Collections.singletonList(new AssetRecord(ware, logCode, logChan, util, time)));
+        }
+        catch (SQLException e){
+            e.printStackTrace();
+        }
+    }
+
+    public void addAsset(String ware, String logCode, String logChan, Timestamp time){
+        addAsset(ware, logCode, logChan, null, time);
+    }
+
+    public void addAsset(String ware, String logCode, Timestamp time){
+        addAsset(ware, logCode, null, null, time);
+    }
+
+    public synchronized void addError(int errType, String logCode, String logChan, Timestamp time){
+        errors.insertIgnore(new Object[]{null, errType, logCode, logChan, seconds(time)});
+    }
+
+    public void addError(int errType, String logCode, Timestamp time){
+        addError(errType, logCode, null, time);
+    }
+
+    public synchronized List<ErrorRecord> addErrors(List<ErrorRecord> errorList, MetadataStore metadata) throws SQLException{
+
+        List<ErrorRecord> inserted = new ArrayList<>(); // errors already in the table are not counted again
+        for (ErrorRecord err : errorList) {
+            if (errors.insertIgnore(new Object[]{null, err.getErrType(), err.getLogCode(), err.getLogChan(), seconds(err.getTime())})) {
+                inserted.add(err);
+            }
+        }
+
+        /*Increment rollups; monthly rows are keyed on the first day of the month*/
+        for (Map.Entry<String, Integer> entry : ErrorRecord.countDaily(inserted, metadata).entrySet()) {
+            String[] key = entry.getKey().split("\\|", -1);
+            increment(daily, java.sql.Date.valueOf(key[0]), key, entry.getValue());
+            increment(monthly, java.sql.Date.valueOf(key[0].substring(0, 8) + "01"), key, entry.getValue());
+        }
+        return inserted;
+    }
+
+    public synchronized void addAssets(List<AssetRecord> assetList) throws SQLException{
+        for (AssetRecord asset : assetList) {
+            Object[] row = new Object[]{null, asset.getWare(), asset.getLogCode(), asset.getLogChan(), asset.getUtil(), seconds(asset.getTime())};
+            Object[] existing = assets.find(row);
+            if (existing != null) {
+                if (row[5] != null && (existing[5] == null || ((Timestamp) row[5]).after((Timestamp) existing[5]))) {
+                    existing[5] = row[5]; // ON DUPLICATE KEY UPDATE most_recent_error = GREATEST(...)
+                }
+            }
+            else {
+                assets.insert(row);
+            }
+        }
+    }
+
+    public void addLog(int nAssets, int erroneousAssets, int nErrors, Timestamp time){
+        synchronized (this) {
+            logs.insert(new Object[]{null, nAssets, erroneousAssets, nErrors, seconds(time)});
+        }
+        System.out.println("1 record(s) added to "+ Database.QUALITY_LOG_DB_NAME);
+        if (directory != null) {
+            save(); // end of a run; make the results durable
+        }
+    }
+
+    public synchronized void addLookup(int id, String desc) throws SQLException{
+        Object[] row = new Object[]{id, desc};
+        if (lookups.find(row) != null) {
+            throw new SQLException("Duplicate entry '"+ id +"' for key 'PRIMARY'");
+        }
+        lookups.insert(row);
+    }
+
+    public synchronized int getTableLength(String tableName){
+        Table table = tables.get(tableName);
+        return (table == null) ? -1 : table.rows.size();
+    }
+
+    public synchronized int loadKnownErrors(KnownErrorFilter filter){
+        for (Object[] row : errors.rows) {
+            filter.add((Integer) row[1], (String) row[2], (String) row[3], (Timestamp) row[4]);
+        }
+        return errors.rows.size();
+    }
+
+    public synchronized int loadFingerprints(Map<String, FileFingerprint> into){
+        if (live != null) {
+            return live.loadFingerprints(into);
+        }
+        for (Object[] row : fingerprints.rows) {
+            FileFingerprint fp = new FileFingerprint((String) row[0], (String) row[1], (String) row[2], (Integer) row[3], (String) row[4], (Long) row[5]);
+            into.put(fp.getKey(), fp);
+        }
+        return fingerprints.rows.size();
+    }
+
+    public synchronized void addFingerprints(List<FileFingerprint> fingerprintList){
+        if (live != null) {
+            live.addFingerprints(fingerprintList);
+            return;
+        }
+        Timestamp now = seconds(new Timestamp(System.currentTimeMillis()));
+        for (FileFingerprint fp : fingerprintList) {
+            Object[] row = new Object[]{fp.getLogCode(), fp.getLogChan(), fp.getFileID(), fp.getRows(), fp.getLatest(), fp.getHash(), now};
+            Object[] existing = fingerprints.find(row);
+            if (existing != null) {
+                System.arraycopy(row, 3, existing, 3, row.length - 3);
+            }
+            else {
+                fingerprints.insert(row);
+            }
+        }
+    }
+
+    /**
+     * Tables are not partitioned; does nothing
+     */
+    public void addMonthlyPartitions(Date upTo){
+    }
+
+    public synchronized List<Map<String, Object>> getQualityLogs(int limit) throws SQLException{
+        List<Object[]> rows = new ArrayList<>(logs.rows);
+        Collections.sort(rows, new Comparator<Object[]>() {
+            public int compare(Object[] a, Object[] b) {
+                int c = ((Timestamp) b[4]).compareTo((Timestamp) a[4]); // most recent first
+                return (c != 0) ? c : ((Integer) b[0]).compareTo((Integer) a[0]);
+            }
+        });
+        return logs.toMaps(rows.subList(0, Math.min(limit, rows.size())), 1); // without id, as Database
+    }
+
+    public synchronized List<Map<String, Object>> getAssets() throws SQLException{
+        return assets.toMaps(assets.rows, 1);
+    }
+
+    public synchronized List<Map<String, Object>> getAssetErrorCounts() throws SQLException{
+        Map<List<Object>, Object[]> groups = new LinkedHashMap<>(); // (code, channel, type) -> count, latest
+        for (Object[] row : errors.rows) {
+            List<Object> key = Arrays.asList(row[2], row[3], row[1]);
+            Object[] group = groups.get(key);
+            if (group == null) {
+                groups.put(key, new Object[]{1L, row[4]});
+            }
+            else {
+                group[0] = (Long) group[0] + 1;
+                if (((Timestamp) row[4]).after((Timestamp) group[1])) {
+                    group[1] = row[4];
+                }
+            }
+        }
+        List<Map<String, Object>> ret = new ArrayList<>();
+        for (Map.Entry<List<Object>, Object[]> entry : groups.entrySet()) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("logger_code", entry.getKey().get(0));
+            row.put("logger_channel", entry.getKey().get(1));
+            row.put("error_type", entry.getKey().get(2));
+            row.put("error_count", entry.getValue()[0]);
+            row.put("latest", entry.getValue()[1]);
+            ret.add(row);
+        }
+        return ret;
+    }
+
+    public synchronized List<Map<String, Object>> getLookups() throws SQLException{
+        List<Object[]> rows = new ArrayList<>(lookups.rows);
+        Collections.sort(rows, new Comparator<Object[]>() {
+            public int compare(Object[] a, Object[] b) {
+                return ((Integer) a[0]).compareTo((Integer) b[0]);
+            }
+        });
+        return lookups.toMaps(rows, 0);
+    }
+
+    public synchronized List<Map<String, Object>> getDailyRollups() throws SQLException{
+        List<Object[]> rows = new ArrayList<>(daily.rows);
+        Collections.sort(rows, new Comparator<Object[]>() {
+            public int compare(Object[] a, Object[] b) {
+                return ((java.sql.Date) a[0]).compareTo((java.sql.Date) b[0]);
+            }
+        });
+        return daily.toMaps(rows, 0);
+    }
+
+    public synchronized List<MeterDay> getMeterDays(String logCode, String logChan){
+        if (live != null) {
+            return live.getMeterDays(logCode, logChan);
+        }
+        List<MeterDay> days = new ArrayList<>();
+        for (Object[] row : meterDays.rows) {
+            if (row[0].equals(logCode) && row[1].equals(logChan)) {
+                days.add(new MeterDay(row[2].toString(), (Integer) row[3], (row[4] == null) ? Double.NaN : (Double) row[4], (row[5] == null) ? Double.NaN : (Double) row[5],
+                        (Double) row[6], (Integer) row[7], (String) row[8], (String) row[9]));
+            }
+        }
+        Collections.sort(days, new Comparator<MeterDay>() {
+            public int compare(MeterDay a, MeterDay b) {
+                return a.getDay().compareTo(b.getDay());
+            }
+        });
+        return days;
+    }
+
+    public synchronized void addMeterDays(String logCode, String logChan, Collection<MeterDay> days){
+        if (live != null) {
+            live.addMeterDays(logCode, logChan, days);
+            return;
+        }
+        for (MeterDay day : days) {
+            Object[] row = new Object[]{logCode, logChan, java.sql.Date.valueOf(day.getDay()), day.getReadings(), Double.isNaN(day.getMin()) ? null : day.getMin(),
+                    Double.isNaN(day.getMax()) ? null : day.getMax(), day.getSum(), day.getNegatives(), day.getFirst(), day.getLast()};
+            Object[] existing = meterDays.find(row);
+            if (existing != null) {
+                System.arraycopy(row, 3, existing, 3, row.length - 3);
+            }
+            else {
+                meterDays.insert(row);
+            }
+        }
+    }
+
+    public synchronized List<Map<String, Object>> getMeterChecks() throws SQLException{
+        if (live != null) {
+            return live.getMeterChecks();
+        }
+        Map<List<Object>, Timestamp> groups = new LinkedHashMap<>(); // (code, channel) -> latest check
+        for (Object[] row : fingerprints.rows) {
+            List<Object> key = Arrays.asList(row[0], row[1]);
+            Timestamp checked = groups.get(key);
+            if (checked == null || ((Timestamp) row[6]).after(checked)) {
+                groups.put(key, (Timestamp) row[6]);
+            }
+        }
+        List<Map<String, Object>> ret = new ArrayList<>();
+        for (Map.Entry<List<Object>, Timestamp> entry : groups.entrySet()) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("logger_code", entry.getKey().get(0));
+            row.put("logger_channel", entry.getKey().get(1));
+            row.put("checked", entry.getValue());
+            ret.add(row);
+        }
+        return ret;
+    }
+
+    public long exportTable(String tableName, String format, WritableByteChannel out, int fetchSize) throws SQLException, IOException{
+
+        Table table;
+        List<Object[]> rows;
+        synchronized (this) {
+            table = tables.get(tableName);
+            if (table == null) {
+                throw new SQLException("No table '"+ tableName +"' in database");
+            }
+            rows = new ArrayList<>(table.rows); // rows are only modified under this lock; copy references, not values
+        }
+        boolean[] numeric = new boolean[table.columns.length];
+        for (int j = 0; j < numeric.length; j++) {
+            numeric[j] = table.types.charAt(j) == 'i' || table.types.charAt(j) == 'l' || table.types.charAt(j) == 'f';
+        }
+        RowWriter writer = new RowWriter(out, format, table.columns, numeric);
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); // as MySQL returns them
+        String[] values = new String[table.columns.length];
+        for (Object[] row : rows) {
+            synchronized (this) { // values of a row may be updated in place
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = (row[j] == null) ? null : (row[j] instanceof Timestamp) ? timeFormat.format(row[j]) : row[j].toString();
+                }
+            }
+            writer.write(values);
+        }
+        return writer.flush();
+    }
+
+    public synchronized List<String> getTableNames() throws SQLException{
+        return new ArrayList<>(tables.keySet());
+    }
+
+    public void printDatabase(){
+        WritableByteChannel out = Channels.newChannel(System.out);
+        for (String name : tables.keySet()) {
+            System.out.println("Table: " + name);
+            try {
+                exportTable(name, "csv", out, 0);
+            }
+            catch (Exception e){
+                e.printStackTrace();
+            }
+            System.out.println("");
+        }
+    }
+
+    public synchronized void heartbeat(String node, int ttlSeconds){
+        if (live != null) {
+            live.heartbeat(node, ttlSeconds);
+            return;
+        }
+        Timestamp expires = new Timestamp(System.currentTimeMillis() + ttlSeconds * 1000L);
+        Object[] row = new Object[]{node, expires};
+        Object[] existing = nodes.find(row);
+        if (existing != null) {
+            existing[1] = expires;
+        }
+        else {
+            nodes.insert(row);
+        }
+        for (Object[] lease : leases.rows) {
+            if (node.equals(lease[3]) && (Integer) lease[5] == 0) {
+                lease[4] = expires;
+            }
+        }
+    }
+
+    public synchronized List<String> getLiveNodes(){
+        if (live != null) {
+            return live.getLiveNodes();
+        }
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        List<String> ret = new ArrayList<>();
+        for (Object[] row : nodes.rows) {
+            if (((Timestamp) row[1]).after(now)) {
+                ret.add((String) row[0]);
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    public synchronized LeaseState acquireLease(String run, String logCode, String logChan, String node, int ttlSeconds){
+        if (live != null) {
+            return live.acquireLease(run, logCode, logChan, node, ttlSeconds);
+        }
+        long now = System.currentTimeMillis();
+        Timestamp expires = new Timestamp(now + ttlSeconds * 1000L);
+        Object[] row = new Object[]{run, logCode, (logChan == null) ? "" : logChan, node, expires, 0};
+        Object[] existing = leases.find(row);
+        if (existing == null) {
+            leases.insert(row);
+            return LeaseState.ACQUIRED;
+        }
+        if ((Integer) existing[5] != 0) {
+            return LeaseState.COMPLETED;
+        }
+        if (node.equals(existing[3]) || ((Timestamp) existing[4]).getTime() < now) {
+            existing[3] = node;
+            existing[4] = expires;
+            return LeaseState.ACQUIRED;
+        }
+        return LeaseState.HELD;
+    }
+
+    public synchronized boolean completeLease(String run, String logCode, String logChan, String node){
+        if (live != null) {
+            return live.completeLease(run, logCode, logChan, node);
+        }
+        Object[] existing = leases.find(new Object[]{run, logCode, (logChan == null) ? "" : logChan});
+        if (existing == null || !node.equals(existing[3])) {
+            return false;
+        }
+        if ((Integer) existing[5] == 0 && ((Timestamp) existing[4]).getTime() <= System.currentTimeMillis()) {
+            return false; // expired; another node may take it over
+        }
+        existing[5] = 1;
+        return true;
+    }
+
+    public synchronized void releaseNode(String node){
+        if (live != null) {
+            live.releaseNode(node);
+            return;
+        }
+        Object[] existing = nodes.find(new Object[]{node});
+        if (existing != null) {
+            existing[1] = new Timestamp(0);
+        }
+        nodes.removeIf(1, new Timestamp(System.currentTimeMillis())); // this node and any other dead node
+        Timestamp expired = new Timestamp(System.currentTimeMillis() - 1000L);
+        for (Object[] lease : leases.rows) {
+            if (node.equals(lease[3]) && (Integer) lease[5] == 0) {
+                lease[4] = expired;
+            }
+        }
+    }
+
+    public synchronized void purgeLeases(int days){
+        if (live != null) {
+            live.purgeLeases(days);
+            return;
+        }
+        leases.removeIf(4, new Timestamp(System.currentTimeMillis() - days * 86400000L));
+    }
+
+    public synchronized int getOpenLeaseCount(String run){
+        if (live != null) {
+            return live.getOpenLeaseCount(run);
+        }
+        int count = 0;
+        for (Object[] lease : leases.rows) {
+            if (run.equals(lease[0]) && (Integer) lease[5] == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized void clearLeases(String run){
+        if (live != null) {
+            live.clearLeases(run);
+            return;
+        }
+        List<Object[]> cleared = new ArrayList<>();
+        for (Object[] lease : leases.rows) {
+            if (!run.equals(lease[0])) {
+                cleared.add(lease);
+            }
+        }
+        leases.clear();
+        for (Object[] lease : cleared) {
+            leases.insert(lease);
+        }
+    }
+
+    /**
+     * Add one to the error count of a rollup row, inserting the row if needed
+     */
+    private void increment(Table rollup, java.sql.Date date, String[] key, int count){
+        Object[] row = new Object[]{date, Integer.parseInt(key[1]), key[2], key[3], count};
+        Object[] existing = rollup.find(row);
+        if (existing != null) {
+            existing[4] = (Integer) existing[4] + count;
+        }
+        else {
+            rollup.insert(row);
+        }
+    }
+
+    /**
+     * @return A copy of the time to the second, as stored by MySQL
+     */
+    private static Timestamp seconds(Timestamp time){
+        return (time == null) ? null : new Timestamp(Math.floorDiv(time.getTime(), 1000L) * 1000L);
+    }
+
+    private Table addTable(Table table){
+        tables.put(table.name, table);
+        return table;
+    }
+
+    /**
+     * Save every table to the store's directory as JSON Lines; each file is replaced atomically
+     */
+    private synchronized void save(){
+        try {
+            Files.createDirectories(Paths.get(directory));
+            for (String name : tables.keySet()) {
+                File tmp = new File(directory, name + ".jsonl.tmp");
+                try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    exportTable(name, "jsonl", channel, 0);
+                }
+                Files.move(tmp.toPath(), Paths.get(directory, name + ".jsonl"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        catch (Exception e){
+            System.out.println("Could not save embedded store to "+ directory);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Load every table saved in the store's directory
+     */
+    private synchronized void load(){
+        for (Table table : tables.values()) {
+            File file = new File(directory, table.name + ".jsonl");
+            if (!file.exists()) {
+                continue;
+            }
+            try (BufferedReader in = Files.newBufferedReader(file.toPath())) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.trim().equals("")) {
+                        table.insert(table.parse(new JSONObject(line)));
+                    }
+                }
+            }
+            catch (Exception e){
+                System.out.println("Could not load "+ file);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A table; rows are arrays of column values. Column types are 'i' (Integer), 'l' (Long), 'f' (Double), 's' (String),
+     * 't' (Timestamp) or 'd' (Date)
+     */
+    private static class Table {
+        final String name;
+        final String[] columns;
+        final String types;
+        final int[] uniqueCols; // columns of the unique key, or null
+        final List<Object[]> rows = new ArrayList<>();
+        final Map<List<Object>, Object[]> unique = new HashMap<>(); // unique key -> row
+        int nextId = 1; // auto_increment for tables with an 'id' column
+
+        Table(String name, String[] columns, String types, int[] uniqueCols){
+            this.name = name;
+            this.columns = columns;
+            this.types = types;
+            this.uniqueCols = uniqueCols;
+        }
+
+        /**
+         * @return Unique key of a row, or null if any key column is NULL (MySQL allows repeated NULL keys)
+         */
+        List<Object> key(Object[] row){
+            if (uniqueCols == null) {
+                return null;
+            }
+            Object[] key = new Object[uniqueCols.length];
+            for (int i = 0; i < uniqueCols.length; i++) {
+                key[i] = row[uniqueCols[i]];
+                if (key[i] == null) {
+                    return null;
+                }
+            }
+            return Arrays.asList(key);
+        }
+
+        Object[] find(Object[] row){
+            List<Object> key = key(row);
+            return (key == null) ? null : unique.get(key);
+        }
+
+        void insert(Object[] row){
+            if (columns[0].equals("id")) {
+                if (row[0] == null) {
+                    row[0] = nextId;
+                }
+                nextId = Math.max(nextId, (Integer) row[0] + 1);
+            }
+            rows.add(row);
+            List<Object> key = key(row);
+            if (key != null) {
+                unique.put(key, row);
+            }
+        }
+
+        /**
+         * INSERT ... ON DUPLICATE KEY UPDATE id = id
+         */
+        boolean insertIgnore(Object[] row){
+            if (find(row) == null) {
+                insert(row);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Delete every row whose value of a time column is before the given time
+         */
+        void removeIf(int column, Timestamp before){
+            Iterator<Object[]> it = rows.iterator();
+            while (it.hasNext()) {
+                Object[] row = it.next();
+                if (((Timestamp) row[column]).before(before)) {
+                    it.remove();
+                    List<Object> key = key(row);
+                    if (key != null) {
+                        unique.remove(key);
+                    }
+                }
+            }
+        }
+
+        void clear(){
+            rows.clear();
+            unique.clear();
+            nextId = 1;
+        }
+
+        /**
+         * Take the rows of the same table in another store, which must not be used afterwards
+         */
+        void replaceWith(Table other){
+            clear();
+            rows.addAll(other.rows);
+            unique.putAll(other.unique);
+            nextId = other.nextId;
+        }
+
+        /**
+         * @param first Index of the first column to include
+         */
+        List<Map<String, Object>> toMaps(List<Object[]> list, int first){
+            List<Map<String, Object>> ret = new ArrayList<>(list.size());
+            for (Object[] row : list) {
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int j = first; j < columns.length; j++) {
+                    map.put(columns[j], row[j]);
+                }
+                ret.add(map);
+            }
+            return ret;
+        }
+
+        /**
+         * Convert a saved JSON row back to column values
+         */
+        Object[] parse(JSONObject json){
+            Object[] row = new Object[columns.length];
+            for (int j = 0; j < columns.length; j++) {
+                if (json.isNull(columns[j])) {
+                    continue;
+                }
+                switch (types.charAt(j)) {
+                    case 'i':
+                        row[j] = json.getInt(columns[j]);
+                        break;
+                    case 'l':
+                        row[j] = json.getLong(columns[j]);
+                        break;
+                    case 'f':
+                        row[j] = json.getDouble(columns[j]);
+                        break;
+                    case 't':
+                        row[j] = Timestamp.valueOf(json.getString(columns[j]));
+                        break;
+                    case 'd':
+                        row[j] = java.sql.Date.valueOf(json.getString(columns[j]));
+                        break;
+                    default:
+                        row[j] = json.getString(columns[j]);
+                }
+            }
+            return row;
+        }
+    }
+}
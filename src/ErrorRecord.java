@@ -0,0 +1,68 @@
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single error found by quality testing, as written to the errors table in the EIS quality database
+ * @Author Ross Newby
+ */
+public class ErrorRecord {
+
+    private final int errType;
+    private final String logCode;
+    private final String logChan; // null if the error is for a logger rather than a meter
+    private final Timestamp time;
+
+    /**
+     * @param errType Value for error type field
+     * @param logCode Value for logger code field
+     * @param logChan Value for logger channel field; may be null
+     * @param time Value for time field
+     */
+    public ErrorRecord(int errType, String logCode, String logChan, Timestamp time){
+        this.errType = errType;
+        this.logCode = logCode;
+        this.logChan = logChan;
+        this.time = time;
+    }
+
+    public int getErrType(){
+        return errType;
+    }
+
+    public String getLogCode(){
+        return logCode;
+    }
+
+    public String getLogChan(){
+        return logChan;
+    }
+
+    public Timestamp getTime(){
+        return time;
+    }
+
+    /**
+     * Counts errors for each row of the daily rollup table
+     * @param errors Errors to count
+     * @param metadata Metadata the building code of each logger and utility type of each meter are looked up in; may be null
+     * @return Map of 'yyyy-MM-dd|error type|building code|utility type' to number of errors; unknown building codes and utility
+     * types are empty
+     */
+    public static Map<String, Integer> countDaily(List<ErrorRecord> errors, MetadataStore metadata){
+        SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+        Map<String, Integer> daily = new HashMap<>();
+        for (ErrorRecord err : errors) {
+            int logger = (metadata == null) ? -1 : metadata.findLogger(err.getLogCode());
+            int meter = (metadata == null || err.getLogChan() == null) ? -1 : metadata.findMeter(err.getLogCode(), err.getLogChan());
+            String building = (logger < 0) ? null : metadata.getBuildingCode(logger);
+            String utility = (meter < 0) ? null : metadata.getUtilityType(meter);
+            String key = dayFormat.format(err.getTime()) +"|"+ err.getErrType() +"|"+ (building == null ? "" : building) +"|"+ (utility == null ? "" : utility);
+            Integer n = daily.get(key);
+            daily.put(key, (n == null) ? 1 : n + 1);
+        }
+        return daily;
+    }
+}
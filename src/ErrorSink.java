@@ -0,0 +1,369 @@
+import org.json.JSONObject;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Asynchronous write-behind sink for errors and erroneous assets. Analysis threads publish records to a bounded queue and
+ * return immediately, blocking only when the queue is full; writer threads drain the queue and write records to the EIS quality
+ * database in batches. A batch which cannot be written is retried with backoff; if it still fails, its records are counted as
+ * failed, so callers which only commit work once its errors are durable (file fingerprints, shard leases, the metadata snapshot)
+ * can take a mark() before the work and check writtenSince() after flushing. The following optional fields may be specified in
+ * config.properties: 'sinkqueuesize', 'sinkbatchsize', 'sinkwriters' and 'sinkretries' (default 3)
+ * @Author Ross Newby
+ */
+public class ErrorSink {
+
+    private static final String PROPERTIES_FILENAME = "config.properties";
+    private static final int DEFAULT_QUEUE_SIZE = 10000; // records waiting to be written before publishers block
+    private static final int DEFAULT_BATCH_SIZE = 500; // records written per database batch
+    private static final int DEFAULT_WRITERS = 1;
+    private static final int DEFAULT_RETRIES = 3; // further attempts at writing a failed batch
+    private static final long RETRY_BACKOFF_MILLIS = 1000; // wait before the first retry; doubles on every retry
+
+    private BlockingQueue<Object> queue; // ErrorRecord and AssetRecord objects to write
+    private int batchSize;
+    private int retries = DEFAULT_RETRIES;
+    private List<Thread> writers = new ArrayList<>();
+    private volatile boolean closed = false;
+    private volatile KnownErrorFilter knownErrors = null; // errors already in the database; not written again
+    private volatile EventStream events = null; // notified of every error and asset written
+    private volatile MetadataStore metadata = null; // building code of each logger and utility type of each meter, for error rollups
+
+    private final Object progress = new Object(); // monitor for published / written counts
+    private long published = 0; // records accepted by the sink; guarded by progress
+    private long written = 0; // records the writers have finished with; guarded by progress
+    private long failed = 0; // records the writers gave up on; guarded by progress
+
+    /**
+     * Initialise the sink and start its writer threads. Every writer opens its own connection to the database
+     * @param database Database to write records to
+     */
+    public ErrorSink(QualityStore database){
+
+        /*Read configuration file; populate variables*/
+        int queueSize = DEFAULT_QUEUE_SIZE;
+        int nWriters = DEFAULT_WRITERS;
+        batchSize = DEFAULT_BATCH_SIZE;
+        try {
+            Properties prop = new Properties();
+            InputStream in = getClass().getClassLoader().getResourceAsStream(PROPERTIES_FILENAME);
+
+            if (in != null) {
+                prop.load(in);
+                in.close();
+            } else {
+                throw new FileNotFoundException("'" + PROPERTIES_FILENAME + "' not found in classpath");
+            }
+
+            queueSize = Integer.parseInt(prop.getProperty("sinkqueuesize", Integer.toString(queueSize)));
+            batchSize = Integer.parseInt(prop.getProperty("sinkbatchsize", Integer.toString(batchSize)));
+            nWriters = Integer.parseInt(prop.getProperty("sinkwriters", Integer.toString(nWriters)));
+            retries = Math.max(0, Integer.parseInt(prop.getProperty("sinkretries", Integer.toString(retries)).trim()));
+        }
+        catch (Exception e){
+            // System.out.println("Error Reading Configuration File: "+ PROPERTIES_FILENAME); // use defaults
+        }
+        queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        batchSize = Math.max(1, batchSize);
+
+        /*Start writer threads*/
+        for (int i = 0; i < Math.max(1, nWriters); i++) {
+            final QualityStore writerDB = database.openWriter(); // batches are transactions; keep other statements off them
+            Thread writer = new Thread("error-sink-" + i) {
+                public void run() {
+                    drain(writerDB);
+                }
+            };
+            writer.setDaemon(true);
+            writer.start();
+            writers.add(writer);
+        }
+    }
+
+    /**
+     * Publish an error for a meter
+     * @param errType Value to insert into error type field
+     * @param logCode Value to insert into logger code field
+     * @param logChan Value to insert into logger channel field
+     * @param time Value to insert into time field
+     */
+    public void addError(int errType, String logCode, String logChan, Timestamp time){
+        KnownErrorFilter filter = knownErrors;
+        if (filter != null && !filter.add(errType, logCode, logChan, time)) {
+            return; // already in the database
+        }
+        publish(new ErrorRecord(errType, logCode, logChan, time));
+    }
+
+    /**
+     * Publish an error for a logger
+     * @param errType Value to insert into error type field
+     * @param logCode Value to insert into logger code field
+     * @param time Value to insert into time field
+     */
+    public void addError(int errType, String logCode, Timestamp time){
+        addError(errType, logCode, null, time);
+    }
+
+    /**
+     * Publish an erroneous asset
+     * @param ware Value to insert into hardware field
+     * @param logCode Value to insert into logger code field
+     * @param logChan Value to insert into logger channel field
+     * @param util Value to insert into utility type field
+     * @param time Value to insert into most recent error field
+     */
+    public void addAsset(String ware, String logCode, String logChan, String util, Timestamp time){
+        publish(new AssetRecord(ware, logCode, logChan, util, time));
+    }
+
+    /**
+     * Publish an erroneous asset
+     * @param ware Value to insert into hardware field
+     * @param logCode Value to insert into logger code field
+     * @param logChan Value to insert into logger channel field
+     * @param time Value to insert into most recent error field
+     */
+    public void addAsset(String ware, String logCode, String logChan, Timestamp time){
+        publish(new AssetRecord(ware, logCode, logChan, null, time));
+    }
+
+    /**
+     * Publish an erroneous asset
+     * @param ware Value to insert into hardware field
+     * @param logCode Value to insert into logger code field
+     * @param time Value to insert into most recent error field
+     */
+    public void addAsset(String ware, String logCode, Timestamp time){
+        publish(new AssetRecord(ware, logCode, null, null, time));
+    }
+
+    /**
+     * Set a filter of errors already in the database; errors found in the filter are not written, and new errors are added to it
+     * @param filter Filter of known errors, or null to write every error
+     */
+    public void setKnownErrorFilter(KnownErrorFilter filter){
+        knownErrors = filter;
+    }
+
+    /**
+     * Set the stream notified of new errors and updated assets once they have been written
+     * @param events Event stream, or null for no notifications
+     */
+    public void setEventStream(EventStream events){
+        this.events = events;
+    }
+
+    /**
+     * Set the lookups used to group errors by building and utility type in the rollup tables
+     * @param metadata Metadata the building code and utility type of each error are looked up in
+     */
+    public void setRollupLookup(MetadataStore metadata){
+        this.metadata = metadata;
+    }
+
+    /**
+     * Blocks until every record published before this call has been written to the database
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public void flush() throws InterruptedException{
+        synchronized (progress) {
+            long target = published;
+            while (written < target) {
+                progress.wait();
+            }
+        }
+    }
+
+    /**
+     * @return Mark to pass to writtenSince(), taken before publishing the records of some work
+     */
+    public long mark(){
+        synchronized (progress) {
+            return failed;
+        }
+    }
+
+    /**
+     * Check whether the records of some work were written; call flush() first. Any record which failed after the mark was taken
+     * counts against the work, so the check is conservative when several threads publish at once
+     * @param mark Mark taken before the work's records were published
+     * @return True if no record has failed to be written since the mark
+     */
+    public boolean writtenSince(long mark){
+        synchronized (progress) {
+            return failed == mark;
+        }
+    }
+
+    /**
+     * Flush every published record, then stop the writer threads
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public void close() throws InterruptedException{
+        closed = true; // no more records are accepted while the queue drains
+        flush();
+        for (Thread writer : writers) {
+            writer.interrupt();
+            writer.join();
+        }
+    }
+
+    /**
+     * Add a record to the queue, blocking while the queue is full (backpressure on analysis threads)
+     * @param record ErrorRecord or AssetRecord
+     */
+    private void publish(Object record){
+        if (closed) {
+            throw new IllegalStateException("Error sink is closed");
+        }
+        synchronized (progress) {
+            published++;
+        }
+        try {
+            queue.put(record);
+        }
+        catch (InterruptedException e){
+            recordWritten(1, true); // record is dropped; must not hold up flush()
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writer thread loop; takes records from the queue and writes them in batches until the sink is closed
+     * @param writerDB Database connection owned by this writer
+     */
+    private void drain(QualityStore writerDB){
+        List<Object> batch = new ArrayList<>(batchSize);
+        List<ErrorRecord> errors = new ArrayList<>();
+        List<AssetRecord> assets = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take()); // wait for at least one record
+            }
+            catch (InterruptedException e){
+                if (closed && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            queue.drainTo(batch, batchSize - 1);
+
+            for (Object record : batch) {
+                if (record instanceof ErrorRecord) {
+                    errors.add((ErrorRecord) record);
+                }
+                else {
+                    assets.add((AssetRecord) record);
+                }
+            }
+            boolean ok = write(writerDB, errors, assets);
+            if (!ok) {
+                System.out.println("Error Sink: could not write "+ batch.size() +" record(s)");
+                KnownErrorFilter filter = knownErrors;
+                if (filter != null) { // errors were not written; allow them to be found again next run
+                    for (ErrorRecord err : errors) {
+                        filter.remove(err.getErrType(), err.getLogCode(), err.getLogChan(), err.getTime());
+                    }
+                }
+            }
+            recordWritten(batch.size(), !ok);
+            batch.clear();
+            errors.clear();
+            assets.clear();
+        }
+    }
+
+    /**
+     * Write a batch, retrying with backoff if it fails; errors are written first, and are not written again by a retry after only
+     * the assets failed. Only the errors which were not already in the database are notified
+     * @param writerDB Database connection owned by this writer
+     * @param errors Errors of the batch
+     * @param assets Assets of the batch
+     * @return True if the batch was written
+     */
+    private boolean write(QualityStore writerDB, List<ErrorRecord> errors, List<AssetRecord> assets){
+        long backoff = RETRY_BACKOFF_MILLIS;
+        List<ErrorRecord> inserted = null; // errors new to the database; null until the errors are written
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (inserted == null) {
+                    inserted = errors.isEmpty() ? errors : writerDB.addErrors(errors, metadata);
+                }
+                if (!assets.isEmpty()) {
+                    writerDB.addAssets(assets);
+                }
+                break;
+            }
+            catch (Exception e){
+                if (attempt >= retries || Thread.currentThread().isInterrupted()) { // retried while close() flushes; not once it stops the writers
+                    e.printStackTrace();
+                    return false;
+                }
+                System.out.println("Error Sink: write failed ("+ e.getMessage() +"); retrying in "+ backoff +"ms");
+                try {
+                    Thread.sleep(backoff);
+                }
+                catch (InterruptedException ie){
+                    return false; // stopped by close()
+                }
+                backoff *= 2;
+            }
+        }
+        notifyErrors(inserted);
+        notifyAssets(assets);
+        return true;
+    }
+
+    /**
+     * Publish a new-error event for every error inserted
+     * @param errors Errors inserted into the database
+     */
+    private void notifyErrors(List<ErrorRecord> errors){
+        EventStream stream = events;
+        if (stream == null || errors.isEmpty()) {
+            return;
+        }
+        for (ErrorRecord err : errors) {
+            stream.publish(EventStream.NEW_ERROR, new JSONObject().put("error_type", err.getErrType()).put("logger_code", err.getLogCode())
+                    .put("logger_channel", (err.getLogChan() == null) ? JSONObject.NULL : err.getLogChan()).put("timeVal", err.getTime().toString()));
+        }
+    }
+
+    /**
+     * Publish an asset-updated event for every asset written
+     * @param assets Assets written to the database
+     */
+    private void notifyAssets(List<AssetRecord> assets){
+        EventStream stream = events;
+        if (stream == null || assets.isEmpty()) {
+            return;
+        }
+        for (AssetRecord asset : assets) {
+            stream.publish(EventStream.ASSET_UPDATED, new JSONObject().put("hardware", asset.getWare()).put("logger_code", asset.getLogCode())
+                    .put("logger_channel", (asset.getLogChan() == null) ? JSONObject.NULL : asset.getLogChan())
+                    .put("utility_type", (asset.getUtil() == null) ? JSONObject.NULL : asset.getUtil()).put("most_recent_error", asset.getTime().toString()));
+        }
+    }
+
+    /**
+     * @param n Number of records the writers have finished with
+     * @param failure True if the records could not be written
+     */
+    private void recordWritten(int n, boolean failure){
+        synchronized (progress) {
+            written += n;
+            if (failure) {
+                failed += n;
+            }
+            progress.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stream of quality change events ('new-error', 'asset-updated' and 'run-completed') pushed to dashboard clients as Server-Sent
+ * Events. Every event has an ID '&lt;epoch&gt;-&lt;sequence&gt;', where the epoch identifies this stream and the sequence numbers its
+ * events; recent events are kept so a client reconnecting with 'Last-Event-ID' (or '?since=') is sent the events it missed. A
+ * client whose ID is from another epoch, e.g. before the server restarted, or which can no longer be replayed, is sent a 'reset'
+ * event and then every event kept. Each client has a bounded buffer; a client which falls too far behind is disconnected and can
+ * reconnect to replay from its last event
+ * @Author Ross Newby
+ */
+public class EventStream implements HttpHandler {
+
+    public static final String NEW_ERROR = "new-error"; // event types
+    public static final String ASSET_UPDATED = "asset-updated";
+    public static final String RUN_COMPLETED = "run-completed";
+
+    private static final int REPLAY_SIZE = 10000; // events kept for replay
+    private static final int CLIENT_BUFFER_SIZE = 1000; // events buffered per client before it is disconnected
+    private static final int MAX_CLIENTS = 64;
+    private static final long KEEPALIVE_SECONDS = 15;
+    private static final long FOREIGN_ID = -2; // parsed ID of an event from another epoch
+
+    private final ArrayDeque<Event> replay = new ArrayDeque<>(); // guarded by this
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36); // sequence numbers restart with every stream
+    private long sequence = 0; // sequence number of the last event; guarded by this
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+
+    /**
+     * Publish an event to every subscribed client
+     * @param type Event type e.g. EventStream.NEW_ERROR
+     * @param data Event data
+     */
+    public void publish(String type, JSONObject data){
+        Event event;
+        synchronized (this) {
+            event = new Event(++sequence, type, data.toString());
+            replay.addLast(event);
+            if (replay.size() > REPLAY_SIZE) {
+                replay.removeFirst();
+            }
+        }
+        for (Client client : clients) {
+            if (!client.buffer.offer(event)) {
+                client.overflowed = true; // slow client; disconnect it rather than hold up the analysis
+            }
+        }
+    }
+
+    /**
+     * @return Sequence number of the most recent event
+     */
+    public synchronized long getSequence(){
+        return sequence;
+    }
+
+    /**
+     * Serve a client subscription; holds the connection open and writes events as they are published
+     * @param exchange HTTP exchange for the subscription
+     * @throws IOException When the connection fails
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+
+        if (clients.size() >= MAX_CLIENTS) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+
+        /*Sequence number to replay from; an ID from another epoch replays every event kept, after a reset*/
+        Map<String, String> params = QualityAPI.parseQuery(exchange.getRequestURI().getRawQuery());
+        String lastID = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+        long since = parseID((lastID != null) ? lastID : params.get("since"));
+        boolean foreign = since == FOREIGN_ID;
+
+        /*Subscribe before reading the replay buffer, so no event is missed in between*/
+        Client client = new Client();
+        clients.add(client);
+        List<Event> missed = new ArrayList<>();
+        long oldest;
+        synchronized (this) {
+            oldest = replay.isEmpty() ? sequence + 1 : replay.peekFirst().id;
+            if (since > sequence) { // from another epoch after all, e.g. a stream with the same epoch which published more
+                foreign = true;
+            }
+            if (foreign) {
+                since = 0;
+            }
+            if (since >= 0) {
+                for (Event event : replay) {
+                    if (event.id > since) {
+                        missed.add(event);
+                    }
+                }
+            }
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0); // chunked; open until the client disconnects
+        OutputStream out = exchange.getResponseBody();
+        try {
+            if (foreign || (since >= 0 && since + 1 < oldest)) { // client missed events which are no longer kept
+                write(out, new Event(oldest - 1, "reset", "{}"));
+            }
+            long last = since;
+            for (Event event : missed) {
+                write(out, event);
+                last = event.id;
+            }
+            out.flush();
+
+            while (!client.overflowed) {
+                Event event = client.buffer.poll(KEEPALIVE_SECONDS, TimeUnit.SECONDS);
+                if (event == null) {
+                    out.write(": keepalive\n\n".getBytes("UTF-8"));
+                }
+                else if (event.id > last) { // skip events already sent from the replay buffer
+                    write(out, event);
+                    last = event.id;
+                }
+                out.flush();
+            }
+        }
+        catch (IOException | InterruptedException e){
+            // client disconnected
+        }
+        finally {
+            clients.remove(client);
+            try {
+                out.close();
+            }
+            catch (IOException e){
+                // already closed
+            }
+            exchange.close();
+        }
+    }
+
+    /**
+     * @param id Event ID sent by the client, '&lt;epoch&gt;-&lt;sequence&gt;'; a bare sequence number is taken to be from this epoch
+     * @return Sequence number of the event, -1 if there is none or it is not valid, or FOREIGN_ID if it is from another epoch
+     */
+    private long parseID(String id){
+        if (id == null) {
+            return -1;
+        }
+        id = id.trim();
+        int dash = id.lastIndexOf('-');
+        if (dash >= 0 && !id.substring(0, dash).equals(epoch)) {
+            return FOREIGN_ID;
+        }
+        try {
+            long seq = Long.parseLong(id.substring(dash + 1));
+            return (seq >= 0) ? seq : -1;
+        }
+        catch (NumberFormatException e){
+            return -1;
+        }
+    }
+
+    private void write(OutputStream out, Event event) throws IOException{
+        out.write(("id: "+ epoch +"-"+ event.id +"\nevent: "+ event.type +"\ndata: "+ event.data +"\n\n").getBytes("UTF-8"));
+    }
+
+    /**
+     * A published event
+     */
+    private static class Event {
+        final long id;
+        final String type;
+        final String data;
+
+        Event(long id, String type, String data){
+            this.id = id;
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A subscribed client and its bounded buffer of events not yet written
+     */
+    private static class Client {
+        final BlockingQueue<Event> buffer = new ArrayBlockingQueue<>(CLIENT_BUFFER_SIZE);
+        volatile boolean overflowed = false;
+    }
+}
@@ -0,0 +1,125 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fingerprint of the readings for a single meter in a single CKAN file, as written to the meter files table in the EIS quality
+ * database. Row count and latest timestamp can be compared against a cheap CKAN aggregate query without fetching the readings;
+ * the hash covers the timestamp and value of every reading, in any order
+ * @Author Ross Newby
+ */
+public class FileFingerprint {
+
+    private final String logCode;
+    private final String logChan;
+    private final String fileID;
+    private final int rows;
+    private final String latest; // most recent reading timestamp as returned by CKAN; null if there are no rows
+    private final long hash;
+
+    /**
+     * @param logCode Value for logger code field
+     * @param logChan Value for logger channel field
+     * @param fileID Value for CKAN file ID field
+     * @param rows Value for row count field
+     * @param latest Value for latest timestamp field; may be null
+     * @param hash Value for content hash field
+     */
+    public FileFingerprint(String logCode, String logChan, String fileID, int rows, String latest, long hash){
+        this.logCode = logCode;
+        this.logChan = logChan;
+        this.fileID = fileID;
+        this.rows = rows;
+        this.latest = latest;
+        this.hash = hash;
+    }
+
+    /**
+     * Fingerprint readings fetched from a file
+     * @param logCode Meter's logger code
+     * @param logChan Meter's logger channel
+     * @param fileID CKAN resource ID of the file
+     * @param records Every reading for the meter in the file
+     * @return Fingerprint of the readings
+     */
+    public static FileFingerprint of(String logCode, String logChan, String fileID, JSONArray records){
+        long hash = 0;
+        String latest = null;
+        for (int i = 0; i < records.length(); i++) {
+            JSONObject record = records.getJSONObject(i);
+            String time = record.optString("timestamp", "");
+            hash += fnv(time + "|" + record.optString("param_value", "")); // sum; independent of the order CKAN returns rows in
+            if (latest == null || time.compareTo(latest) > 0) {
+                latest = time;
+            }
+        }
+        return new FileFingerprint(logCode, logChan, fileID, records.length(), latest, hash);
+    }
+
+    /**
+     * @return Key of the meter and file, as used to look up stored fingerprints
+     */
+    public String getKey(){
+        return key(logCode, logChan, fileID);
+    }
+
+    /**
+     * @return Key of a meter and file, as used to look up stored fingerprints
+     */
+    public static String key(String logCode, String logChan, String fileID){
+        return logCode + "/" + logChan + "/" + fileID;
+    }
+
+    /**
+     * @param other Another fingerprint of the same meter and file
+     * @return True if the row count and latest timestamp are the same; cheap to find, but a corrected value would not show
+     */
+    public boolean sameShape(FileFingerprint other){
+        return other != null && rows == other.rows && (latest == null ? other.latest == null : latest.equals(other.latest));
+    }
+
+    /**
+     * @param other Another fingerprint of the same meter and file
+     * @return True if the readings are the same
+     */
+    public boolean sameContent(FileFingerprint other){
+        return sameShape(other) && hash == other.hash;
+    }
+
+    public String getLogCode(){
+        return logCode;
+    }
+
+    public String getLogChan(){
+        return logChan;
+    }
+
+    public String getFileID(){
+        return fileID;
+    }
+
+    public int getRows(){
+        return rows;
+    }
+
+    public String getLatest(){
+        return latest;
+    }
+
+    public long getHash(){
+        return hash;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a string's UTF-8 bytes
+     */
+    private static long fnv(String s){
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
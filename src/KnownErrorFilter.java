@@ -0,0 +1,163 @@
+import java.sql.Timestamp;
+
+/**
+ * In-memory filter of errors already in the EIS quality database, keyed on (error type, logger code, logger channel, time) as in
+ * the errors table's unique key. Keys are held as 64-bit hashes in an open-addressing table of primitive longs, 8 to 16 bytes per
+ * error. A new error is only mistaken for a known one if its hash collides with one of theirs; with a million known errors, a
+ * chance of about one in 10^13 per new error. Used so that errors detected again on every run do not need a database round trip
+ * @Author Ross Newby
+ */
+public class KnownErrorFilter {
+
+    private static final int MIN_CAPACITY = 1 << 16;
+    private static final long EMPTY = 0; // hash of an empty slot; a key hashing to it is stored as EMPTY_KEY
+    private static final long EMPTY_KEY = 1;
+
+    private long[] slots; // linear probing; at most half full
+    private int size = 0; // number of keys held
+
+    /**
+     * Initialise an empty filter
+     * @param expected Expected number of errors; the filter grows if this is exceeded
+     */
+    public KnownErrorFilter(int expected){
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2L && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        slots = new long[capacity];
+    }
+
+    /**
+     * Record an error as known
+     * @param errType Error type
+     * @param logCode Logger code
+     * @param logChan Logger channel; may be null
+     * @param time Time of the error
+     * @return True if the error was not already known, false if it is already in the database
+     */
+    public synchronized boolean add(int errType, String logCode, String logChan, Timestamp time){
+
+        long hash = hash(errType, logCode, logChan, time);
+        int slot = find(slots, hash);
+        if (slots[slot] == hash) {
+            return false;
+        }
+        slots[slot] = hash;
+        if (++size * 2 > slots.length) {
+            resize(slots.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Forget a known error, e.g. when it could not be written to the database after all
+     * @param errType Error type
+     * @param logCode Logger code
+     * @param logChan Logger channel; may be null
+     * @param time Time of the error
+     */
+    public synchronized void remove(int errType, String logCode, String logChan, Timestamp time){
+
+        int slot = find(slots, hash(errType, logCode, logChan, time));
+        if (slots[slot] == EMPTY) {
+            return;
+        }
+        slots[slot] = EMPTY;
+        size--;
+
+        /*Shift later keys of the probe run back, so none is cut off from its home slot by the gap*/
+        int mask = slots.length - 1;
+        int gap = slot;
+        for (int i = (gap + 1) & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+            int home = home(slots[i], mask);
+            if (((i - home) & mask) >= ((i - gap) & mask)) { // home is at or before the gap, cyclically
+                slots[gap] = slots[i];
+                slots[i] = EMPTY;
+                gap = i;
+            }
+        }
+    }
+
+    /**
+     * @param errType Error type
+     * @param logCode Logger code
+     * @param logChan Logger channel; may be null
+     * @param time Time of the error
+     * @return True if the error is known to be in the database
+     */
+    public synchronized boolean contains(int errType, String logCode, String logChan, Timestamp time){
+        long hash = hash(errType, logCode, logChan, time);
+        return slots[find(slots, hash)] == hash;
+    }
+
+    /**
+     * @return Number of known errors
+     */
+    public synchronized int size(){
+        return size;
+    }
+
+    /**
+     * Rehash every key into a larger table
+     * @param capacity Number of slots; a power of two
+     */
+    private void resize(int capacity){
+        long[] old = slots;
+        slots = new long[capacity];
+        for (long hash : old) {
+            if (hash != EMPTY) {
+                slots[find(slots, hash)] = hash;
+            }
+        }
+    }
+
+    /**
+     * @return Slot holding the hash, or the empty slot it would be added in
+     */
+    private static int find(long[] table, long hash){
+        int mask = table.length - 1;
+        int i = home(hash, mask);
+        while (table[i] != EMPTY && table[i] != hash) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static int home(long hash, int mask){
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of an error key, finished with a MurmurHash3 mix. Times are compared to the second, as stored by MySQL
+     */
+    private static long hash(int errType, String logCode, String logChan, Timestamp time){
+        long h = 0xcbf29ce484222325L;
+        h = mix(h, errType);
+        h = mix(h, logCode);
+        h = (logChan == null) ? mix(h, -1) : mix(h, logChan); // NULL channel is distinct from an empty channel
+        h = mix(h, Math.floorDiv(time.getTime(), 1000L));
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h == EMPTY) ? EMPTY_KEY : h;
+    }
+
+    private static long mix(long h, String s){
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h, s.length()); // length separates adjacent fields
+    }
+
+    private static long mix(long h, long v){
+        for (int i = 0; i < 8; i++) {
+            h ^= (v >>> (i * 8)) & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Global budget for meter readings held on the heap. Readings are admitted against the budget as they are fetched; readings which
+ * do not fit, or which would take a single meter over its share, are spilled to disk instead, so peak heap use for readings is
+ * bounded by configuration rather than by the size of the largest meters. The following optional fields may be specified in
+ * config.properties: 'readingbudgetmb' (default a quarter of the maximum heap) and 'meterbudgetmb' (default a quarter of the budget)
+ * @Author Ross Newby
+ */
+public class MemoryBudget {
+
+    private static final String PROPERTIES_FILENAME = "config.properties";
+    private static final long MB = 1024L * 1024L;
+
+    private final long capacity; // bytes of readings allowed on the heap
+    private final long meterLimit; // bytes of readings allowed on the heap for a single meter
+    private long reserved = 0; // guarded by this
+
+    /**
+     * Initialise the budget, reading its size from the configuration file if specified
+     */
+    public MemoryBudget(){
+
+        long budget = Runtime.getRuntime().maxMemory() / 4;
+        long meter = -1;
+        try {
+            Properties prop = new Properties();
+            InputStream in = getClass().getClassLoader().getResourceAsStream(PROPERTIES_FILENAME);
+
+            if (in != null) {
+                prop.load(in);
+                in.close();
+            } else {
+                throw new FileNotFoundException("'" + PROPERTIES_FILENAME + "' not found in classpath");
+            }
+
+            budget = Long.parseLong(prop.getProperty("readingbudgetmb", Long.toString(budget / MB))) * MB;
+            meter = Long.parseLong(prop.getProperty("meterbudgetmb", "-1")) * MB;
+        }
+        catch (Exception e){
+            // System.out.println("Error Reading Configuration File: "+ PROPERTIES_FILENAME); // use defaults
+        }
+        capacity = Math.max(MB, budget);
+        meterLimit = (meter > 0) ? Math.min(meter, capacity) : capacity / 4;
+    }
+
+    /**
+     * Reserve heap for readings, if it is available; never blocks
+     * @param bytes Estimated size of the readings
+     * @param meterReserved Bytes already reserved by the meter the readings belong to
+     * @return True if the readings may be held on the heap, false if they should be spilled to disk
+     */
+    public synchronized boolean tryReserve(long bytes, long meterReserved){
+        if (meterReserved + bytes > meterLimit || reserved + bytes > capacity) {
+            return false;
+        }
+        reserved += bytes;
+        return true;
+    }
+
+    /**
+     * Return heap reserved for readings which are no longer held
+     * @param bytes Size given when the heap was reserved
+     */
+    public synchronized void release(long bytes){
+        reserved = Math.max(0, reserved - bytes);
+    }
+
+    /**
+     * @return Bytes currently reserved
+     */
+    public synchronized long getReserved(){
+        return reserved;
+    }
+}
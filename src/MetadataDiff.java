@@ -0,0 +1,257 @@
+import org.json.JSONObject;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Change-data diffing of the Planon metadata. Every logger and meter record is fingerprinted and compared against the
+ * snapshot kept from the previous run, so that only added, changed and removed records (and the records which cross-reference
+ * them) need to be re-checked by the metadata tests
+ * @Author Ross Newby
+ */
+public class MetadataDiff {
+
+    private static final String LOGGER_PREFIX = "logger."; // key prefixes used in the snapshot file
+    private static final String METER_PREFIX = "meter.";
+    private static final String KEY_SEPARATOR = "|"; // separates logger code, channel and asset code in meter keys
+
+    private String snapshotPath; // file the previous snapshot is read from and written to
+    private Map<String, String> previous = new HashMap<>(); // record key -> fingerprint from the last run
+    private Map<String, String> current = new HashMap<>(); // record key -> fingerprint for this run
+
+    private Set<String> added = new HashSet<>(); // record keys; populated by diff()
+    private Set<String> changed = new HashSet<>();
+    private Set<String> removed = new HashSet<>();
+
+    private Set<Integer> loggersToTest = new TreeSet<>(); // indices into the current logger / meter records
+    private Set<Integer> metersToTest = new TreeSet<>();
+
+    /**
+     * Initialise the diff engine, reading the previous snapshot from file if one exists
+     * @param snapshotPath Path of the snapshot file e.g. 'metadata.snapshot'
+     */
+    public MetadataDiff(String snapshotPath){
+
+        this.snapshotPath = snapshotPath;
+        File file = new File(snapshotPath);
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                Properties prop = new Properties();
+                prop.load(in);
+                for (String key : prop.stringPropertyNames()) {
+                    previous.put(key, prop.getProperty(key));
+                }
+            }
+            catch (IOException e){
+                System.out.println("Could not read metadata snapshot "+ snapshotPath +"; all metadata will be tested");
+                previous.clear();
+            }
+        }
+    }
+
+    /**
+     * Forget the previous snapshot, so the next diff reports every record as added; used when the quality database is rebuilt
+     */
+    public void reset(){
+        previous.clear();
+    }
+
+    /**
+     * Compare the current metadata records against the previous snapshot. Loggers and meters which must be re-tested are those
+     * which were added or changed, along with any record whose cross-reference (error types 1 and 10) may have been affected by
+     * a logger or meter being added, changed or removed
+     * @param metadata Logger / controller and meter / sensor records from CKAN
+     */
+    public void diff(MetadataStore metadata){
+
+        current.clear();
+        added.clear();
+        changed.clear();
+        removed.clear();
+        loggersToTest.clear();
+        metersToTest.clear();
+
+        /*Fingerprint every record in this run*/
+        String[] loggerKeys = new String[metadata.getLoggerCount()];
+        for (int i = 0; i < loggerKeys.length; i++) {
+            loggerKeys[i] = uniqueKey(LOGGER_PREFIX + metadata.getLoggerCode(i));
+            current.put(loggerKeys[i], metadata.getLoggerFingerprint(i));
+        }
+        String[] meterKeys = new String[metadata.getMeterCount()];
+        for (int i = 0; i < meterKeys.length; i++) {
+            meterKeys[i] = uniqueKey(METER_PREFIX + metadata.getMeterCode(i) + KEY_SEPARATOR
+                                    + metadata.getMeterChannel(i) + KEY_SEPARATOR + metadata.getMeterAssetCode(i));
+            current.put(meterKeys[i], metadata.getMeterFingerprint(i));
+        }
+
+        /*Added, changed and removed records*/
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+            String before = previous.get(entry.getKey());
+            if (before == null) {
+                added.add(entry.getKey());
+            }
+            else if (!before.equals(entry.getValue())) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String key : previous.keySet()) {
+            if (!current.containsKey(key)) {
+                removed.add(key);
+            }
+        }
+
+        /*Logger codes whose cross-references may have changed; a meter or logger appearing or disappearing*/
+        Set<String> meterLoggerCodes = new HashSet<>(); // logger codes of added / changed / removed meters (error 1)
+        Set<String> loggerCodes = new HashSet<>(); // logger codes of added / removed loggers (error 10)
+        for (String key : added) {
+            collectCode(key, meterLoggerCodes, loggerCodes);
+        }
+        for (String key : changed) {
+            collectCode(key, meterLoggerCodes, loggerCodes);
+        }
+        for (String key : removed) {
+            collectCode(key, meterLoggerCodes, loggerCodes);
+        }
+
+        /*Select the records to re-test*/
+        for (int i = 0; i < loggerKeys.length; i++) {
+            String code = metadata.getLoggerCode(i);
+            if (added.contains(loggerKeys[i]) || changed.contains(loggerKeys[i]) || meterLoggerCodes.contains(code)) {
+                loggersToTest.add(i);
+            }
+        }
+        for (int i = 0; i < meterKeys.length; i++) {
+            String code = metadata.getMeterCode(i);
+            if (added.contains(meterKeys[i]) || changed.contains(meterKeys[i]) || loggerCodes.contains(code)) {
+                metersToTest.add(i);
+            }
+        }
+    }
+
+    /**
+     * Write the fingerprints from the last diff as the new snapshot; should only be called once all errors found in this run
+     * have been written to the quality database
+     */
+    public void save(){
+
+        Properties prop = new Properties();
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+            prop.setProperty(entry.getKey(), entry.getValue());
+        }
+        File file = new File(snapshotPath);
+        File tmp = new File(snapshotPath + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            prop.store(out, "Planon metadata fingerprints");
+        }
+        catch (IOException e){
+            System.out.println("Could not write metadata snapshot "+ snapshotPath);
+            return;
+        }
+        if (!tmp.renameTo(file)) { // rename fails on some platforms if the file exists
+            file.delete();
+            tmp.renameTo(file);
+        }
+        previous = new HashMap<>(current);
+    }
+
+    /**
+     * @return Indices of logger records which must be tested, in ascending order
+     */
+    public Set<Integer> getLoggersToTest(){
+        return loggersToTest;
+    }
+
+    /**
+     * @return Indices of meter records which must be tested, in ascending order
+     */
+    public Set<Integer> getMetersToTest(){
+        return metersToTest;
+    }
+
+    public int getAddedCount(){
+        return added.size();
+    }
+
+    public int getChangedCount(){
+        return changed.size();
+    }
+
+    public int getRemovedCount(){
+        return removed.size();
+    }
+
+    /**
+     * Adds the logger code from a record key to the relevant set of affected codes
+     * @param key Logger or meter record key
+     * @param meterLoggerCodes Set of logger codes referenced by meter keys
+     * @param loggerCodes Set of logger codes from logger keys
+     */
+    private void collectCode(String key, Set<String> meterLoggerCodes, Set<String> loggerCodes){
+        String base = stripOccurrence(key);
+        if (base.startsWith(METER_PREFIX)) {
+            String rest = base.substring(METER_PREFIX.length());
+            int end = rest.indexOf(KEY_SEPARATOR);
+            meterLoggerCodes.add(end < 0 ? rest : rest.substring(0, end));
+        }
+        else if (base.startsWith(LOGGER_PREFIX)) {
+            loggerCodes.add(base.substring(LOGGER_PREFIX.length()));
+        }
+    }
+
+    /**
+     * Metadata may contain duplicate records; an occurrence number is appended to repeated keys so every record is tracked
+     * @param key Record key
+     * @return Key which is unique in the current snapshot
+     */
+    private String uniqueKey(String key){
+        if (!current.containsKey(key)) {
+            return key;
+        }
+        int n = 2;
+        while (current.containsKey(key + "#" + n)) {
+            n++;
+        }
+        return key + "#" + n;
+    }
+
+    /**
+     * @param key Record key, possibly with an occurrence number
+     * @return The key without its occurrence number
+     */
+    private String stripOccurrence(String key){
+        int hash = key.lastIndexOf('#');
+        return (hash > 0 && key.substring(hash + 1).matches("\\d+")) ? key.substring(0, hash) : key;
+    }
+
+    /**
+     * Hash every field of a record, in key order, ignoring the CKAN internal fields which change when a resource is re-uploaded;
+     * taken as the metadata store is built, so the record need not be kept
+     * @param record Metadata record
+     * @return Hex MD5 fingerprint of the record
+     */
+    static String fingerprint(JSONObject record){
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            List<String> keys = new ArrayList<>(record.keySet());
+            Collections.sort(keys);
+            for (String key : keys) {
+                if (key.equals("_id") || key.equals("_full_text")) {
+                    continue;
+                }
+                md.update(key.getBytes("UTF-8"));
+                md.update((byte) 0);
+                md.update(String.valueOf(record.opt(key)).getBytes("UTF-8"));
+                md.update((byte) 0);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+        catch (Exception e){
+            return record.toString(); // MD5 / UTF-8 are always available; fall back to the raw record regardless
+        }
+    }
+}
@@ -0,0 +1,233 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * Read-only store of the Planon logger and meter metadata, built once from the CKAN records each time the metadata is read.
+ * Fields are held as columns of dictionary codes, so values repeated across records, such as utility types, classification
+ * groups and building codes, are held once; logger codes share a dictionary between the logger and meter records. Loggers are
+ * indexed by logger code and meters by logger code and by logger code and channel. Records are addressed by their index in the
+ * CKAN records. A store is never modified once built, so it may be shared by any number of threads
+ * @Author Ross Newby
+ */
+public class MetadataStore {
+
+    private final Dictionary codes = new Dictionary(); // logger codes; shared by loggers and meters
+    private final Dictionary buildings = new Dictionary();
+    private final Dictionary channels = new Dictionary();
+    private final Dictionary utilities = new Dictionary();
+    private final Dictionary groups = new Dictionary(); // classification groups
+    private final Dictionary text = new Dictionary(); // descriptions and asset codes
+
+    private final int[] loggerCodes, loggerBuildings, loggerDescriptions;
+    private final String[] loggerFingerprints;
+    private final int[] meterCodes, meterChannels, meterAssetCodes, meterDescriptions, meterUtilities, meterGroups;
+    private final String[] meterFingerprints;
+
+    private final Map<Integer, Integer> loggerByCode = new HashMap<>(); // logger code -> first logger with that code
+    private final Map<Integer, int[]> metersByCode = new HashMap<>(); // logger code -> meters on the logger
+    private final Map<Long, Integer> meterByChannel = new HashMap<>(); // logger code and channel -> first meter on that channel
+
+    /**
+     * Build a store from the metadata records read from CKAN; the records need not be kept
+     * @param loggerList Logger / controller records
+     * @param meterList Meter / sensor records
+     */
+    public MetadataStore(JSONArray loggerList, JSONArray meterList){
+
+        int nLoggers = loggerList.length();
+        loggerCodes = new int[nLoggers];
+        loggerBuildings = new int[nLoggers];
+        loggerDescriptions = new int[nLoggers];
+        loggerFingerprints = new String[nLoggers];
+        for (int i = 0; i < nLoggers; i++) {
+            JSONObject logger = loggerList.getJSONObject(i);
+            loggerCodes[i] = codes.encode(field(logger, "Logger Serial Number"));
+            loggerBuildings[i] = buildings.encode(field(logger, "Building Code"));
+            loggerDescriptions[i] = text.encode(field(logger, "Description"));
+            loggerFingerprints[i] = MetadataDiff.fingerprint(logger);
+            if (!loggerByCode.containsKey(loggerCodes[i])) {
+                loggerByCode.put(loggerCodes[i], i);
+            }
+        }
+
+        int nMeters = meterList.length();
+        meterCodes = new int[nMeters];
+        meterChannels = new int[nMeters];
+        meterAssetCodes = new int[nMeters];
+        meterDescriptions = new int[nMeters];
+        meterUtilities = new int[nMeters];
+        meterGroups = new int[nMeters];
+        meterFingerprints = new String[nMeters];
+        Map<Integer, List<Integer>> byCode = new HashMap<>();
+        for (int i = 0; i < nMeters; i++) {
+            JSONObject meter = meterList.getJSONObject(i);
+            meterCodes[i] = codes.encode(field(meter, "Logger Asset Code"));
+            meterChannels[i] = channels.encode(field(meter, "Logger Channel"));
+            meterAssetCodes[i] = text.encode(field(meter, "Asset Code"));
+            meterDescriptions[i] = text.encode(field(meter, "Description"));
+            meterUtilities[i] = utilities.encode(field(meter, "Utility Type"));
+            meterGroups[i] = groups.encode(field(meter, "Classification Group"));
+            meterFingerprints[i] = MetadataDiff.fingerprint(meter);
+
+            List<Integer> meters = byCode.get(meterCodes[i]);
+            if (meters == null) {
+                meters = new ArrayList<>();
+                byCode.put(meterCodes[i], meters);
+            }
+            meters.add(i);
+            long key = channelKey(meterCodes[i], meterChannels[i]);
+            if (!meterByChannel.containsKey(key)) {
+                meterByChannel.put(key, i);
+            }
+        }
+        for (Map.Entry<Integer, List<Integer>> entry : byCode.entrySet()) {
+            int[] meters = new int[entry.getValue().size()];
+            for (int j = 0; j < meters.length; j++) {
+                meters[j] = entry.getValue().get(j);
+            }
+            metersByCode.put(entry.getKey(), meters);
+        }
+    }
+
+    public int getLoggerCount(){
+        return loggerCodes.length;
+    }
+
+    public int getMeterCount(){
+        return meterCodes.length;
+    }
+
+    /**
+     * @return Logger serial number of a logger record
+     */
+    public String getLoggerCode(int logger){
+        return codes.decode(loggerCodes[logger]);
+    }
+
+    public String getBuildingCode(int logger){
+        return buildings.decode(loggerBuildings[logger]);
+    }
+
+    public String getLoggerDescription(int logger){
+        return text.decode(loggerDescriptions[logger]);
+    }
+
+    /**
+     * @return Fingerprint of every field of a logger record; see MetadataDiff
+     */
+    public String getLoggerFingerprint(int logger){
+        return loggerFingerprints[logger];
+    }
+
+    /**
+     * @return Logger asset code of a meter record
+     */
+    public String getMeterCode(int meter){
+        return codes.decode(meterCodes[meter]);
+    }
+
+    public String getMeterChannel(int meter){
+        return channels.decode(meterChannels[meter]);
+    }
+
+    public String getMeterAssetCode(int meter){
+        return text.decode(meterAssetCodes[meter]);
+    }
+
+    public String getMeterDescription(int meter){
+        return text.decode(meterDescriptions[meter]);
+    }
+
+    public String getUtilityType(int meter){
+        return utilities.decode(meterUtilities[meter]);
+    }
+
+    public String getClassificationGroup(int meter){
+        return groups.decode(meterGroups[meter]);
+    }
+
+    /**
+     * @return Fingerprint of every field of a meter record; see MetadataDiff
+     */
+    public String getMeterFingerprint(int meter){
+        return meterFingerprints[meter];
+    }
+
+    /**
+     * @param loggerCode Logger serial number
+     * @return Index of the first logger record with the code, or -1 if there is none
+     */
+    public int findLogger(String loggerCode){
+        Integer logger = loggerByCode.get(codes.find(loggerCode));
+        return (logger == null) ? -1 : logger;
+    }
+
+    /**
+     * @param loggerCode Logger asset code
+     * @param loggerChannel Logger channel
+     * @return Index of the first meter record on the logger's channel, or -1 if there is none
+     */
+    public int findMeter(String loggerCode, String loggerChannel){
+        int code = codes.find(loggerCode);
+        int channel = channels.find(loggerChannel);
+        Integer meter = (code < 0 || channel < 0) ? null : meterByChannel.get(channelKey(code, channel));
+        return (meter == null) ? -1 : meter;
+    }
+
+    /**
+     * @return True if any logger record has the code
+     */
+    public boolean hasLogger(String loggerCode){
+        return loggerByCode.containsKey(codes.find(loggerCode));
+    }
+
+    /**
+     * @return True if any meter record is on the logger
+     */
+    public boolean hasMeters(String loggerCode){
+        return metersByCode.containsKey(codes.find(loggerCode));
+    }
+
+    private static long channelKey(int code, int channel){
+        return ((long) code << 32) | (channel & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return Value of a field; missing and null fields are empty
+     */
+    private static String field(JSONObject record, String name){
+        return record.optString(name, "");
+    }
+
+    /**
+     * Dictionary of the distinct values of one or more columns; each value is held once, and records hold its code
+     */
+    private static class Dictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int encode(String value){
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        /**
+         * @return Code of a value, or -1 if no record has it
+         */
+        int find(String value){
+            Integer code = codes.get(value);
+            return (code == null) ? -1 : code;
+        }
+
+        String decode(int code){
+            return values.get(code);
+        }
+    }
+}
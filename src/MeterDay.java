@@ -0,0 +1,203 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * Rollup of a single meter's readings on a single day, as written to the meter days table in the EIS quality database. Rollups
+ * are built as readings are fetched, or by the datastore itself when checks are pushed down, and let checks which only need
+ * daily totals, such as missing days (error 24), run over a meter's whole history without its readings
+ * @Author Ross Newby
+ */
+public class MeterDay {
+
+    private final String day; // 'yyyy-MM-dd'
+    private int readings = 0;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private double sum = 0;
+    private int negatives = 0;
+    private String first = null; // earliest reading timestamp as returned by CKAN
+    private String last = null; // latest reading timestamp as returned by CKAN
+
+    /**
+     * @param day Day of the rollup, 'yyyy-MM-dd'
+     */
+    public MeterDay(String day){
+        this.day = day;
+    }
+
+    /**
+     * @param day Value for day field, 'yyyy-MM-dd'
+     * @param readings Value for readings field
+     * @param min Value for min value field
+     * @param max Value for max value field
+     * @param sum Value for sum value field
+     * @param negatives Value for negatives field
+     * @param first Value for first reading field
+     * @param last Value for last reading field
+     */
+    public MeterDay(String day, int readings, double min, double max, double sum, int negatives, String first, String last){
+        this.day = day;
+        this.readings = readings;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.negatives = negatives;
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Roll up readings fetched from a file, by day
+     * @param records Meter readings
+     * @return Rollup of every day with readings; readings without a parsable value are counted but not summed
+     */
+    public static Collection<MeterDay> rollup(JSONArray records){
+        Map<String, MeterDay> days = new HashMap<>();
+        for (int i = 0; i < records.length(); i++) {
+            JSONObject record = records.getJSONObject(i);
+            String time = record.optString("timestamp", "");
+            if (time.length() < 10) {
+                continue;
+            }
+            MeterDay day = days.get(time.substring(0, 10));
+            if (day == null) {
+                day = new MeterDay(time.substring(0, 10));
+                days.put(day.getDay(), day);
+            }
+            day.add(time, record.optDouble("param_value", Double.NaN));
+        }
+        return days.values();
+    }
+
+    /**
+     * Read a rollup as returned by ReadingQueryPlanner.dailyURL()
+     * @param row Datastore row
+     * @return Rollup of the row's day
+     */
+    public static MeterDay fromCKAN(JSONObject row){
+        return new MeterDay(row.getString("day").substring(0, 10), row.getInt("n"), row.optDouble("min_value", Double.NaN),
+                row.optDouble("max_value", Double.NaN), row.optDouble("sum_value", 0), row.optInt("negatives", 0),
+                row.isNull("first_reading") ? null : row.getString("first_reading"), row.isNull("last_reading") ? null : row.getString("last_reading"));
+    }
+
+    /**
+     * Add a reading to the rollup
+     * @param timestamp Reading timestamp as returned by CKAN
+     * @param value Reading value; NaN if it could not be parsed
+     */
+    public void add(String timestamp, double value){
+        readings++;
+        if (!Double.isNaN(value)) {
+            min = Double.isNaN(min) ? value : Math.min(min, value);
+            max = Double.isNaN(max) ? value : Math.max(max, value);
+            sum += value;
+            if (value < 0) {
+                negatives++;
+            }
+        }
+        if (first == null || timestamp.compareTo(first) < 0) {
+            first = timestamp;
+        }
+        if (last == null || timestamp.compareTo(last) > 0) {
+            last = timestamp;
+        }
+    }
+
+    /**
+     * Add the readings of another rollup of the same day, e.g. from another file
+     * @param other Rollup of the same day
+     */
+    public void merge(MeterDay other){
+        readings += other.readings;
+        if (!Double.isNaN(other.min)) {
+            min = Double.isNaN(min) ? other.min : Math.min(min, other.min);
+            max = Double.isNaN(max) ? other.max : Math.max(max, other.max);
+        }
+        sum += other.sum;
+        negatives += other.negatives;
+        if (first == null || (other.first != null && other.first.compareTo(first) < 0)) {
+            first = other.first;
+        }
+        if (last == null || (other.last != null && other.last.compareTo(last) > 0)) {
+            last = other.last;
+        }
+    }
+
+    /**
+     * Compare the readings summarised by two rollups of the same day, e.g. one saved when the meter was last analysed and one
+     * from the datastore. Sums are compared to within rounding, as the datastore adds the readings in another order
+     * @param other Rollup of the same day, or null
+     * @return True if both have the same number of readings, minimum, maximum, sum and number of negative readings
+     */
+    public boolean sameValues(MeterDay other){
+        return other != null && readings == other.readings && negatives == other.negatives && close(min, other.min) && close(max, other.max)
+                && close(sum, other.sum);
+    }
+
+    /**
+     * @return True if two values are equal to within rounding, or both NaN
+     */
+    private static boolean close(double a, double b){
+        if (Double.isNaN(a) || Double.isNaN(b)) {
+            return Double.isNaN(a) && Double.isNaN(b);
+        }
+        return Math.abs(a - b) <= 1e-9 * Math.max(1, Math.max(Math.abs(a), Math.abs(b)));
+    }
+
+    /**
+     * Find the days with no readings between a meter's first and last day with readings
+     * @param days Rollups of the meter, by day; days with no rollup or no readings are missing
+     * @return First day of each run of consecutive missing days, oldest first
+     */
+    public static List<String> missingDays(SortedMap<String, MeterDay> days){
+        List<String> gaps = new ArrayList<>();
+        Calendar cal = Calendar.getInstance();
+        String expected = null; // day after the last day with readings
+        for (MeterDay day : days.values()) {
+            if (day.readings == 0) {
+                continue;
+            }
+            if (expected != null && day.day.compareTo(expected) > 0) {
+                gaps.add(expected);
+            }
+            cal.setTime(java.sql.Date.valueOf(day.day));
+            cal.add(Calendar.DATE, 1);
+            expected = String.format("%tF", cal);
+        }
+        return gaps;
+    }
+
+    public String getDay() {
+        return day;
+    }
+
+    public int getReadings() {
+        return readings;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public int getNegatives() {
+        return negatives;
+    }
+
+    public String getFirst() {
+        return first;
+    }
+
+    public String getLast() {
+        return last;
+    }
+}
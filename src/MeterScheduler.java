@@ -0,0 +1,177 @@
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Orders the meters of a run by priority, so that if the run is cut short the most important meters have already been tested.
+ * A meter's priority rises with how recently it last had an error, the importance of its utility type and how long since it was
+ * last checked. A run may also be given a wall-clock budget, after which no more meters are started; meters not started are
+ * first in line next run, having gone longest without a check. The following optional fields may be specified in
+ * config.properties: 'runbudgetmin' (minutes; default 0, no deadline) and 'utilitypriority' (utility types, most important
+ * first; default 'Electricity,Gas,Heat,Water')
+ * @Author Ross Newby
+ */
+public class MeterScheduler {
+
+    private static final String PROPERTIES_FILENAME = "config.properties";
+    private static final long DAY_MILLIS = 1000L * 60 * 60 * 24;
+    private static final double ERROR_WEIGHT = 4; // a meter which failed today outranks any utility or staleness
+    private static final double UTILITY_WEIGHT = 2;
+    private static final double STALE_WEIGHT = 1;
+    private static final double ERROR_HALF_LIFE_DAYS = 7; // weight of a meter's last error halves every week
+    private static final double STALE_DAYS = 30; // meters unchecked this long, or never checked, have full staleness weight
+
+    private long budgetMillis = 0; // wall-clock budget of a run; 0 for no deadline
+    private List<String> utilities = Arrays.asList("electricity", "gas", "heat", "water"); // most important first, lower case
+    private Map<String, Long> lastError = new ConcurrentHashMap<>(); // 'logger code/channel' -> time of most recent error
+    private Map<String, Long> lastChecked = new ConcurrentHashMap<>(); // 'logger code/channel' -> time last tested
+
+    /**
+     * Initialise the scheduler, reading the run budget and utility priorities from the configuration file if specified
+     */
+    public MeterScheduler(){
+        try {
+            Properties prop = new Properties();
+            InputStream in = getClass().getClassLoader().getResourceAsStream(PROPERTIES_FILENAME);
+
+            if (in != null) {
+                prop.load(in);
+                in.close();
+            } else {
+                throw new FileNotFoundException("'" + PROPERTIES_FILENAME + "' not found in classpath");
+            }
+
+            budgetMillis = Math.max(0, Long.parseLong(prop.getProperty("runbudgetmin", "0").trim())) * 60 * 1000;
+            String order = prop.getProperty("utilitypriority");
+            if (order != null) {
+                List<String> list = new ArrayList<>();
+                for (String util : order.split(",")) {
+                    if (!util.trim().isEmpty()) {
+                        list.add(util.trim().toLowerCase());
+                    }
+                }
+                utilities = list;
+            }
+        }
+        catch (Exception e){
+            // System.out.println("Error Reading Configuration File: "+ PROPERTIES_FILENAME); // use defaults
+        }
+    }
+
+    /**
+     * Read each meter's most recent error and last check from the quality database; called at the start of every run, as errors
+     * written by other runs and nodes change the order
+     * @param store Quality database
+     */
+    public void load(QualityStore store){
+        try {
+            for (Map<String, Object> row : store.getAssets()) {
+                Object time = row.get("most_recent_error");
+                if (time instanceof Date) {
+                    lastError.put(row.get("logger_code") +"/"+ row.get("logger_channel"), ((Date) time).getTime());
+                }
+            }
+            for (Map<String, Object> row : store.getMeterChecks()) {
+                Object time = row.get("checked");
+                if (time instanceof Date) {
+                    String key = row.get("logger_code") +"/"+ row.get("logger_channel");
+                    Long known = lastChecked.get(key);
+                    lastChecked.put(key, Math.max(((Date) time).getTime(), (known == null) ? 0 : known));
+                }
+            }
+        }
+        catch (SQLException e){
+            System.out.println("Could not read meter history; meters are prioritised by utility type only");
+        }
+    }
+
+    /**
+     * Order meters by priority, highest first; meters of equal priority keep their order
+     * @param meterKeys Key of every meter, 'logger code/channel'
+     * @param utilityTypes Utility type of every meter, in the same order
+     * @return Indices into meterKeys in the order they should be tested
+     */
+    public List<Integer> order(List<String> meterKeys, List<String> utilityTypes){
+
+        long now = System.currentTimeMillis();
+        final double[] scores = new double[meterKeys.size()];
+        List<Integer> order = new ArrayList<>(meterKeys.size());
+        for (int i = 0; i < meterKeys.size(); i++) {
+            scores[i] = priority(meterKeys.get(i), utilityTypes.get(i), now);
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() { // stable
+            public int compare(Integer a, Integer b) {
+                return Double.compare(scores[b], scores[a]);
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Order meters by priority, keeping the meters of each group together; groups are ordered by their highest priority meter,
+     * and meters within a group by priority. Used so the meters of a logger device are tested one after another
+     * @param meterKeys Key of every meter, 'logger code/channel'
+     * @param utilityTypes Utility type of every meter, in the same order
+     * @param groups Group of every meter, in the same order, e.g. its logger code
+     * @return Indices into meterKeys in the order they should be tested
+     */
+    public List<Integer> order(List<String> meterKeys, List<String> utilityTypes, List<String> groups){
+
+        Map<String, List<Integer>> grouped = new LinkedHashMap<>(); // in order of each group's highest priority meter
+        for (int i : order(meterKeys, utilityTypes)) {
+            List<Integer> group = grouped.get(groups.get(i));
+            if (group == null) {
+                group = new ArrayList<>();
+                grouped.put(groups.get(i), group);
+            }
+            group.add(i);
+        }
+        List<Integer> order = new ArrayList<>(meterKeys.size());
+        for (List<Integer> group : grouped.values()) {
+            order.addAll(group);
+        }
+        return order;
+    }
+
+    /**
+     * @param meterKey Key of the meter, 'logger code/channel'
+     * @param utilityType Utility type of the meter; may be null
+     * @param now Current time
+     * @return Priority score of the meter; higher is tested sooner
+     */
+    public double priority(String meterKey, String utilityType, long now){
+
+        double score = 0;
+        Long error = lastError.get(meterKey);
+        if (error != null) {
+            double days = Math.max(0, now - error) / (double) DAY_MILLIS;
+            score += ERROR_WEIGHT * Math.pow(0.5, days / ERROR_HALF_LIFE_DAYS);
+        }
+        int rank = (utilityType == null) ? -1 : utilities.indexOf(utilityType.trim().toLowerCase());
+        if (rank >= 0) {
+            score += UTILITY_WEIGHT * (utilities.size() - rank) / utilities.size();
+        }
+        Long checked = lastChecked.get(meterKey);
+        double stale = (checked == null) ? STALE_DAYS : Math.min(STALE_DAYS, Math.max(0, now - checked) / (double) DAY_MILLIS);
+        score += STALE_WEIGHT * stale / STALE_DAYS;
+        return score;
+    }
+
+    /**
+     * Record that a meter has been tested
+     * @param meterKey Key of the meter, 'logger code/channel'
+     */
+    public void checked(String meterKey){
+        lastChecked.put(meterKey, System.currentTimeMillis());
+    }
+
+    /**
+     * @return Time at which a run starting now must stop starting meters, or Long.MAX_VALUE if runs have no budget
+     */
+    public long deadline(){
+        return (budgetMillis > 0) ? System.currentTimeMillis() + budgetMillis : Long.MAX_VALUE;
+    }
+}
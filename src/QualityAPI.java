@@ -0,0 +1,211 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+
+/**
+ * Embedded HTTP/JSON read API for the dashboard, answered from the in-memory quality cache rather than MySQL. The following
+ * optional fields may be specified in config.properties: 'apiport' (default 8080; -1 disables the API), 'apiaddress' (address
+ * to listen on; default 127.0.0.1, so only local clients or a reverse proxy reach the API) and 'apiorigins' (comma separated
+ * origins of dashboards served from elsewhere, which browsers allow to read the API, or '*' for any; default none). Endpoints:
+ * <pre>
+ * /api/summary                                  latest quality log and totals
+ * /api/assets[?logger=&lt;code&gt;[&amp;channel=&lt;chan&gt;]]     every erroneous asset, or a single asset
+ * /api/errortypes                               error counts by type
+ * /api/timeseries[?type=&amp;building=&amp;utility=&amp;from=&amp;to=&amp;interval=day|month]
+ * /api/events[?since=&lt;id&gt;]                     Server-Sent Events stream of quality changes
+ * </pre>
+ * @Author Ross Newby
+ */
+public class QualityAPI {
+
+    private static final String PROPERTIES_FILENAME = "config.properties";
+    private static final int DEFAULT_PORT = 8080;
+    private static final String DEFAULT_ADDRESS = "127.0.0.1";
+
+    private QualityCache cache;
+    private EventStream events;
+    private HttpServer server = null;
+    private int port = DEFAULT_PORT;
+    private String address = DEFAULT_ADDRESS;
+    private List<String> origins = new ArrayList<>(); // allowed cross-origin callers; '*' for any
+
+    /**
+     * Initialise the API, reading the port, address and allowed origins from the configuration file if specified
+     * @param cache Cache to answer requests from
+     * @param events Stream of quality change events for subscribers
+     */
+    public QualityAPI(QualityCache cache, EventStream events){
+
+        this.cache = cache;
+        this.events = events;
+        try {
+            Properties prop = new Properties();
+            InputStream in = getClass().getClassLoader().getResourceAsStream(PROPERTIES_FILENAME);
+
+            if (in != null) {
+                prop.load(in);
+                in.close();
+            } else {
+                throw new FileNotFoundException("'" + PROPERTIES_FILENAME + "' not found in classpath");
+            }
+
+            port = Integer.parseInt(prop.getProperty("apiport", Integer.toString(port)));
+            address = prop.getProperty("apiaddress", address).trim();
+            for (String origin : prop.getProperty("apiorigins", "").split(",")) {
+                if (!origin.trim().isEmpty()) {
+                    origins.add(origin.trim());
+                }
+            }
+        }
+        catch (Exception e){
+            // System.out.println("Error Reading Configuration File: "+ PROPERTIES_FILENAME); // use defaults
+        }
+    }
+
+    /**
+     * Start serving requests, unless the API is disabled
+     * @return True if the API was started
+     */
+    public boolean start(){
+
+        if (port < 0) {
+            return false;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        }
+        catch (IOException | IllegalArgumentException e){
+            System.out.println("Read API Failed: Could not listen on "+ address +":"+ port);
+            return false;
+        }
+
+        server.createContext("/api/summary", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, cache.getSummary());
+            }
+        });
+        server.createContext("/api/assets", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                if (params.get("logger") == null) {
+                    respond(exchange, 200, cache.getAssets());
+                }
+                else {
+                    String asset = cache.getAsset(params.get("logger"), params.get("channel"));
+                    respond(exchange, (asset == null) ? 404 : 200, (asset == null) ? "{}" : asset);
+                }
+            }
+        });
+        server.createContext("/api/errortypes", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, cache.getErrorTypes());
+            }
+        });
+        server.createContext("/api/timeseries", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                Integer type;
+                try {
+                    type = (params.get("type") == null) ? null : Integer.valueOf(params.get("type"));
+                }
+                catch (NumberFormatException e){
+                    respond(exchange, 400, "{\"error\":\"type must be a number\"}");
+                    return;
+                }
+                respond(exchange, 200, cache.getTimeSeries(type, params.get("building"), params.get("utility"),
+                        params.get("from"), params.get("to"), "month".equals(params.get("interval"))));
+            }
+        });
+
+        server.createContext("/api/events", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                allowOrigin(exchange);
+                events.handle(exchange);
+            }
+        });
+
+        server.setExecutor(Executors.newCachedThreadPool()); // event subscribers each hold a thread; EventStream limits them
+        server.start();
+        System.out.println("Read API listening on "+ address +":"+ port);
+        return true;
+    }
+
+    /**
+     * Stop serving requests
+     */
+    public void stop(){
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /**
+     * Allow the request's origin to read the response, if it is a configured dashboard origin
+     */
+    private void allowOrigin(HttpExchange exchange){
+        if (origins.contains("*")) {
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            return;
+        }
+        String origin = exchange.getRequestHeaders().getFirst("Origin");
+        if (origin != null && origins.contains(origin)) {
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", origin);
+            exchange.getResponseHeaders().set("Vary", "Origin"); // the response differs by origin; caches must not share it
+        }
+    }
+
+    /**
+     * Write a JSON response and close the exchange
+     */
+    private void respond(HttpExchange exchange, int status, String json) throws IOException{
+        byte[] body = json.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        allowOrigin(exchange); // dashboard may be served from elsewhere
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * Parse a URL query string into parameter names and values
+     * @param query Raw query string e.g. 'logger=abc&channel=1'; may be null
+     * @return Map of parameter names to decoded values
+     */
+    static Map<String, String> parseQuery(String query){
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            try {
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+                else if (!pair.equals("")) {
+                    params.put(URLDecoder.decode(pair, "UTF-8"), "");
+                }
+            }
+            catch (UnsupportedEncodingException | IllegalArgumentException e){
+                // ignore malformed parameters
+            }
+        }
+        return params;
+    }
+}
@@ -0,0 +1,198 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * In-memory cache of the current state of the EIS quality database, used to answer dashboard queries without reading MySQL.
+ * The cache is rebuilt by the analysis run once its results have been written; readers always see a complete snapshot
+ * @Author Ross Newby
+ */
+public class QualityCache {
+
+    private volatile Snapshot snapshot = new Snapshot(); // replaced, never modified, on refresh
+
+    /**
+     * Rebuild the cache from the quality database
+     * @param database Database to read quality state from
+     * @return True if the cache was refreshed, false if the database could not be read (the previous state is kept)
+     */
+    public boolean refresh(QualityStore database){
+
+        Snapshot next = new Snapshot();
+        try {
+            /*Error type descriptions*/
+            Map<Integer, String> descriptions = new TreeMap<>();
+            for (Map<String, Object> row : database.getLookups()) {
+                descriptions.put(((Number) row.get("id")).intValue(), (String) row.get("description"));
+            }
+
+            /*Error counts for every asset, by type*/
+            Map<String, JSONObject> assets = new LinkedHashMap<>();
+            for (Map<String, Object> row : database.getAssets()) {
+                JSONObject asset = toJSON(row);
+                asset.put("errors", new JSONObject());
+                asset.put("error_count", 0);
+                assets.put(assetKey((String) row.get("logger_code"), (String) row.get("logger_channel")), asset);
+            }
+            Map<Integer, Integer> typeCounts = new TreeMap<>();
+            int totalErrors = 0;
+            for (Map<String, Object> row : database.getAssetErrorCounts()) {
+                int type = ((Number) row.get("error_type")).intValue();
+                int count = ((Number) row.get("error_count")).intValue();
+                totalErrors += count;
+                Integer n = typeCounts.get(type);
+                typeCounts.put(type, (n == null) ? count : n + count);
+
+                JSONObject asset = assets.get(assetKey((String) row.get("logger_code"), (String) row.get("logger_channel")));
+                if (asset != null) {
+                    asset.getJSONObject("errors").put(Integer.toString(type), new JSONObject().put("count", count).put("latest", String.valueOf(row.get("latest"))));
+                    asset.put("error_count", asset.getInt("error_count") + count);
+                }
+            }
+            JSONArray assetList = new JSONArray();
+            for (Map.Entry<String, JSONObject> entry : assets.entrySet()) {
+                assetList.put(entry.getValue());
+                next.assets.put(entry.getKey(), entry.getValue().toString());
+            }
+            next.assetsJSON = assetList.toString();
+
+            /*Error counts by type*/
+            JSONArray types = new JSONArray();
+            for (Map.Entry<Integer, String> entry : descriptions.entrySet()) {
+                Integer n = typeCounts.get(entry.getKey());
+                types.put(new JSONObject().put("id", entry.getKey()).put("description", entry.getValue()).put("error_count", (n == null) ? 0 : n));
+            }
+            next.errorTypesJSON = types.toString();
+
+            /*Daily rollups for time series*/
+            for (Map<String, Object> row : database.getDailyRollups()) {
+                next.daily.add(new DailyCount(String.valueOf(row.get("day")), ((Number) row.get("error_type")).intValue(),
+                        (String) row.get("building_code"), (String) row.get("utility_type"), ((Number) row.get("error_count")).intValue()));
+            }
+
+            /*Summary; latest quality log entry and totals*/
+            JSONObject summary = new JSONObject();
+            List<Map<String, Object>> logs = database.getQualityLogs(1);
+            if (!logs.isEmpty()) {
+                summary.put("latest_log", toJSON(logs.get(0)));
+            }
+            summary.put("erroneous_assets", assets.size());
+            summary.put("error_count", totalErrors);
+            summary.put("refreshed", new Date().getTime());
+            next.summaryJSON = summary.toString();
+        }
+        catch (Exception e){
+            System.out.println("Could not refresh quality cache:");
+            e.printStackTrace();
+            return false;
+        }
+        snapshot = next;
+        return true;
+    }
+
+    /**
+     * @return JSON summary of the current quality state
+     */
+    public String getSummary(){
+        return snapshot.summaryJSON;
+    }
+
+    /**
+     * @return JSON array of every erroneous asset and its error counts
+     */
+    public String getAssets(){
+        return snapshot.assetsJSON;
+    }
+
+    /**
+     * @param logCode Logger code of the asset
+     * @param logChan Logger channel of the asset; null or empty for loggers
+     * @return JSON for a single erroneous asset, or null if the asset has no errors
+     */
+    public String getAsset(String logCode, String logChan){
+        return snapshot.assets.get(assetKey(logCode, logChan));
+    }
+
+    /**
+     * @return JSON array of every error type with its description and error count
+     */
+    public String getErrorTypes(){
+        return snapshot.errorTypesJSON;
+    }
+
+    /**
+     * Number of new errors per day (or month) matching the given filters
+     * @param type Error type to include, or null for all
+     * @param building Building code to include, or null for all
+     * @param utility Utility type to include, or null for all
+     * @param from First day to include 'yyyy-MM-dd', or null
+     * @param to Last day to include 'yyyy-MM-dd', or null
+     * @param monthly True to group by month rather than by day
+     * @return JSON array of objects with 'date' and 'error_count', oldest first
+     */
+    public String getTimeSeries(Integer type, String building, String utility, String from, String to, boolean monthly){
+        Map<String, Integer> series = new TreeMap<>();
+        for (DailyCount row : snapshot.daily) {
+            if ((type != null && row.type != type) || (building != null && !building.equals(row.building))
+                    || (utility != null && !utility.equals(row.utility)) || (from != null && row.day.compareTo(from) < 0)
+                    || (to != null && row.day.compareTo(to) > 0)) {
+                continue;
+            }
+            String date = monthly ? row.day.substring(0, 7) : row.day;
+            Integer n = series.get(date);
+            series.put(date, (n == null) ? row.count : n + row.count);
+        }
+        JSONArray ret = new JSONArray();
+        for (Map.Entry<String, Integer> entry : series.entrySet()) {
+            ret.put(new JSONObject().put("date", entry.getKey()).put("error_count", entry.getValue()));
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Converts a database row to JSON; dates and times are written as strings
+     */
+    private static JSONObject toJSON(Map<String, Object> row){
+        JSONObject ret = new JSONObject();
+        for (Map.Entry<String, Object> entry : row.entrySet()) {
+            Object value = entry.getValue();
+            ret.put(entry.getKey(), (value == null) ? JSONObject.NULL : (value instanceof Date) ? value.toString() : value);
+        }
+        return ret;
+    }
+
+    private static String assetKey(String logCode, String logChan){
+        return (logChan == null || logChan.equals("")) ? logCode : logCode + "/" + logChan;
+    }
+
+    /**
+     * Complete quality state; built once and never modified
+     */
+    private static class Snapshot {
+        String summaryJSON = "{}";
+        String assetsJSON = "[]";
+        String errorTypesJSON = "[]";
+        Map<String, String> assets = new HashMap<>(); // asset key -> asset JSON
+        List<DailyCount> daily = new ArrayList<>();
+    }
+
+    /**
+     * Number of errors for a day, error type, building and utility type
+     */
+    private static class DailyCount {
+        final String day;
+        final int type;
+        final String building;
+        final String utility;
+        final int count;
+
+        DailyCount(String day, int type, String building, String utility, int count){
+            this.day = day;
+            this.type = type;
+            this.building = building;
+            this.utility = utility;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage for the EIS quality database; erroneous assets, errors, the quality log and error type lookup. Implemented by
+ * Database (MySQL) and EmbeddedStore (in-process). Table names are those in Database e.g. Database.ERROR_DB_NAME
+ * @Author Ross Newby
+ */
+public interface QualityStore {
+
+    /**
+     * State of a meter lease after trying to acquire it
+     */
+    enum LeaseState {
+        ACQUIRED, // this node holds the lease and should test the meter
+        HELD, // another live node holds the lease
+        COMPLETED // the meter has been tested in this run
+    }
+
+    /**
+     * Create the quality database schema, erasing any existing records
+     * @param scriptPath Path of the MySQL schema script; the embedded store reads the error type lookups from it
+     * @throws SQLException When the schema could not be created
+     * @throws FileNotFoundException Could not find the script
+     */
+    void createSchema(String scriptPath) throws SQLException, FileNotFoundException;
+
+    /**
+     * @return A store for a writer thread to use alongside this one; may be this store if it is safe to share
+     */
+    QualityStore openWriter();
+
+    /**
+     * Opens the staging copy of this store, which a rebuild writes to while this store is still served; publish() makes it live.
+     * A staging copy is kept until published, so an interrupted rebuild can be resumed
+     * @return Store of the staging copy; its schema must be created before a new rebuild
+     * @throws SQLException When the staging copy could not be opened
+     */
+    QualityStore openStaging() throws SQLException;
+
+    /**
+     * @return True if a staging copy exists which has not been published
+     * @throws SQLException When the staging copy could not be read
+     */
+    boolean hasStaging() throws SQLException;
+
+    /**
+     * Atomically replaces every table of this store with the tables of its staging copy; readers see either the old tables or the
+     * new ones, never a mix
+     * @param staging Store returned by openStaging(); no longer usable once published
+     * @throws SQLException When the staging copy could not be published; this store is then unchanged
+     */
+    void publish(QualityStore staging) throws SQLException;
+
+    /**
+     * Switches to bulk loading, for filling a store which is not yet served, e.g. a staging copy: errors are loaded in bulk rather
+     * than upserted, and indexes which only serve reads are dropped until endBulkLoad(). Writers opened afterwards load in bulk too
+     * @throws SQLException When the indexes could not be dropped; the store is unchanged
+     */
+    void beginBulkLoad() throws SQLException;
+
+    /**
+     * Builds the indexes dropped by beginBulkLoad(), if any are missing, and returns to upserting errors
+     * @throws SQLException When the indexes could not be built
+     */
+    void endBulkLoad() throws SQLException;
+
+    /**
+     * Adds a record to the erroneous asset table
+     * @param ware Value to insert into hardware field
+     * @param logCode Value to insert into logger code field
+     * @param logChan Value to insert into logger channel field
+     * @param util Value to insert into utility type field
+     * @param time Value to insert into most recent error field
+     */
+    void addAsset(String ware, String logCode, String logChan, String util, Timestamp time);
+
+    /**
+     * Adds a record to the erroneous asset table
+     * @param ware Value to insert into hardware field
+     * @param logCode Value to insert into logger code field
+     * @param logChan Value to insert into logger channel field
+     * @param time Value to insert into most recent error field
+     */
+    void addAsset(String ware, String logCode, String logChan, Timestamp time);
+
+    /**
+     * Adds a record to the erroneous asset table
+     * @param ware Value to insert into hardware field
+     * @param logCode Value to insert into logger code field
+     * @param time Value to insert into most recent error field
+     */
+    void addAsset(String ware, String logCode, Timestamp time);
+
+    /**
+     * Adds a record to the errors table
+     * @param errType Value to insert into error type field
+     * @param logCode Value to insert into logger code field
+     * @param logChan Value to insert into logger channel field
+     * @param time Value to insert into time field
+     */
+    void addError(int errType, String logCode, String logChan, Timestamp time);
+
+    /**
+     * Adds a record to the errors table
+     * @param errType Value to insert into error type field
+     * @param logCode Value to insert into logger code field
+     * @param time Value to insert into time field
+     */
+    void addError(int errType, String logCode, Timestamp time);
+
+    /**
+     * Adds a batch of new errors to the errors table and the daily and monthly rollup tables, as a single unit. Errors already in
+     * the errors table are ignored, and only the errors inserted are counted in the rollups
+     * @param errors Errors to insert
+     * @param metadata Metadata the building code and utility type of each error are looked up in, to group the rollups; may be null
+     * @return The errors inserted, i.e. those which were not already in the errors table
+     * @throws SQLException When the batch could not be written; nothing is written
+     */
+    List<ErrorRecord> addErrors(List<ErrorRecord> errors, MetadataStore metadata) throws SQLException;
+
+    /**
+     * Adds a batch of records to the erroneous asset table; existing assets keep the later of their most recent error time and
+     * the new one, so batches may be written in any order
+     * @param assets Assets to insert
+     * @throws SQLException When the batch could not be written
+     */
+    void addAssets(List<AssetRecord> assets) throws SQLException;
+
+    /**
+     * Adds a record to the quality log table
+     * @param assets Total number of hardware devices on the system
+     * @param erroneousAssets Total number of hardware devices for which errors were detected
+     * @param errors Total number of individual errors
+     * @param time Time at which this quality test occurred
+     */
+    void addLog(int assets, int erroneousAssets, int errors, Timestamp time);
+
+    /**
+     * Adds a record to the error type lookup table
+     * @param id Unique ID for record
+     * @param desc Description of the error
+     * @throws SQLException When the lookup value could not be inserted into table
+     */
+    void addLookup(int id, String desc) throws SQLException;
+
+    /**
+     * @param tableName Name of the table
+     * @return Number of records in the table or -1 if the method fails
+     */
+    int getTableLength(String tableName);
+
+    /**
+     * Reads the key of every error in the errors table into a filter of known errors
+     * @param filter Filter to add the error keys to
+     * @return Number of errors read, or -1 if the method fails
+     */
+    int loadKnownErrors(KnownErrorFilter filter);
+
+    /**
+     * Reads the fingerprint of every meter and file last analysed
+     * @param into Map to add fingerprints to, by FileFingerprint.getKey()
+     * @return Number of fingerprints read, or -1 if the method fails
+     */
+    int loadFingerprints(Map<String, FileFingerprint> into);
+
+    /**
+     * Adds or replaces the fingerprints of meters and files which have been analysed
+     * @param fingerprints Fingerprints to write
+     * @throws SQLException When the batch could not be written
+     */
+    void addFingerprints(List<FileFingerprint> fingerprints) throws SQLException;
+
+    /**
+     * Reads the daily rollups of a meter's readings
+     * @param logCode Meter's logger code
+     * @param logChan Meter's logger channel
+     * @return Rollup of every day the meter has readings for, oldest first
+     * @throws SQLException When the table could not be read
+     */
+    List<MeterDay> getMeterDays(String logCode, String logChan) throws SQLException;
+
+    /**
+     * Adds or replaces the daily rollups of a meter's readings
+     * @param logCode Meter's logger code
+     * @param logChan Meter's logger channel
+     * @param days Rollups to write; each replaces any stored rollup of the same day
+     * @throws SQLException When the batch could not be written
+     */
+    void addMeterDays(String logCode, String logChan, Collection<MeterDay> days) throws SQLException;
+
+    /**
+     * Prepare the errors table to receive errors up to the given date e.g. by adding partitions; may do nothing
+     * @param upTo Date which must be covered
+     */
+    void addMonthlyPartitions(Date upTo);
+
+    /**
+     * @param limit Maximum number of records to read
+     * @return The most recent quality log records, most recent first
+     * @throws SQLException When the table could not be read
+     */
+    List<Map<String, Object>> getQualityLogs(int limit) throws SQLException;
+
+    /**
+     * @return Every erroneous asset
+     * @throws SQLException When the table could not be read
+     */
+    List<Map<String, Object>> getAssets() throws SQLException;
+
+    /**
+     * @return Rows of logger_code, logger_channel, error_type, error_count and latest for every asset and error type
+     * @throws SQLException When the table could not be read
+     */
+    List<Map<String, Object>> getAssetErrorCounts() throws SQLException;
+
+    /**
+     * @return Every error type lookup, by id
+     * @throws SQLException When the table could not be read
+     */
+    List<Map<String, Object>> getLookups() throws SQLException;
+
+    /**
+     * @return Every daily rollup row, oldest first
+     * @throws SQLException When the table could not be read
+     */
+    List<Map<String, Object>> getDailyRollups() throws SQLException;
+
+    /**
+     * @return Rows of logger_code, logger_channel and checked, the last time any file of each meter was analysed
+     * @throws SQLException When the table could not be read
+     */
+    List<Map<String, Object>> getMeterChecks() throws SQLException;
+
+    /**
+     * Streams every row of a table to a channel as CSV or JSON Lines
+     * @param tableName Name of the table to export
+     * @param format 'csv' or 'jsonl'
+     * @param out Channel to write to; not closed by this method
+     * @param fetchSize Number of rows read at a time, where the store reads in batches
+     * @return Number of rows written
+     * @throws SQLException When the table could not be read
+     * @throws IOException When the channel could not be written
+     */
+    long exportTable(String tableName, String format, WritableByteChannel out, int fetchSize) throws SQLException, IOException;
+
+    /**
+     * @return Names of every table in the store
+     * @throws SQLException When the tables could not be listed
+     */
+    List<String> getTableNames() throws SQLException;
+
+    /**
+     * Prints all tables; used for debugging and referencing
+     */
+    void printDatabase();
+
+    /**
+     * Registers a node as live, or keeps it live, and extends every uncompleted lease it holds
+     * @param node ID of the node
+     * @param ttlSeconds Seconds the node and its leases live without another heartbeat
+     * @throws SQLException When the node could not be registered
+     */
+    void heartbeat(String node, int ttlSeconds) throws SQLException;
+
+    /**
+     * @return IDs of every node whose heartbeat has not expired, in order
+     * @throws SQLException When the nodes could not be read
+     */
+    List<String> getLiveNodes() throws SQLException;
+
+    /**
+     * Takes the lease on a meter for a run if it is free, expired or already held by the node
+     * @param run Key of the run
+     * @param logCode Logger code of the meter
+     * @param logChan Logger channel of the meter
+     * @param node ID of the node
+     * @param ttlSeconds Seconds the lease lives without a heartbeat
+     * @return State of the lease
+     * @throws SQLException When the lease could not be read or written
+     */
+    LeaseState acquireLease(String run, String logCode, String logChan, String node, int ttlSeconds) throws SQLException;
+
+    /**
+     * Marks a meter as tested in a run, if the node still holds its lease; a lease which has expired, or been taken over by
+     * another node, is not completed
+     * @param run Key of the run
+     * @param logCode Logger code of the meter
+     * @param logChan Logger channel of the meter
+     * @param node ID of the node
+     * @return True if the lease was completed
+     * @throws SQLException When the lease could not be written
+     */
+    boolean completeLease(String run, String logCode, String logChan, String node) throws SQLException;
+
+    /**
+     * Removes a node and expires its uncompleted leases, so other nodes can take them immediately
+     * @param node ID of the node
+     * @throws SQLException When the node could not be removed
+     */
+    void releaseNode(String node) throws SQLException;
+
+    /**
+     * Deletes leases which expired more than the given number of days ago
+     * @param days Age in days
+     * @throws SQLException When the leases could not be deleted
+     */
+    void purgeLeases(int days) throws SQLException;
+
+    /**
+     * Counts the leases of a run which have not been completed, e.g. of meters still being tested or whose test failed
+     * @param run Key of the run
+     * @return Number of uncompleted leases
+     * @throws SQLException When the leases could not be read
+     */
+    int getOpenLeaseCount(String run) throws SQLException;
+
+    /**
+     * Deletes every lease of a run, so it starts again from the first meter
+     * @param run Key of the run
+     * @throws SQLException When the leases could not be deleted
+     */
+    void clearLeases(String run) throws SQLException;
+}
@@ -0,0 +1,120 @@
+import org.json.JSONArray;
+import org.json.JSONTokener;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Per-file checkpoints of an initialisation; the readings fetched from each CKAN file for a meter are saved to disk, so if the
+ * initialisation is interrupted while the meter is being analysed, resuming it reads those files from disk instead of CKAN.
+ * A meter's checkpoints are removed once it has been tested; meters already tested are skipped by their completed lease
+ * @Author Ross Newby
+ */
+public class ReadingCheckpoints {
+
+    private final File directory;
+
+    /**
+     * @param directory Directory to save readings in; created when first needed
+     */
+    public ReadingCheckpoints(String directory){
+        this.directory = new File(directory);
+    }
+
+    /**
+     * @param loggerCode Meter's logger code
+     * @param moduleKey Meter's module key aka logger channel
+     * @param fileID CKAN resource ID of the file
+     * @return Readings saved for the meter and file, or null if there are none
+     */
+    public JSONArray load(String loggerCode, String moduleKey, String fileID){
+        File file = checkpointFile(loggerCode, moduleKey, fileID);
+        if (!file.exists()) {
+            return null;
+        }
+        try (Reader in = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8)) {
+            return new JSONArray(new JSONTokener(in));
+        }
+        catch (Exception e){
+            System.out.println("Could not read checkpoint "+ file +"; fetching again");
+            return null;
+        }
+    }
+
+    /**
+     * Save the readings fetched for a meter from a file; written to a temporary file and renamed, so a checkpoint is never partial
+     * @param loggerCode Meter's logger code
+     * @param moduleKey Meter's module key aka logger channel
+     * @param fileID CKAN resource ID of the file
+     * @param records Every reading for the meter in the file
+     */
+    public void save(String loggerCode, String moduleKey, String fileID, JSONArray records){
+        File file = checkpointFile(loggerCode, moduleKey, fileID);
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            try (Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tmp)), StandardCharsets.UTF_8)) {
+                records.write(out);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e){
+            System.out.println("Could not save checkpoint "+ file);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Remove every checkpoint for a meter
+     * @param loggerCode Meter's logger code
+     * @param moduleKey Meter's module key aka logger channel
+     */
+    public void clearMeter(String loggerCode, String moduleKey){
+        delete(meterDirectory(loggerCode, moduleKey));
+    }
+
+    /**
+     * Remove every checkpoint; used when a fresh initialisation starts
+     */
+    public void clear(){
+        delete(directory);
+    }
+
+    private File meterDirectory(String loggerCode, String moduleKey){
+        return new File(directory, encode(loggerCode) + File.separator + encode(moduleKey));
+    }
+
+    private File checkpointFile(String loggerCode, String moduleKey, String fileID){
+        return new File(meterDirectory(loggerCode, moduleKey), encode(fileID) + ".json.gz");
+    }
+
+    /**
+     * @return Value which is safe to use as a file name
+     */
+    private static String encode(String value){
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("*", "%2A").replace(".", "%2E");
+        }
+        catch (UnsupportedEncodingException e){
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+
+    /**
+     * Delete a file or directory and everything in it
+     */
+    private static void delete(File file){
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,402 @@
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects chunks of meter readings fetched concurrently from several CKAN files. A collector is created for a single meter
+ * fetch and is only shared by that fetch's threads; chunks are appended lock-free and merged once every thread has finished.
+ * Each chunk is kept most recent first, as CKAN is asked to return it; one which is not is sorted as it is added. Chunks are
+ * held on the heap while the memory budget admits them, and spilled to a temporary file otherwise. The readings are read back
+ * as a streaming merge of the ordered chunks and files, so they are never sorted as a whole. release() must be called once the
+ * readings are used
+ * @Author Ross Newby
+ */
+public class ReadingCollector {
+
+    private static final int FIELD_OVERHEAD = 64; // estimated heap bytes per field of a parsed reading, beyond its characters
+    private static final String KEY_NAME = "timestamp"; // key readings are ordered by
+
+    /**
+     * Orders readings by their timestamp, most recent first
+     */
+    public static final Comparator<JSONObject> MOST_RECENT_FIRST = new Comparator<JSONObject>() {
+        @Override
+        public int compare(JSONObject a, JSONObject b) {
+            String valA = new String();
+            String valB = new String();
+
+            try {
+                valA = a.getString(KEY_NAME);
+                valB = b.getString(KEY_NAME);
+            }
+            catch (JSONException e) {
+                System.out.println("Error: No value for key '"+KEY_NAME+"' in JSONObject");
+            }
+
+            return -valA.compareTo(valB); // -ve to sort in descending order; most recent dates first
+        }
+    };
+
+    private final ConcurrentLinkedQueue<JSONArray> chunks = new ConcurrentLinkedQueue<>(); // records from each file read
+    private final ConcurrentLinkedQueue<File> spills = new ConcurrentLinkedQueue<>(); // sorted records from files which did not fit
+    private final AtomicInteger readings = new AtomicInteger(); // total number of records added
+    private final AtomicInteger failures = new AtomicInteger(); // number of files which could not be read
+    private final AtomicLong reserved = new AtomicLong(); // heap reserved from the budget for chunks
+    private final MemoryBudget budget;
+    private final List<Closeable> open = new ArrayList<>(); // spill files being merged
+    private final ConcurrentLinkedQueue<FileFingerprint> fingerprints = new ConcurrentLinkedQueue<>(); // of each file read
+    private volatile int summaryRows = -1; // number of readings as counted by the datastore, if summarised; otherwise -1
+    private volatile String summaryLatest = null; // most recent reading timestamp, if summarised
+    private volatile boolean unchanged = false; // readings are unchanged since last analysed
+    private final SortedMap<String, MeterDay> days = new TreeMap<>(); // day -> rollup of the readings of every file; guarded by itself
+
+    /**
+     * @param budget Budget chunks are admitted against, or null to hold every chunk on the heap
+     */
+    public ReadingCollector(MemoryBudget budget){
+        this.budget = budget;
+    }
+
+    /**
+     * Add the records read from a single CKAN file; safe to call from any thread. The records are spilled to disk if the budget
+     * does not admit them
+     * @param records JSON array of meter readings, ideally most recent first
+     */
+    public void add(JSONArray records){
+        readings.addAndGet(records.length());
+        if (records.length() == 0) {
+            return;
+        }
+        records = mostRecentFirst(records);
+        long bytes = estimateSize(records);
+        if (budget == null || budget.tryReserve(bytes, reserved.get())) {
+            reserved.addAndGet(bytes);
+            chunks.add(records);
+            return;
+        }
+        try {
+            spills.add(spill(records));
+        }
+        catch (IOException e){
+            System.out.println("Could not spill "+ records.length() +" readings to disk; holding them in memory");
+            reserved.addAndGet(bytes); // over budget, but the readings must not be lost
+            chunks.add(records);
+        }
+    }
+
+    /**
+     * Add the fingerprint of the records read from a single CKAN file; safe to call from any thread
+     * @param fingerprint Fingerprint of the file's records
+     */
+    public void addFingerprint(FileFingerprint fingerprint){
+        fingerprints.add(fingerprint);
+    }
+
+    /**
+     * @return Fingerprint of every file read
+     */
+    public List<FileFingerprint> getFingerprints(){
+        return new ArrayList<>(fingerprints);
+    }
+
+    /**
+     * Add the daily rollups of the readings in a single CKAN file, either rolled up as they were read or by the datastore; safe to
+     * call from any thread
+     * @param fileDays Rollups of the file's readings
+     */
+    public void addDays(Collection<MeterDay> fileDays){
+        synchronized (days) {
+            for (MeterDay day : fileDays) {
+                MeterDay known = days.get(day.getDay());
+                if (known == null) {
+                    known = new MeterDay(day.getDay());
+                    days.put(day.getDay(), known);
+                }
+                known.merge(day);
+            }
+        }
+    }
+
+    /**
+     * @return Daily rollups of the readings of every file, by day; should only be called once all fetching threads have finished
+     */
+    public SortedMap<String, MeterDay> getDays(){
+        synchronized (days) {
+            return new TreeMap<>(days);
+        }
+    }
+
+    /**
+     * Record the number of readings and the latest reading as summarised by the datastore; the collector then holds only the
+     * readings selected by checks pushed down to the datastore, rather than every reading
+     * @param rows Number of readings in every file
+     * @param latest Most recent reading timestamp, or null if there are no readings
+     */
+    public void setSummary(int rows, String latest){
+        summaryLatest = latest;
+        summaryRows = rows;
+    }
+
+    /**
+     * @return True if the readings were summarised by the datastore rather than collected
+     */
+    public boolean isSummarised(){
+        return summaryRows >= 0;
+    }
+
+    /**
+     * @return Number of readings, if summarised
+     */
+    public int getSummaryRows(){
+        return summaryRows;
+    }
+
+    /**
+     * @return Most recent reading timestamp, if summarised
+     */
+    public String getSummaryLatest(){
+        return summaryLatest;
+    }
+
+    /**
+     * Record that the meter's readings are unchanged since they were last analysed, so they need not be tested again; the
+     * readings must also be summarised
+     */
+    public void markUnchanged(){
+        unchanged = true;
+    }
+
+    /**
+     * @return True if the meter's readings are unchanged since they were last analysed
+     */
+    public boolean isUnchanged(){
+        return unchanged;
+    }
+
+    /**
+     * Record that a CKAN file could not be read; safe to call from any thread
+     */
+    public void addFailure(){
+        failures.incrementAndGet();
+    }
+
+    /**
+     * Merge every chunk into a single list; should only be called once all fetching threads have finished, and only if nothing
+     * was spilled
+     * @return List of JSON objects for every meter reading collected
+     */
+    public List<JSONObject> toList(){
+        if (isSpilled()) {
+            throw new IllegalStateException(spills.size() +" chunk(s) were spilled to disk; use mostRecentFirst()");
+        }
+        List<JSONObject> jsonValues = new ArrayList<>(readings.get());
+        for (JSONArray chunk : chunks) { // for every file read
+            for (int i = 0; i < chunk.length(); i++) {
+                jsonValues.add(chunk.getJSONObject(i)); // add every JSON object in the array to the return list
+            }
+        }
+        return jsonValues;
+    }
+
+    /**
+     * Every reading collected, most recent first; should only be called once all fetching threads have finished. Each chunk on
+     * the heap and each spilled file, read one reading at a time, is already in order, so they are merged rather than sorted
+     * @return Iterator over every reading
+     * @throws IOException When a spilled file could not be opened
+     */
+    public Iterator<JSONObject> mostRecentFirst() throws IOException{
+
+        List<Iterator<JSONObject>> runs = new ArrayList<>();
+        for (final JSONArray chunk : chunks) {
+            runs.add(new Iterator<JSONObject>() {
+                private int next = 0;
+
+                public boolean hasNext() {
+                    return next < chunk.length();
+                }
+
+                public JSONObject next() {
+                    if (next >= chunk.length()) {
+                        throw new NoSuchElementException();
+                    }
+                    return chunk.getJSONObject(next++);
+                }
+            });
+        }
+        for (File file : spills) {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+            synchronized (open) {
+                open.add(in);
+            }
+            runs.add(new Iterator<JSONObject>() {
+                private String line = readLine(in);
+
+                public boolean hasNext() {
+                    return line != null;
+                }
+
+                public JSONObject next() {
+                    if (line == null) {
+                        throw new NoSuchElementException();
+                    }
+                    JSONObject reading = new JSONObject(line);
+                    line = readLine(in);
+                    return reading;
+                }
+            });
+        }
+        return merge(runs, MOST_RECENT_FIRST);
+    }
+
+    /**
+     * Free the heap reserved for this collector's readings and delete its spilled files
+     */
+    public void release(){
+        synchronized (open) {
+            for (Closeable in : open) {
+                try {
+                    in.close();
+                }
+                catch (IOException e){
+                    // nothing more to do
+                }
+            }
+            open.clear();
+        }
+        for (File file = spills.poll(); file != null; file = spills.poll()) {
+            file.delete();
+        }
+        chunks.clear();
+        if (budget != null) {
+            budget.release(reserved.getAndSet(0));
+        }
+    }
+
+    /**
+     * @return Total number of meter readings collected so far
+     */
+    public int size(){
+        return readings.get();
+    }
+
+    /**
+     * @return Number of files which could not be read
+     */
+    public int getFailures(){
+        return failures.get();
+    }
+
+    /**
+     * @return True if any readings were spilled to disk
+     */
+    public boolean isSpilled(){
+        return !spills.isEmpty();
+    }
+
+    /**
+     * Streaming k-way merge of sorted iterators; holds one element from each at a time
+     * @param runs Iterators, each sorted by the comparator
+     * @param order Order of the runs and of the result
+     * @return Iterator over every element of every run, in order
+     */
+    static <T> Iterator<T> merge(List<Iterator<T>> runs, final Comparator<? super T> order){
+
+        final PriorityQueue<Map.Entry<T, Iterator<T>>> heads = new PriorityQueue<>(Math.max(1, runs.size()), new Comparator<Map.Entry<T, Iterator<T>>>() {
+            public int compare(Map.Entry<T, Iterator<T>> a, Map.Entry<T, Iterator<T>> b) {
+                return order.compare(a.getKey(), b.getKey());
+            }
+        });
+        for (Iterator<T> run : runs) {
+            if (run.hasNext()) {
+                heads.add(new AbstractMap.SimpleEntry<>(run.next(), run));
+            }
+        }
+        return new Iterator<T>() {
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            public T next() {
+                Map.Entry<T, Iterator<T>> head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                Iterator<T> run = head.getValue();
+                if (run.hasNext()) {
+                    heads.add(new AbstractMap.SimpleEntry<>(run.next(), run));
+                }
+                return head.getKey();
+            }
+        };
+    }
+
+    /**
+     * @param records Readings of a single file
+     * @return The readings, most recent first; the same array if they already are, which is checked in one pass
+     */
+    private static JSONArray mostRecentFirst(JSONArray records){
+        String previous = null;
+        for (int i = 0; i < records.length(); i++) {
+            String time = records.getJSONObject(i).optString(KEY_NAME, "");
+            if (previous != null && time.compareTo(previous) > 0) {
+                List<JSONObject> sorted = new ArrayList<>(records.length());
+                for (int j = 0; j < records.length(); j++) {
+                    sorted.add(records.getJSONObject(j));
+                }
+                Collections.sort(sorted, MOST_RECENT_FIRST);
+                return new JSONArray(sorted);
+            }
+            previous = time;
+        }
+        return records;
+    }
+
+    /**
+     * Write an ordered chunk to a temporary file, one reading per line
+     * @return The file written
+     */
+    private static File spill(JSONArray records) throws IOException{
+        File file = File.createTempFile("readings-", ".jsonl");
+        file.deleteOnExit(); // in case the collector is never released
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (int i = 0; i < records.length(); i++) {
+                out.write(records.getJSONObject(i).toString());
+                out.write('\n');
+            }
+        }
+        catch (IOException e){
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Estimate the heap used by a chunk of parsed readings, from the first reading
+     */
+    private static long estimateSize(JSONArray records){
+        JSONObject sample = records.optJSONObject(0);
+        long perReading = (sample == null) ? FIELD_OVERHEAD : 2L * sample.toString().length() + FIELD_OVERHEAD * (sample.length() + 1);
+        return perReading * records.length();
+    }
+
+    private static String readLine(BufferedReader in){
+        try {
+            String line = in.readLine();
+            while (line != null && line.isEmpty()) {
+                line = in.readLine();
+            }
+            return line;
+        }
+        catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+}
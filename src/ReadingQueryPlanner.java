@@ -0,0 +1,172 @@
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Plans the CKAN datastore queries used to test a meter's readings. Checks which the datastore can answer itself are pushed down
+ * into datastore_search_sql, so only their results leave CKAN: each file is rolled up by day in an aggregate query, which gives
+ * the number of readings and the latest reading (no data and stale data; errors 20 and 21), the days with readings (missing
+ * days; error 24) and which files have negative readings, which are then read with a filtered query (error 22). Every
+ * reading is only downloaded when pushdown is disabled, or when a check which needs every reading is enabled. Queries are built
+ * from the key columns of each file's source, and return them under the names BMS uses. Rollup and filter queries cover several
+ * channels of one logger device at once, packed so each query's URL is within a length limit. The following
+ * optional fields may be specified in config.properties: 'pushdown' (true or false; default true) and 'maxurllength' (default 2000)
+ * @Author Ross Newby
+ */
+public class ReadingQueryPlanner {
+
+    private static final String PROPERTIES_FILENAME = "config.properties";
+    private static final String SEARCH_SQL_URL = "ckan.lancaster.ac.uk/api/3/action/datastore_search_sql?sql=";
+    private static final int DEFAULT_MAX_URL_LENGTH = 2000; // safe for most servers and proxies
+
+    private boolean pushdown = true;
+    private int maxURLLength = DEFAULT_MAX_URL_LENGTH;
+
+    /**
+     * Initialise the planner, reading whether checks are pushed down and the URL length limit from the configuration file if specified
+     */
+    public ReadingQueryPlanner(){
+        try {
+            Properties prop = new Properties();
+            InputStream in = getClass().getClassLoader().getResourceAsStream(PROPERTIES_FILENAME);
+
+            if (in != null) {
+                prop.load(in);
+                in.close();
+            } else {
+                throw new FileNotFoundException("'" + PROPERTIES_FILENAME + "' not found in classpath");
+            }
+
+            pushdown = Boolean.parseBoolean(prop.getProperty("pushdown", "true").trim());
+            maxURLLength = Integer.parseInt(prop.getProperty("maxurllength", Integer.toString(maxURLLength)).trim());
+        }
+        catch (Exception e){
+            // System.out.println("Error Reading Configuration File: "+ PROPERTIES_FILENAME); // use defaults
+        }
+    }
+
+    /**
+     * @return True if checks are answered by the datastore, rather than by downloading every reading
+     */
+    public boolean isPushdown(){
+        return pushdown;
+    }
+
+    /**
+     * @return True if every reading must be downloaded to test a meter. Checks on the pattern of readings within a day, such as
+     * the utility check (error 23), would need them once implemented
+     */
+    public boolean needsReadings(){
+        return !pushdown;
+    }
+
+    /**
+     * @param source Source of the file
+     * @param fileID CKAN resource ID of the file
+     * @param loggerCode Logger code of the device
+     * @param moduleKeys Module keys aka logger channels of meters on the device
+     * @return URL of a query for the daily rollup of each meter in the file: 'module_key', 'day', number of readings 'n',
+     * 'first_reading', 'last_reading', 'min_value', 'max_value', 'sum_value' and the number of negative readings, 'negatives'; see
+     * MeterDay.fromCKAN(). Days without readings have no row
+     */
+    public String dailyURL(DataSource source, String fileID, String loggerCode, List<String> moduleKeys){
+        String channel = source.getChannelColumn(), time = source.getTimeColumn(), value = "CAST(" + source.getValueColumn() + " AS float)";
+        return url("SELECT " + channel + " AS module_key, CAST(" + time + " AS date) AS day, COUNT(*) AS n, MIN(" + time + ") AS first_reading, MAX(" + time + ") AS last_reading, "
+                + "MIN(" + value + ") AS min_value, MAX(" + value + ") AS max_value, SUM(" + value + ") AS sum_value, "
+                + "SUM(CASE WHEN " + value + " < 0 THEN 1 ELSE 0 END) AS negatives FROM " + table(fileID) + where(source, loggerCode, moduleKeys)
+                + " GROUP BY " + channel + ", CAST(" + time + " AS date)");
+    }
+
+    /**
+     * The filter is on the text of each value, so it holds whatever type the datastore has given the column; '-0' also matches,
+     * so results must still be checked
+     * @return URL of a query for the module key, timestamp and value of every negative reading for meters on the device in the
+     * file, most recent first
+     */
+    public String negativeURL(DataSource source, String fileID, String loggerCode, List<String> moduleKeys){
+        return url("SELECT " + source.getChannelColumn() + " AS module_key, " + source.getTimeColumn() + " AS timestamp, " + source.getValueColumn()
+                + " AS param_value FROM " + table(fileID) + where(source, loggerCode, moduleKeys)
+                + " AND CAST(" + source.getValueColumn() + " AS text) LIKE '-%'" + mostRecentFirst(source));
+    }
+
+    /**
+     * Every reading is not batched, as the readings of a device's other meters would be held outside the memory budget
+     * @return URL of a query for every reading for the meter in the file, most recent first
+     */
+    public String readingsURL(DataSource source, String fileID, String loggerCode, String moduleKey){
+        return url("SELECT " + source.readingColumns() + " FROM " + table(fileID) + where(source, loggerCode, Collections.singletonList(moduleKey))
+                + mostRecentFirst(source));
+    }
+
+    /**
+     * Pack the meters of a device into groups which can each be queried at once, in order; each group's longest query URL is
+     * within the length limit, unless a single meter's is not
+     * @param source Source of the file
+     * @param fileID CKAN resource ID of the file
+     * @param loggerCode Logger code of the device
+     * @param moduleKeys Module keys of meters on the device
+     * @return Groups of module keys
+     */
+    public List<List<String>> packChannels(DataSource source, String fileID, String loggerCode, List<String> moduleKeys){
+
+        List<List<String>> groups = new ArrayList<>();
+        List<String> group = new ArrayList<>();
+        for (String moduleKey : moduleKeys) {
+            group.add(moduleKey);
+            if (group.size() > 1 && Math.max(dailyURL(source, fileID, loggerCode, group).length(), negativeURL(source, fileID, loggerCode, group).length()) > maxURLLength) {
+                group.remove(group.size() - 1);
+                groups.add(group);
+                group = new ArrayList<>();
+                group.add(moduleKey);
+            }
+        }
+        if (!group.isEmpty()) {
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    private static String table(String fileID){
+        return "\"" + fileID.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String where(DataSource source, String loggerCode, List<String> moduleKeys){
+        String device = " WHERE " + source.getDeviceColumn() + " = " + literal(loggerCode) + " AND " + source.getChannelColumn();
+        if (moduleKeys.size() == 1) {
+            return device + " = " + literal(moduleKeys.get(0));
+        }
+        StringBuilder in = new StringBuilder();
+        for (String moduleKey : moduleKeys) {
+            in.append((in.length() == 0) ? "" : ", ").append(literal(moduleKey));
+        }
+        return device + " IN (" + in + ")";
+    }
+
+    /**
+     * @return Ordering of readings as ReadingCollector merges each file's readings
+     */
+    private static String mostRecentFirst(DataSource source){
+        return " ORDER BY " + source.getTimeColumn() + " DESC";
+    }
+
+    private static String literal(String value){
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    /**
+     * @return datastore_search_sql URL for the query, with the query encoded
+     */
+    private static String url(String sql){
+        try {
+            return SEARCH_SQL_URL + URLEncoder.encode(sql, "UTF-8").replace("+", "%20");
+        }
+        catch (UnsupportedEncodingException e){
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+    }
+}
@@ -0,0 +1,364 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of CKAN responses, shared by every CKANRequest. Responses are keyed by their normalised URL and held in an in-memory
+ * LRU within a byte budget, and optionally written through to a directory on disk, which outlives the process. A cached response
+ * is served without a request while younger than its endpoint's TTL; after that it is revalidated: with a conditional request
+ * (If-None-Match / If-Modified-Since) if CKAN gave it an ETag or Last-Modified header, and otherwise, for datastore queries, by
+ * the 'last_modified' of the resource queried as last listed by package_show. The following optional fields may be specified in
+ * config.properties: 'cachemb' (memory tier; default 32, 0 disables), 'cachepath' (disk tier directory; default none) and
+ * 'cachettl.&lt;action&gt;' (seconds a response of a CKAN action is served without revalidation, e.g. 'cachettl.package_show';
+ * default 300 for package_show and 0 otherwise)
+ * @Author Ross Newby
+ */
+public class ResponseCache {
+
+    private static final String PROPERTIES_FILENAME = "config.properties";
+    private static final long DEFAULT_MEMORY_MB = 32;
+    private static final long DEFAULT_PACKAGE_TTL_SECONDS = 300; // package listings change rarely, and are requested per meter
+    private static final String TTL_PREFIX = "cachettl.";
+    private static final Pattern ACTION = Pattern.compile("/api/\\d+/action/([A-Za-z_]+)");
+    private static final Pattern SQL_RESOURCE = Pattern.compile("(?i)\\bFROM\\s+\"([^\"]+)\"");
+    private static final Pattern RESOURCE_PARAM = Pattern.compile("(?:^|&)(?:resource_)?id=([^&]+)");
+
+    private long memoryBytes = DEFAULT_MEMORY_MB * 1024 * 1024;
+    private File directory = null; // disk tier; null if responses are only held in memory
+    private final Map<String, Long> ttlMillis = new HashMap<>(); // CKAN action -> TTL
+    private long memoryUsed = 0; // guarded by entries
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // least recently used first
+    private final Map<String, String> resourceModified = new HashMap<>(); // resource ID -> 'last_modified' listed; guarded by itself
+
+    /**
+     * A cached response, with what is needed to revalidate it
+     */
+    public static class Entry {
+        private final String body;
+        private final String etag; // ETag header, or null
+        private final String lastModified; // Last-Modified header, or null
+        private final String resourceModified; // 'last_modified' of the resource queried when fetched, or null
+        private volatile long validated; // time the response was fetched or last revalidated
+
+        Entry(String body, String etag, String lastModified, String resourceModified, long validated){
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.resourceModified = resourceModified;
+            this.validated = validated;
+        }
+
+        public String getBody(){
+            return body;
+        }
+
+        public String getETag(){
+            return etag;
+        }
+
+        public String getLastModified(){
+            return lastModified;
+        }
+
+        /**
+         * @return True if CKAN gave the response a validator for a conditional request
+         */
+        public boolean isConditional(){
+            return etag != null || lastModified != null;
+        }
+    }
+
+    /**
+     * Initialise the cache, reading the memory budget, disk directory and TTLs from the configuration file if specified
+     */
+    public ResponseCache(){
+        ttlMillis.put("package_show", DEFAULT_PACKAGE_TTL_SECONDS * 1000);
+        try {
+            Properties prop = new Properties();
+            InputStream in = getClass().getClassLoader().getResourceAsStream(PROPERTIES_FILENAME);
+
+            if (in != null) {
+                prop.load(in);
+                in.close();
+            } else {
+                throw new FileNotFoundException("'" + PROPERTIES_FILENAME + "' not found in classpath");
+            }
+
+            memoryBytes = Math.max(0, Long.parseLong(prop.getProperty("cachemb", Long.toString(DEFAULT_MEMORY_MB)).trim())) * 1024 * 1024;
+            String path = prop.getProperty("cachepath");
+            if (path != null && !path.trim().isEmpty()) {
+                directory = new File(path.trim());
+            }
+            for (String name : prop.stringPropertyNames()) {
+                if (name.startsWith(TTL_PREFIX)) {
+                    ttlMillis.put(name.substring(TTL_PREFIX.length()), Math.max(0, Long.parseLong(prop.getProperty(name).trim())) * 1000);
+                }
+            }
+        }
+        catch (Exception e){
+            // System.out.println("Error Reading Configuration File: "+ PROPERTIES_FILENAME); // use defaults
+        }
+    }
+
+    /**
+     * @return True if responses are cached in memory or on disk
+     */
+    public boolean isEnabled(){
+        return memoryBytes > 0 || directory != null;
+    }
+
+    /**
+     * @param url Request URL, including 'https://'
+     * @return Key of the URL: scheme and host in lower case, without a default port, and query parameters in order
+     */
+    public static String key(URL url){
+        int port = (url.getPort() == url.getDefaultPort()) ? -1 : url.getPort();
+        String query = url.getQuery();
+        if (query != null) {
+            String[] params = query.split("&");
+            Arrays.sort(params);
+            StringBuilder sorted = new StringBuilder();
+            for (String param : params) {
+                sorted.append((sorted.length() == 0) ? "" : "&").append(param);
+            }
+            query = sorted.toString();
+        }
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ((port < 0) ? "" : ":" + port) + url.getPath()
+                + ((query == null) ? "" : "?" + query);
+    }
+
+    /**
+     * @param key Key of the request URL
+     * @return Cached response, from memory or disk, or null if there is none
+     */
+    public Entry get(String key){
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        Entry entry = readDisk(key);
+        if (entry != null) {
+            remember(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @param key Key of the request URL
+     * @param entry Cached response of the request
+     * @return True if the response may be served without a request: it is within its endpoint's TTL, or it is a datastore
+     * query without validators whose resource is listed as unmodified since it was fetched
+     */
+    public boolean isFresh(String key, Entry entry){
+        Long ttl = ttlMillis.get(action(key));
+        if (ttl != null && System.currentTimeMillis() - entry.validated < ttl) {
+            return true;
+        }
+        if (entry.isConditional() || entry.resourceModified == null) {
+            return false;
+        }
+        return entry.resourceModified.equals(listedModified(key));
+    }
+
+    /**
+     * Record that CKAN answered a conditional request for a cached response with 304 Not Modified
+     * @param key Key of the request URL
+     * @param entry The cached response
+     */
+    public void revalidated(String key, Entry entry){
+        entry.validated = System.currentTimeMillis();
+        writeDisk(key, entry);
+    }
+
+    /**
+     * Cache a response fetched from CKAN; package listings also record the 'last_modified' of each resource, for revalidating
+     * datastore queries of the resource
+     * @param key Key of the request URL
+     * @param body Response body
+     * @param etag ETag header, or null
+     * @param lastModified Last-Modified header, or null
+     */
+    public void put(String key, String body, String etag, String lastModified){
+        String modified = listedModified(key); // as known before this response
+        if ("package_show".equals(action(key))) {
+            recordResources(body);
+        }
+        Entry entry = new Entry(body, etag, lastModified, modified, System.currentTimeMillis());
+        remember(key, entry);
+        writeDisk(key, entry);
+    }
+
+    /**
+     * Hold a response in memory, evicting the least recently used beyond the budget; responses larger than a quarter of the
+     * budget are only held on disk
+     */
+    private void remember(String key, Entry entry){
+        long bytes = size(key, entry);
+        synchronized (entries) {
+            Entry old = entries.remove(key);
+            if (old != null) {
+                memoryUsed -= size(key, old);
+            }
+            if (bytes > memoryBytes / 4) {
+                return;
+            }
+            entries.put(key, entry);
+            memoryUsed += bytes;
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (memoryUsed > memoryBytes && eldest.hasNext()) {
+                Map.Entry<String, Entry> evicted = eldest.next();
+                memoryUsed -= size(evicted.getKey(), evicted.getValue());
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * @return Heap used by a cached response, estimated from its characters
+     */
+    private static long size(String key, Entry entry){
+        return 2L * (key.length() + entry.body.length()) + 256;
+    }
+
+    /**
+     * @return CKAN action of a request, e.g. 'package_show', or null
+     */
+    private static String action(String key){
+        Matcher m = ACTION.matcher(key);
+        return m.find() ? m.group(1) : null;
+    }
+
+    /**
+     * @return 'last_modified' of the resource a datastore request queries, as last listed by package_show; or null if the
+     * request is not a datastore query, or the resource has not been listed
+     */
+    private String listedModified(String key){
+        String action = action(key);
+        int q = key.indexOf('?');
+        if (action == null || !action.startsWith("datastore_search") || q < 0) {
+            return null;
+        }
+        String query;
+        try {
+            query = URLDecoder.decode(key.substring(q + 1), "UTF-8");
+        }
+        catch (Exception e){
+            return null;
+        }
+        Matcher m = action.equals("datastore_search_sql") ? SQL_RESOURCE.matcher(query) : RESOURCE_PARAM.matcher(query);
+        if (!m.find()) {
+            return null;
+        }
+        synchronized (resourceModified) {
+            return resourceModified.get(m.group(1));
+        }
+    }
+
+    /**
+     * Record the 'last_modified' of every resource in a package listing
+     */
+    private void recordResources(String body){
+        try {
+            JSONArray resources = new JSONObject(body).getJSONObject("result").getJSONArray("resources");
+            synchronized (resourceModified) {
+                for (int i = 0; i < resources.length(); i++) {
+                    JSONObject resource = resources.getJSONObject(i);
+                    if (resource.isNull("last_modified")) {
+                        resourceModified.remove(resource.optString("id"));
+                    }
+                    else {
+                        resourceModified.put(resource.optString("id"), resource.getString("last_modified"));
+                    }
+                }
+            }
+        }
+        catch (Exception e){
+            // not a package listing; nothing to record
+        }
+    }
+
+    /**
+     * @return File of a response in the disk tier; named by a hash of its key
+     */
+    private File diskFile(String key){
+        try {
+            StringBuilder name = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8))) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(directory, name + ".json");
+        }
+        catch (Exception e){
+            throw new IllegalStateException(e); // SHA-1 is always available
+        }
+    }
+
+    /**
+     * Read a response from the disk tier; the first line holds its key and validators, the rest its body
+     * @return The response, or null if it is not on disk
+     */
+    private Entry readDisk(String key){
+        if (directory == null) {
+            return null;
+        }
+        File file = diskFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            JSONObject header = new JSONObject(in.readLine());
+            if (!key.equals(header.getString("key"))) {
+                return null; // hash collision
+            }
+            StringBuilder body = new StringBuilder();
+            char[] buffer = new char[8192];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                body.append(buffer, 0, n);
+            }
+            return new Entry(body.toString(), header.optString("etag", null), header.optString("lastModified", null),
+                    header.optString("resourceModified", null), header.getLong("validated"));
+        }
+        catch (Exception e){
+            System.out.println("Could not read cached response "+ file +"; fetching again");
+            return null;
+        }
+    }
+
+    /**
+     * Write a response to the disk tier; written to a temporary file and renamed, so a cached response is never partial
+     */
+    private void writeDisk(String key, Entry entry){
+        if (directory == null) {
+            return;
+        }
+        File file = diskFile(key);
+        File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        JSONObject header = new JSONObject().put("key", key).put("validated", entry.validated).putOpt("etag", entry.etag)
+                .putOpt("lastModified", entry.lastModified).putOpt("resourceModified", entry.resourceModified);
+        try {
+            Files.createDirectories(directory.toPath());
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                out.write(header.toString());
+                out.write('\n');
+                out.write(entry.body);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e){
+            System.out.println("Could not cache response "+ file);
+            tmp.delete();
+        }
+    }
+}
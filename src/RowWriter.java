@@ -0,0 +1,119 @@
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes table rows to a channel as CSV (with a header row) or JSON Lines, through a fixed size buffer. One line builder is
+ * reused for every row, so memory use does not depend on the number of rows written
+ * @Author Ross Newby
+ */
+public class RowWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16; // bytes buffered before writing to the channel
+
+    private final Writer writer;
+    private final boolean json;
+    private final String[] names; // column names
+    private final boolean[] numeric; // columns written without quotes in JSON
+    private final StringBuilder line = new StringBuilder(256); // reused for every row
+    private long rows = 0;
+
+    /**
+     * Initialise the writer; the CSV header row is written immediately
+     * @param out Channel to write to; not closed by this class
+     * @param format 'csv' or 'jsonl'
+     * @param names Column names
+     * @param numeric True for each column which holds numbers
+     * @throws IOException When the channel could not be written
+     */
+    public RowWriter(WritableByteChannel out, String format, String[] names, boolean[] numeric) throws IOException{
+
+        json = format.equalsIgnoreCase("jsonl");
+        if (!json && !format.equalsIgnoreCase("csv")) {
+            throw new IllegalArgumentException("Unknown export format '"+ format +"'; use 'csv' or 'jsonl'");
+        }
+        this.writer = new BufferedWriter(Channels.newWriter(out, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE);
+        this.names = names;
+        this.numeric = numeric;
+
+        if (!json) {
+            line.setLength(0);
+            for (int j = 0; j < names.length; j++) {
+                if (j > 0) {
+                    line.append(',');
+                }
+                appendCSV(line, names[j]);
+            }
+            writer.append(line).append('\n');
+        }
+    }
+
+    /**
+     * Write a single row
+     * @param values Value of each column as a string; null for NULL
+     * @throws IOException When the channel could not be written
+     */
+    public void write(String[] values) throws IOException{
+        line.setLength(0);
+        if (json) {
+            line.append('{');
+        }
+        for (int j = 0; j < names.length; j++) {
+            String value = values[j];
+            if (j > 0) {
+                line.append(',');
+            }
+            if (json) {
+                line.append(JSONObject.quote(names[j])).append(':');
+                line.append((value == null) ? "null" : numeric[j] ? value : JSONObject.quote(value));
+            }
+            else if (value != null) { // NULL is an empty field
+                appendCSV(line, value);
+            }
+        }
+        if (json) {
+            line.append('}');
+        }
+        writer.append(line).append('\n');
+        rows++;
+    }
+
+    /**
+     * Write any buffered rows to the channel; the channel is left open
+     * @return Number of rows written
+     * @throws IOException When the channel could not be written
+     */
+    public long flush() throws IOException{
+        writer.flush();
+        return rows;
+    }
+
+    /**
+     * Appends a value to a CSV line, quoting it if it contains a separator, quote or line break
+     */
+    private static void appendCSV(StringBuilder line, String value){
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+            line.append(c);
+        }
+        line.append('"');
+    }
+}
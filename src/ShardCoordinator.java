@@ -0,0 +1,340 @@
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the meters of a run between several QAServer instances sharing one quality database. Each meter is analysed under a
+ * lease row in the database, so exactly one node tests it per run; leases are kept alive by a heartbeat and expire if their node
+ * dies, when another node takes them over. Meters are ordered by rendezvous hashing over the live nodes, so each node starts on
+ * its own share and only then helps with the rest. Without sharding, the same leases checkpoint an initialisation; a meter's lease
+ * is only completed once its errors have been written, so a resumed run skips exactly the meters whose results are durable.
+ * Leases are fenced by node: every process joins under its own ID, the configured one followed by the process's start time, and
+ * a lease is only completed while it is still held, so a node which paused past its lease cannot complete a meter taken over by
+ * another, nor a restarted node one taken by its previous process.
+ * The following optional fields may be specified in config.properties:
+ * 'sharding' (true or false; default false), 'nodeid' (default 'pid@host'; the start time is appended) and 'leasettl' (seconds; default 60)
+ * @Author Ross Newby
+ */
+public class ShardCoordinator {
+
+    private static final String PROPERTIES_FILENAME = "config.properties";
+    private static final int DEFAULT_LEASE_TTL = 60; // seconds a lease or node lives without a heartbeat
+    private static final int LEASE_HISTORY_DAYS = 7; // leases of old runs are deleted after this many days
+
+    private boolean enabled = false;
+    private String node = ManagementFactory.getRuntimeMXBean().getName(); // 'pid@host'
+    private int leaseTTL = DEFAULT_LEASE_TTL;
+
+    private QualityStore store = null; // lease connection; separate from the analysis writers
+    private QualityStore source = null; // database the lease connection was opened from
+    private int runs = 0; // runs this node has joined and not yet left
+    private ErrorSink sink = null; // completions wait for this sink to write the meter's errors
+    private ConcurrentLinkedQueue<Completion> completed = new ConcurrentLinkedQueue<>(); // meters tested, lease not yet completed
+    private ScheduledExecutorService heartbeat = null;
+
+    /**
+     * Initialise the coordinator, reading whether sharding is enabled, the node ID and lease length from the configuration file
+     */
+    public ShardCoordinator(){
+        try {
+            Properties prop = new Properties();
+            InputStream in = getClass().getClassLoader().getResourceAsStream(PROPERTIES_FILENAME);
+
+            if (in != null) {
+                prop.load(in);
+                in.close();
+            } else {
+                throw new FileNotFoundException("'" + PROPERTIES_FILENAME + "' not found in classpath");
+            }
+
+            enabled = Boolean.parseBoolean(prop.getProperty("sharding", "false").trim());
+            node = prop.getProperty("nodeid", node).trim();
+            leaseTTL = Math.max(3, Integer.parseInt(prop.getProperty("leasettl", Integer.toString(leaseTTL))));
+        }
+        catch (Exception e){
+            // System.out.println("Error Reading Configuration File: "+ PROPERTIES_FILENAME); // use defaults
+        }
+        node += "#" + Long.toString(ManagementFactory.getRuntimeMXBean().getStartTime(), 36); // fences this process from a restart under the same ID
+    }
+
+    /**
+     * @return True if meters are shared with other nodes
+     */
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * @return Seconds after which the lease of a dead node expires
+     */
+    public int getLeaseTTL(){
+        return leaseTTL;
+    }
+
+    /**
+     * Join a run; the first run joined registers this node and starts its heartbeat. Every node must use the same key for the same
+     * run. A node may be in several runs at once, e.g. the months of a backfill
+     * @param database Quality database holding the leases
+     * @param runKey Key of the run, e.g. 'update-2017-09-14'
+     * @param errorSink Sink the run's errors are written through
+     * @return The run, to lease meters in and leave once finished
+     * @throws SQLException When the node could not be registered
+     */
+    public synchronized Run join(QualityStore database, String runKey, ErrorSink errorSink) throws SQLException{
+
+        if (store == null || (source != database && runs == 0)) { // e.g. the staging copy of an initialisation, then the published database
+            store = database.openWriter();
+            source = database;
+        }
+        sink = errorSink;
+        if (runs == 0) {
+            store.heartbeat(node, leaseTTL);
+            store.purgeLeases(LEASE_HISTORY_DAYS);
+            startHeartbeat();
+        }
+        runs++;
+        System.out.println("Joined run '"+ runKey +"' as node '"+ node +"' with "+ store.getLiveNodes().size() +" live node(s)");
+        return new Run(runKey);
+    }
+
+    /**
+     * A run this node has joined
+     */
+    public class Run {
+
+        private final String key;
+        private final ConcurrentHashMap<String, Long> marks = new ConcurrentHashMap<>(); // 'code/chan' -> sink mark when leased
+
+        private Run(String key){
+            this.key = key;
+        }
+
+        /**
+         * Order meters so that this node works on its own share first. Each meter belongs to the live node with the highest hash
+         * of node and meter key; when a node joins or dies only its share moves. Meters belonging to other nodes follow in reverse,
+         * so a node which finishes early helps from the opposite end to the owner. Meters with the same key belong to the same node
+         * @param meterKeys Key of every meter, e.g. its logger code, so a device's meters are tested by one node
+         * @return Indices into meterKeys in the order they should be tested
+         * @throws SQLException When the live nodes could not be read
+         */
+        public List<Integer> order(List<String> meterKeys) throws SQLException{
+
+            List<String> nodes = store.getLiveNodes();
+            List<Integer> own = new ArrayList<>();
+            List<Integer> others = new ArrayList<>();
+            for (int i = 0; i < meterKeys.size(); i++) {
+                String owner = node;
+                long best = Long.MIN_VALUE;
+                for (String candidate : nodes) {
+                    long weight = hash(candidate + "|" + meterKeys.get(i));
+                    if (weight > best) {
+                        best = weight;
+                        owner = candidate;
+                    }
+                }
+                (owner.equals(node) ? own : others).add(i);
+            }
+            for (int i = others.size() - 1; i >= 0; i--) {
+                own.add(others.get(i));
+            }
+            return own;
+        }
+
+        /**
+         * Try to take the lease on a meter for this run
+         * @param logCode Logger code of the meter
+         * @param logChan Logger channel of the meter
+         * @return ACQUIRED if this node should test the meter, HELD if another live node is testing it, or COMPLETED if it has been tested
+         * @throws SQLException When the lease could not be read or written
+         */
+        public QualityStore.LeaseState acquire(String logCode, String logChan) throws SQLException{
+            ErrorSink errorSink = sink;
+            long mark = (errorSink == null) ? 0 : errorSink.mark(); // taken before the lease, so before any of the meter's errors
+            QualityStore.LeaseState state = store.acquireLease(key, logCode, logChan, node, leaseTTL);
+            if (state == QualityStore.LeaseState.ACQUIRED) {
+                marks.putIfAbsent(logCode +"/"+ logChan, mark);
+            }
+            return state;
+        }
+
+        /**
+         * Check that this node still holds the lease on a meter, renewing it; a lease lost while the node was paused, e.g. fetching
+         * readings, has been or may be taken over by another node, so the meter must not be tested or completed by this one
+         * @param logCode Logger code of the meter
+         * @param logChan Logger channel of the meter
+         * @return True if this node still holds the lease
+         * @throws SQLException When the lease could not be read or written
+         */
+        public boolean renew(String logCode, String logChan) throws SQLException{
+            return acquire(logCode, logChan) == QualityStore.LeaseState.ACQUIRED;
+        }
+
+        /**
+         * Record that a meter has been tested in this run. Its lease is completed, so no other node or resumed run tests it again,
+         * once the errors published for it have been written; until then the heartbeat keeps the lease. If any of them could not
+         * be written, the lease is left to expire, so the meter is tested again
+         * @param logCode Logger code of the meter
+         * @param logChan Logger channel of the meter
+         */
+        public void complete(String logCode, String logChan){
+            Long mark = marks.remove(logCode +"/"+ logChan);
+            completed.add(new Completion(key, logCode, logChan, (mark == null) ? -1 : mark));
+        }
+
+        /**
+         * Complete the leases of meters tested so far now, rather than on the next heartbeat, e.g. before counting those still open
+         */
+        public void commit(){
+            commitCompleted();
+        }
+
+        /**
+         * @return Number of leases in this run, of any node, which have not been completed
+         * @throws SQLException When the leases could not be read
+         */
+        public int countOpen() throws SQLException{
+            return store.getOpenLeaseCount(key);
+        }
+
+        /**
+         * Leave this run; completes the leases of meters tested. Leaving the last run stops the heartbeat and releases any leases
+         * this node still holds, so others can take them at once
+         */
+        public void leave(){
+            commitCompleted();
+            synchronized (ShardCoordinator.this) {
+                if (--runs > 0) {
+                    return;
+                }
+                if (heartbeat != null) {
+                    heartbeat.shutdownNow();
+                    heartbeat = null;
+                }
+                commitCompleted(); // any interrupted by the shutdown
+                try {
+                    store.releaseNode(node);
+                }
+                catch (SQLException e){
+                    System.out.println("Could not release shard leases; they expire in "+ leaseTTL +"s");
+                }
+            }
+        }
+    }
+
+    /**
+     * Start beating for this node's leases, and completing the leases of tested meters, in the background
+     */
+    private void startHeartbeat(){
+        heartbeat = Executors.newScheduledThreadPool(2, new ThreadFactory() { // heartbeats must not wait behind completions
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "shard-heartbeat");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1000L, leaseTTL * 1000L / 3); // several beats per lease, so one slow beat does not lose it
+        heartbeat.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    store.heartbeat(node, leaseTTL);
+                }
+                catch (Exception e){
+                    System.out.println("Shard heartbeat failed: "+ e.getMessage());
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                commitCompleted();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Complete the leases of every meter tested so far, once the sink has written everything published for them
+     */
+    private synchronized void commitCompleted(){
+        if (completed.isEmpty()) {
+            return;
+        }
+        List<Completion> meters = new ArrayList<>();
+        for (Completion meter = completed.poll(); meter != null; meter = completed.poll()) {
+            meters.add(meter);
+        }
+        try {
+            if (sink != null) {
+                sink.flush(); // every error for these meters was published before they were completed
+            }
+            int lost = 0;
+            int unwritten = 0;
+            for (Completion meter : meters) {
+                if (sink != null && !sink.writtenSince(meter.mark)) {
+                    unwritten++; // left to expire; tested again
+                }
+                else if (!store.completeLease(meter.run, meter.logCode, meter.logChan, node)) {
+                    lost++;
+                }
+            }
+            if (lost > 0) {
+                System.out.println("Lost "+ lost +" lease(s) before they were completed; their meters are left to the nodes holding them");
+            }
+            if (unwritten > 0) {
+                System.out.println(unwritten +" meter(s) not completed: their errors could not be written; leases expire in "+ leaseTTL +"s");
+            }
+        }
+        catch (InterruptedException e){
+            completed.addAll(meters); // leaving the last run commits them
+            Thread.currentThread().interrupt();
+        }
+        catch (SQLException e){
+            System.out.println("Could not complete "+ meters.size() +" lease(s); they will expire and be tested again");
+        }
+    }
+
+    /**
+     * A meter tested in a run, waiting for its lease to be completed
+     */
+    private static class Completion {
+
+        private final String run;
+        private final String logCode;
+        private final String logChan;
+        private final long mark; // error sink mark when the meter was leased; -1 if unknown, so never completed
+
+        private Completion(String run, String logCode, String logChan, long mark){
+            this.run = run;
+            this.logCode = logCode;
+            this.logChan = logChan;
+            this.mark = mark;
+        }
+    }
+
+    /**
+     * @return First 64 bits of the MD5 of the value; well mixed, and the same on every node
+     */
+    private static long hash(String value){
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xff);
+            }
+            return h;
+        }
+        catch (Exception e){
+            return value.hashCode();
+        }
+    }
+}
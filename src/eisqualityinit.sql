@@ -1,6 +1,5 @@
-DROP DATABASE IF EXISTS eisquality;
-CREATE DATABASE eisquality;
-USE eisquality;
+-- Creates the tables in the current schema, e.g. eisquality or its staging copy eisquality_staging; the lease and fingerprint
+-- tables are created by eisqualitystate.sql
 
 DROP TABLE IF EXISTS erroneousassets ;
 CREATE TABLE erroneousassets
@@ -25,8 +24,58 @@ CREATE TABLE errors
   logger_channel varchar(10),
   timeVal timestamp NOT NULL,
 
-  PRIMARY KEY (id),
-  UNIQUE KEY error_info (error_type, logger_code, logger_channel, timeVal)
+  PRIMARY KEY (id, timeVal),
+  UNIQUE KEY error_info (error_type, logger_code, logger_channel, timeVal),
+  KEY asset_errors (logger_code, logger_channel, timeVal, error_type),
+  KEY type_errors (error_type, timeVal),
+  KEY time_errors (timeVal, error_type)
+)
+PARTITION BY RANGE (UNIX_TIMESTAMP(timeVal))
+(
+  PARTITION p201612 VALUES LESS THAN (UNIX_TIMESTAMP('2017-01-01 00:00:00')),
+  PARTITION p201701 VALUES LESS THAN (UNIX_TIMESTAMP('2017-02-01 00:00:00')),
+  PARTITION p201702 VALUES LESS THAN (UNIX_TIMESTAMP('2017-03-01 00:00:00')),
+  PARTITION p201703 VALUES LESS THAN (UNIX_TIMESTAMP('2017-04-01 00:00:00')),
+  PARTITION p201704 VALUES LESS THAN (UNIX_TIMESTAMP('2017-05-01 00:00:00')),
+  PARTITION p201705 VALUES LESS THAN (UNIX_TIMESTAMP('2017-06-01 00:00:00')),
+  PARTITION p201706 VALUES LESS THAN (UNIX_TIMESTAMP('2017-07-01 00:00:00')),
+  PARTITION p201707 VALUES LESS THAN (UNIX_TIMESTAMP('2017-08-01 00:00:00')),
+  PARTITION p201708 VALUES LESS THAN (UNIX_TIMESTAMP('2017-09-01 00:00:00')),
+  PARTITION p201709 VALUES LESS THAN (UNIX_TIMESTAMP('2017-10-01 00:00:00')),
+  PARTITION p201710 VALUES LESS THAN (UNIX_TIMESTAMP('2017-11-01 00:00:00')),
+  PARTITION p201711 VALUES LESS THAN (UNIX_TIMESTAMP('2017-12-01 00:00:00')),
+  PARTITION p201712 VALUES LESS THAN (UNIX_TIMESTAMP('2018-01-01 00:00:00')),
+  PARTITION pmax VALUES LESS THAN MAXVALUE
+);
+
+DROP TABLE IF EXISTS errorsdaily;
+CREATE TABLE errorsdaily
+(
+  day date NOT NULL,
+  error_type int NOT NULL,
+  building_code varchar(25) NOT NULL DEFAULT '',
+  utility_type varchar(25) NOT NULL DEFAULT '',
+  error_count int unsigned NOT NULL,
+
+  PRIMARY KEY (day, error_type, building_code, utility_type),
+  KEY building_day (building_code, day, error_count),
+  KEY utility_day (utility_type, day, error_count),
+  KEY type_day (error_type, day, error_count)
+);
+
+DROP TABLE IF EXISTS errorsmonthly;
+CREATE TABLE errorsmonthly
+(
+  month date NOT NULL,
+  error_type int NOT NULL,
+  building_code varchar(25) NOT NULL DEFAULT '',
+  utility_type varchar(25) NOT NULL DEFAULT '',
+  error_count int unsigned NOT NULL,
+
+  PRIMARY KEY (month, error_type, building_code, utility_type),
+  KEY building_month (building_code, month, error_count),
+  KEY utility_month (utility_type, month, error_count),
+  KEY type_month (error_type, month, error_count)
 );
 
 DROP TABLE IF EXISTS qualitylog;
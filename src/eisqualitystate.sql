@@ -0,0 +1,53 @@
+-- Creates the lease and fingerprint tables in the published schema, e.g. eisquality, if they do not exist. They are never
+-- staged: nodes coordinate through them while an initialisation fills the staging copy, and it keeps them when published
+
+CREATE TABLE IF NOT EXISTS qanodes
+(
+  node_id varchar(100) NOT NULL,
+  expires timestamp NOT NULL,
+
+  PRIMARY KEY (node_id)
+);
+
+CREATE TABLE IF NOT EXISTS meterleases
+(
+  run_key varchar(50) NOT NULL,
+  logger_code varchar(100) NOT NULL,
+  logger_channel varchar(10) NOT NULL DEFAULT '',
+  node_id varchar(100) NOT NULL,
+  expires timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  completed boolean NOT NULL DEFAULT FALSE,
+
+  PRIMARY KEY (run_key, logger_code, logger_channel),
+  KEY node_leases (node_id, completed),
+  KEY expired_leases (expires)
+);
+
+CREATE TABLE IF NOT EXISTS meterfiles
+(
+  logger_code varchar(100) NOT NULL,
+  logger_channel varchar(10) NOT NULL,
+  file_id varchar(64) NOT NULL,
+  row_count int unsigned NOT NULL,
+  latest varchar(30),
+  content_hash bigint NOT NULL,
+  checked timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+
+  PRIMARY KEY (logger_code, logger_channel, file_id)
+);
+
+CREATE TABLE IF NOT EXISTS meterdays
+(
+  logger_code varchar(100) NOT NULL,
+  logger_channel varchar(10) NOT NULL,
+  day date NOT NULL,
+  readings int unsigned NOT NULL,
+  min_value double,
+  max_value double,
+  sum_value double NOT NULL DEFAULT 0,
+  negatives int unsigned NOT NULL DEFAULT 0,
+  first_reading varchar(30),
+  last_reading varchar(30),
+
+  PRIMARY KEY (logger_code, logger_channel, day)
+);